@@ -0,0 +1,106 @@
+package com.sodasmile.sxxparalizer;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parsed barrier line. A barrier starts with at least three equals signs, optionally followed by
+ * space separated options:
+ * <ul>
+ * <li><code>@group</code> - only hosts in the named group wait for each other, other hosts pass straight through.</li>
+ * <li><code>N</code> or <code>N%</code> - quorum, the barrier opens when N hosts, or N percent of the hosts, have arrived.</li>
+ * <li><code>30s</code>, <code>500ms</code> or <code>2m</code> - timeout, the hosts that have arrived continue when it expires.</li>
+ * </ul>
+ * Example: <code>=== @web 50% 2m</code>
+ *
+ * @author anderssm
+ */
+final class BarrierSpec {
+
+    private static final Pattern COUNT = Pattern.compile("(\\d+)(%?)");
+    private static final Pattern DURATION = Pattern.compile("(\\d+)(ms|s|m)");
+
+    private final String group;
+    private final int quorum;
+    private final boolean quorumPercent;
+    private final long timeout;
+
+    private BarrierSpec(final String group, final int quorum, final boolean quorumPercent, final long timeout) {
+        this.group = group;
+        this.quorum = quorum;
+        this.quorumPercent = quorumPercent;
+        this.timeout = timeout;
+    }
+
+    /**
+     * @param cmd barrier line, starting with at least three equals signs.
+     * @return the parsed barrier.
+     * @throws IllegalArgumentException if an option is not understood.
+     */
+    static BarrierSpec parse(final String cmd) {
+        String group = null;
+        int quorum = 100;
+        boolean quorumPercent = true;
+        long timeout = 0;
+        String options = cmd.trim().replaceFirst("^=+", "").trim();
+        if (options.length() > 0) {
+            for (String option : options.split("\\s+")) {
+                Matcher count = COUNT.matcher(option);
+                Matcher duration = DURATION.matcher(option);
+                if (option.startsWith("@") && option.length() > 1) {
+                    group = option.substring(1);
+                } else if (count.matches()) {
+                    quorum = Integer.parseInt(count.group(1));
+                    quorumPercent = count.group(2).length() > 0;
+                    if (quorum < 1 || (quorumPercent && quorum > 100)) {
+                        throw new IllegalArgumentException("Illegal barrier quorum '" + option + "' in: " + cmd);
+                    }
+                } else if (duration.matches()) {
+                    timeout = toMillis(Long.parseLong(duration.group(1)), duration.group(2));
+                } else {
+                    throw new IllegalArgumentException("Unknown barrier option '" + option + "' in: " + cmd);
+                }
+            }
+        }
+        return new BarrierSpec(group, quorum, quorumPercent, timeout);
+    }
+
+    private static long toMillis(final long value, final String unit) {
+        if (unit.equals("m")) {
+            return value * 60 * 1000;
+        }
+        if (unit.equals("s")) {
+            return value * 1000;
+        }
+        return value;
+    }
+
+    /**
+     * @return name of the group synchronizing at this barrier, null for all hosts.
+     */
+    String group() {
+        return group;
+    }
+
+    /**
+     * @return milliseconds to wait before continuing without the missing hosts, 0 means forever.
+     */
+    long timeout() {
+        return timeout;
+    }
+
+    /**
+     * @param parties number of hosts expected at the barrier.
+     * @return number of hosts that must arrive before the barrier opens.
+     */
+    int required(final int parties) {
+        int required = quorumPercent ? (int) Math.ceil(parties * quorum / 100.0) : quorum;
+        return Math.min(required, parties);
+    }
+
+    @Override
+    public String toString() {
+        return "barrier" + (group != null ? " @" + group : "") + " quorum " + quorum + (quorumPercent ? "%" : "")
+                + (timeout > 0 ? " timeout " + timeout + " ms" : "");
+    }
+}
@@ -0,0 +1,165 @@
+package com.sodasmile.sxxparalizer;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of the barriers in one run of {@link SXXParalized}. Replaces a single CyclicBarrier for
+ * all hosts, to support group barriers, quorums and timeouts, see {@link BarrierSpec}.
+ * <p/>
+ * Every barrier line in the script is its own barrier, identified by its position in the script.
+ * Hosts that stop running, because of a failure, leave all barriers they have not reached, so the
+ * remaining hosts are not held up waiting for them.
+ *
+ * @author anderssm
+ */
+final class Barriers {
+
+    private final Set<String> hosts;
+    private final Map<String, Set<String>> groups;
+    private final Set<String> gone = new HashSet<String>();
+    private final Map<Integer, Point> points = new HashMap<Integer, Point>();
+
+    /**
+     * @param hosts  all hosts in the run.
+     * @param groups hosts per group name, for group barriers.
+     */
+    Barriers(final String[] hosts, final Map<String, Set<String>> groups) {
+        this.hosts = new LinkedHashSet<String>();
+        Collections.addAll(this.hosts, hosts);
+        this.groups = groups;
+    }
+
+    /**
+     * Checks that the barrier can be used in this run.
+     *
+     * @throws IllegalArgumentException if the barrier refers to an unknown group.
+     */
+    void verify(final BarrierSpec spec) {
+        if (spec.group() != null && !groups.containsKey(spec.group())) {
+            throw new IllegalArgumentException("Unknown host group '" + spec.group() + "' in " + spec);
+        }
+    }
+
+    /**
+     * Waits at a barrier until enough hosts have arrived, or the timeout expires.
+     * Hosts not in the group of the barrier pass straight through.
+     *
+     * @param index position of the barrier in the script.
+     * @param spec  the barrier.
+     * @param host  host arriving at the barrier.
+     * @return number of expected hosts that had not arrived when the barrier opened for this host.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    synchronized int await(final int index, final BarrierSpec spec, final String host) throws InterruptedException {
+        Point point = arrive(index, spec, host);
+        if (point == null) {
+            return 0;
+        }
+
+        long deadline = System.currentTimeMillis() + spec.timeout();
+        while (!point.open) {
+            if (spec.timeout() <= 0) {
+                wait();
+            } else {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    point.open();
+                    break;
+                }
+                wait(left);
+            }
+        }
+        return point.missing();
+    }
+
+    /**
+     * Arrives at a barrier without waiting, for a host that passed it in an earlier run that is resumed.
+     * Counts for the hosts waiting at the barrier.
+     *
+     * @param index position of the barrier in the script.
+     * @param spec  the barrier.
+     * @param host  host passing the barrier.
+     */
+    synchronized void pass(final int index, final BarrierSpec spec, final String host) {
+        arrive(index, spec, host);
+    }
+
+    /**
+     * @return the barrier the host arrived at, null if the host is not in the group of the barrier.
+     */
+    private Point arrive(final int index, final BarrierSpec spec, final String host) {
+        Set<String> scope = scope(spec);
+        if (!scope.contains(host)) {
+            return null;
+        }
+        Point point = points.get(index);
+        if (point == null) {
+            point = new Point(spec, scope);
+            points.put(index, point);
+        }
+        point.arrived.add(host);
+        point.checkOpen();
+        return point;
+    }
+
+    /**
+     * Removes a host from all barriers it has not reached, and lets the other hosts continue if they
+     * were only waiting for it.
+     *
+     * @param host host that will not arrive at any more barriers.
+     */
+    synchronized void leave(final String host) {
+        gone.add(host);
+        for (Point point : points.values()) {
+            if (!point.open && !point.arrived.contains(host)) {
+                point.expected.remove(host);
+                point.checkOpen();
+            }
+        }
+    }
+
+    private Set<String> scope(final BarrierSpec spec) {
+        return spec.group() == null ? hosts : groups.get(spec.group());
+    }
+
+    private class Point {
+
+        private final BarrierSpec spec;
+        private final Set<String> expected;
+        private final Set<String> arrived = new HashSet<String>();
+        private boolean open;
+
+        Point(final BarrierSpec spec, final Set<String> scope) {
+            this.spec = spec;
+            this.expected = new HashSet<String>(scope);
+            this.expected.retainAll(hosts);
+            this.expected.removeAll(gone);
+        }
+
+        void checkOpen() {
+            if (!open && arrived.size() >= spec.required(expected.size())) {
+                open();
+            }
+        }
+
+        void open() {
+            open = true;
+            Barriers.this.notifyAll();
+        }
+
+        int missing() {
+            int missing = 0;
+            for (String host : expected) {
+                if (!arrived.contains(host)) {
+                    missing++;
+                }
+            }
+            return missing;
+        }
+    }
+}
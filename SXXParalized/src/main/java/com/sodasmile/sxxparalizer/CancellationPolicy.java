@@ -0,0 +1,55 @@
+package com.sodasmile.sxxparalizer;
+
+/**
+ * Settings for stopping a whole run when hosts fail, see {@link SXXParalized#setCancellationPolicy(CancellationPolicy)}.
+ * <p/>
+ * When more than maxFailures hosts have failed, the run is cancelled: no more hosts are started, hosts
+ * waiting at barriers are released, commands in flight are stopped and all sessions are closed. The
+ * cancelled hosts fail with a {@link SXXException} saying so. Unlike {@link RollingPolicy#maxFailures(int)},
+ * hosts already running are not let finish.
+ * <p/>
+ * Closing a channel does not stop the command on the host. Set a signal to also send it to the commands
+ * before their channels are closed, this requires OpenSSH 7.9 or newer on the hosts.
+ *
+ * @author anderssm
+ */
+public class CancellationPolicy {
+
+    private int maxFailures;
+    private String signal;
+
+    public CancellationPolicy() {
+    }
+
+    /**
+     * Number of failed hosts to accept. Default is 0, which cancels the run at the first failure.
+     */
+    public CancellationPolicy maxFailures(int maxFailures) {
+        if (maxFailures < 0) {
+            throw new IllegalArgumentException("Max failures can not be negative, was " + maxFailures);
+        }
+        this.maxFailures = maxFailures;
+        return this;
+    }
+
+    int maxFailures() {
+        return maxFailures;
+    }
+
+    /**
+     * Signal to send commands in flight when the run is cancelled, like TERM or KILL. Default is none.
+     */
+    public CancellationPolicy signal(String signal) {
+        this.signal = signal;
+        return this;
+    }
+
+    String signal() {
+        return signal;
+    }
+
+    @Override
+    public String toString() {
+        return "cancel after " + (maxFailures + 1) + " failed hosts" + (signal != null ? ", sending " + signal : "");
+    }
+}
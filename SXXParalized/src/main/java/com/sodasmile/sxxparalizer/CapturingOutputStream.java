@@ -0,0 +1,65 @@
+package com.sodasmile.sxxparalizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream passing everything on to a target stream, keeping a copy of the first bytes written.
+ *
+ * @author anderssm
+ */
+class CapturingOutputStream extends OutputStream {
+
+    private final OutputStream target;
+    private final int limit;
+    private final ByteArrayOutputStream captured;
+    private long total;
+
+    /**
+     * @param target stream to pass written bytes on to.
+     * @param limit  max number of bytes to keep a copy of, 0 to keep nothing.
+     */
+    CapturingOutputStream(final OutputStream target, final int limit) {
+        this.target = target;
+        this.limit = limit;
+        this.captured = new ByteArrayOutputStream(Math.min(limit, 1024));
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        target.write(b);
+        if (total < limit) {
+            captured.write(b);
+        }
+        total++;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        target.write(b, off, len);
+        if (total < limit) {
+            captured.write(b, off, (int) Math.min(len, limit - total));
+        }
+        total += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        target.flush();
+    }
+
+    /**
+     * @return the captured bytes as a string.
+     */
+    String captured() {
+        return captured.toString();
+    }
+
+    /**
+     * @return true if more bytes were written than captured.
+     */
+    boolean truncated() {
+        return total > limit;
+    }
+}
@@ -0,0 +1,86 @@
+package com.sodasmile.sxxparalizer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Output stream to hand JSch as the extended (stderr) output stream of an exec channel.
+ * <p/>
+ * JSch closes the extended output stream when the channel is closed, which happens after the
+ * exit status has been received. This class turns that close into a signal, so a waiting thread
+ * wakes up as soon as the command is done instead of polling the channel. Writes are passed on
+ * to the target stream, but the target stream itself is never closed.
+ *
+ * @author anderssm
+ */
+class ChannelCloseSignal extends OutputStream {
+
+    private final OutputStream target;
+    private final Runnable onClose;
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    /**
+     * @param target stream to pass written bytes on to.
+     */
+    ChannelCloseSignal(final OutputStream target) {
+        this(target, null);
+    }
+
+    /**
+     * @param target  stream to pass written bytes on to.
+     * @param onClose called from the JSch session thread when the channel closes, may be null.
+     */
+    ChannelCloseSignal(final OutputStream target, final Runnable onClose) {
+        this.target = target;
+        this.onClose = onClose;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        target.write(b);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        target.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        target.flush();
+    }
+
+    /**
+     * Called by JSch when the channel closes. Signals waiting threads, leaves the target open.
+     */
+    @Override
+    public void close() throws IOException {
+        target.flush();
+        if (closed.getCount() > 0) {
+            closed.countDown();
+            if (onClose != null) {
+                onClose.run();
+            }
+        }
+    }
+
+    /**
+     * Waits for the channel to close.
+     *
+     * @param timeout milliseconds to wait.
+     * @return true if the channel closed, false if the wait timed out.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean await(final long timeout) throws InterruptedException {
+        return closed.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if the channel has closed.
+     */
+    boolean isClosed() {
+        return closed.getCount() == 0;
+    }
+}
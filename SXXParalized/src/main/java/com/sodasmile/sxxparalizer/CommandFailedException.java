@@ -0,0 +1,41 @@
+package com.sodasmile.sxxparalizer;
+
+/**
+ * Thrown when a remote command exits with a non zero exit status, and failOnError is set.
+ *
+ * @author anderssm
+ */
+public class CommandFailedException extends SXXException {
+
+    private final String host;
+    private final String command;
+    private final int exitStatus;
+
+    public CommandFailedException(final String host, final String command, final int exitStatus) {
+        super("Remote command failed with status: " + exitStatus);
+        this.host = host;
+        this.command = command;
+        this.exitStatus = exitStatus;
+    }
+
+    /**
+     * @return host the command failed on.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return the command that failed.
+     */
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * @return exit status of the command, -1 if it did not finish within the timeout.
+     */
+    public int getExitStatus() {
+        return exitStatus;
+    }
+}
@@ -0,0 +1,258 @@
+package com.sodasmile.sxxparalizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A command started with {@link SXXExecutor#sendCommandAsync(String, java.io.OutputStream,
+ * java.io.OutputStream, long)}, completed with the exit status of the command when it finishes.
+ * <p/>
+ * Listeners added with {@link #addListener(Listener)} are run once the command is done, also when it
+ * failed, timed out or was cancelled. They are run on a shared pool of threads, not on the thread of
+ * the transport that completes the command, so they may start the next command on the same session.
+ * A listener added after the command is done is run right away, on the thread adding it.
+ *
+ * @author anderssm
+ */
+public final class CommandFuture implements Future<Integer> {
+
+    /**
+     * Runs the listeners. Over ssh the command is completed from the session thread, which must be free
+     * to answer when a listener opens the next channel.
+     */
+    private static final ExecutorService LISTENERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(r, "sxx-listeners");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Called when a command is done.
+     */
+    public interface Listener {
+
+        /**
+         * @param future the command, done. {@link CommandFuture#get()} returns without waiting.
+         */
+        void completed(CommandFuture future);
+    }
+
+    /**
+     * Stops the command and completes the future, set by the executor that started it.
+     */
+    interface Stopper {
+
+        /**
+         * @param signal   signal to send the command before it is stopped, null for none.
+         * @param timedOut true if stopped because it ran out of time, false if cancelled.
+         */
+        void stop(String signal, boolean timedOut);
+    }
+
+    private final String host;
+    private final String command;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Listener> listeners = new ArrayList<Listener>();
+    private Stopper stopper;
+    private boolean completed;
+    private boolean cancelled;
+    private boolean timedOut;
+    private int exitStatus = -1;
+    private Throwable failure;
+
+    CommandFuture(final String host, final String command) {
+        this.host = host;
+        this.command = command;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * Adds a listener, run when the command is done, or right away if it is done already.
+     *
+     * @param listener the listener.
+     * @return this future, for chaining.
+     */
+    public CommandFuture addListener(final Listener listener) {
+        synchronized (this) {
+            if (!completed) {
+                listeners.add(listener);
+                return this;
+            }
+        }
+        callListener(listener);
+        return this;
+    }
+
+    /**
+     * Stops the command by closing its channel. Without a signal, commands started over ssh may keep
+     * running on the host, see {@link #cancel(String)}.
+     *
+     * @param mayInterruptIfRunning ignored, the command is stopped whether it has started or not.
+     * @return false if the command was already done.
+     */
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        return cancel(null);
+    }
+
+    /**
+     * Sends a signal to the command, and stops it.
+     *
+     * @param signal signal to send the command, like TERM, or null for none.
+     * @return false if the command was already done.
+     */
+    public boolean cancel(final String signal) {
+        Stopper stop;
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            stop = stopper;
+        }
+        if (stop == null) {
+            return complete(-1, null, true, false);
+        }
+        stop.stop(signal, false);
+        synchronized (this) {
+            return cancelled;
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return completed;
+    }
+
+    /**
+     * @return true if the command was stopped because it ran longer than its timeout.
+     */
+    public synchronized boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Waits for the command to finish.
+     *
+     * @return exit status of the command, -1 if it timed out.
+     * @throws CancellationException if the command was cancelled.
+     * @throws ExecutionException    with a {@link CommandFailedException} if the command failed and
+     *                               failOnError is set.
+     * @throws InterruptedException  if interrupted while waiting.
+     */
+    public Integer get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    /**
+     * As {@link #get()}, but waits at most the given time.
+     *
+     * @throws TimeoutException if the command is not done in time, it is left running.
+     */
+    public Integer get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException(command + " on " + host + " is not done");
+        }
+        return result();
+    }
+
+    private synchronized Integer result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException(command + " on " + host + " was cancelled");
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return exitStatus;
+    }
+
+    /**
+     * Sets how to stop the command, once it has been started.
+     */
+    synchronized void stopper(final Stopper stopper) {
+        this.stopper = stopper;
+    }
+
+    /**
+     * Stops the command because it ran out of time. Does nothing if it is done.
+     */
+    void timeout() {
+        Stopper stop;
+        synchronized (this) {
+            if (completed) {
+                return;
+            }
+            timedOut = true;
+            stop = stopper;
+        }
+        stop.stop(null, true);
+    }
+
+    /**
+     * Completes the future, only the first completion counts.
+     *
+     * @return true if this completed the future.
+     */
+    boolean complete(final int exitStatus, final Throwable failure, final boolean cancelled, final boolean timedOut) {
+        final Listener[] toNotify;
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            completed = true;
+            this.exitStatus = exitStatus;
+            this.failure = failure;
+            this.cancelled = cancelled;
+            this.timedOut |= timedOut;
+            toNotify = listeners.toArray(new Listener[listeners.size()]);
+            listeners.clear();
+        }
+        done.countDown();
+        if (toNotify.length > 0) {
+            LISTENERS.execute(new Runnable() {
+                public void run() {
+                    for (Listener listener : toNotify) {
+                        callListener(listener);
+                    }
+                }
+            });
+        }
+        return true;
+    }
+
+    private void callListener(final Listener listener) {
+        try {
+            listener.completed(this);
+        } catch (RuntimeException ex) {
+            SXXLog.shared().error(host, ex, "Listener of {} failed", command);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        String state = !completed ? "running" : cancelled ? "cancelled" : timedOut ? "timed out"
+                : failure != null ? failure.toString() : "exit status " + exitStatus;
+        return command + ": " + state;
+    }
+}
@@ -0,0 +1,123 @@
+package com.sodasmile.sxxparalizer;
+
+/**
+ * Outcome of running one command on one host.
+ *
+ * @author anderssm
+ */
+public class CommandResult {
+
+    private final String command;
+    private final int exitStatus;
+    private final String stdout;
+    private final String stderr;
+    private final boolean outputTruncated;
+    private final long startTime;
+    private final long endTime;
+    private final Throwable failure;
+    private final int attempts;
+
+    CommandResult(final String command, final int exitStatus, final String stdout, final String stderr,
+                  final boolean outputTruncated, final long startTime, final long endTime, final Throwable failure) {
+        this(command, exitStatus, stdout, stderr, outputTruncated, startTime, endTime, failure, 1);
+    }
+
+    CommandResult(final String command, final int exitStatus, final String stdout, final String stderr,
+                  final boolean outputTruncated, final long startTime, final long endTime, final Throwable failure,
+                  final int attempts) {
+        this.command = command;
+        this.exitStatus = exitStatus;
+        this.stdout = stdout;
+        this.stderr = stderr;
+        this.outputTruncated = outputTruncated;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.failure = failure;
+        this.attempts = attempts;
+    }
+
+    /**
+     * @return the command as sent to the host.
+     */
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * @return exit status of the command, -1 if it did not finish or never ran.
+     */
+    public int getExitStatus() {
+        return exitStatus;
+    }
+
+    /**
+     * @return standard output of the command, cut off at the configured max captured output.
+     */
+    public String getStdout() {
+        return stdout;
+    }
+
+    /**
+     * @return standard error of the command, cut off at the configured max captured output.
+     */
+    public String getStderr() {
+        return stderr;
+    }
+
+    /**
+     * @return true if the command wrote more output than was captured.
+     */
+    public boolean isOutputTruncated() {
+        return outputTruncated;
+    }
+
+    /**
+     * @return time the command was started, in milliseconds since the epoch.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return time the command finished, in milliseconds since the epoch.
+     */
+    public long getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * @return milliseconds the command took, including retries and the waits between them.
+     */
+    public long getDuration() {
+        return endTime - startTime;
+    }
+
+    /**
+     * @return exception that made the command fail, or null.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return number of times the command was run, more than 1 if it was retried, 0 if it was skipped
+     * because it was done in a resumed run. Output, exit status and failure are those of the last attempt.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return true if the command ran and exited with status 0.
+     */
+    public boolean isSuccess() {
+        return failure == null && exitStatus == 0;
+    }
+
+    @Override
+    public String toString() {
+        return command + ": exit status " + exitStatus + " in " + getDuration() + " ms"
+                + (attempts > 1 ? " after " + attempts + " attempts" : "")
+                + (failure != null ? " (" + failure + ")" : "");
+    }
+}
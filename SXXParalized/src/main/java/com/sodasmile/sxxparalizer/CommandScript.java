@@ -0,0 +1,326 @@
+package com.sodasmile.sxxparalizer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A command script parsed once into an immutable plan of steps, with the steps for every host worked
+ * out up front. Runners walk their own prebuilt list, instead of parsing and matching every line on
+ * every host.
+ * <p/>
+ * Every step keeps the position of its (first) line in the script, which identifies barriers.
+ * Commands keep the number of retries given with a <code>[retry=N]</code> prefix, 0 if none.
+ * <p/>
+ * Lines for a group or tag are resolved to their hosts here, once, and inventory variables are
+ * filled in per host, see {@link Inventory}.
+ *
+ * @author anderssm
+ */
+final class CommandScript {
+
+    /**
+     * One step of the plan: a command, a group of commands to run at the same time, or a barrier.
+     */
+    static final class Step {
+
+        enum Kind { COMMAND, CONCURRENT, BARRIER }
+
+        private final Kind kind;
+        private final int index;
+        private final List<String> commands;
+        private final List<Integer> retries;
+        private final BarrierSpec barrier;
+
+        private Step(final Kind kind, final int index, final List<String> commands, final List<Integer> retries,
+                     final BarrierSpec barrier) {
+            this.kind = kind;
+            this.index = index;
+            this.commands = commands;
+            this.retries = retries;
+            this.barrier = barrier;
+        }
+
+        Kind kind() {
+            return kind;
+        }
+
+        /**
+         * @return position of the step in the script.
+         */
+        int index() {
+            return index;
+        }
+
+        /**
+         * @return the command of a COMMAND step.
+         */
+        String command() {
+            return commands.get(0);
+        }
+
+        /**
+         * @return the commands of a CONCURRENT step.
+         */
+        List<String> commands() {
+            return commands;
+        }
+
+        /**
+         * @param i position of the command in {@link #commands()}.
+         * @return number of times to retry the command if it fails, 0 if it is not marked with [retry=N].
+         */
+        int retries(final int i) {
+            return retries.get(i);
+        }
+
+        /**
+         * @return the barrier of a BARRIER step.
+         */
+        BarrierSpec barrier() {
+            return barrier;
+        }
+    }
+
+    /**
+     * A parsed command line, with the hosts it is limited to.
+     */
+    private static final class Line {
+
+        private final int index;
+        private final String command;
+        private final Set<String> hosts;
+        private final int retries;
+
+        Line(final int index, final String command, final Set<String> hosts, final int retries) {
+            this.index = index;
+            this.command = command;
+            this.hosts = hosts;
+            this.retries = retries;
+        }
+
+        boolean isFor(final String host) {
+            return hosts == null || hosts.contains(host);
+        }
+    }
+
+    private static final String RETRY_PREFIX = "[retry=";
+    private static final String GROUP_PREFIX = "@";
+    private static final String TAG_PREFIX = "tag=";
+
+    private final Map<String, Set<String>> groups;
+    private final Inventory inventory;
+    private final List<Step> common = new ArrayList<Step>();
+    private final List<BarrierSpec> barriers = new ArrayList<BarrierSpec>();
+    private final Map<String, List<Step>> stepsPerHost = new HashMap<String, List<Step>>();
+
+    /**
+     * Parses a script without groups, tags or variables.
+     */
+    CommandScript(final String[] lines, final String[] hosts) {
+        this(lines, hosts, Collections.<String, Set<String>>emptyMap(), null);
+    }
+
+    /**
+     * Parses the script and builds the list of steps for each host.
+     *
+     * @param lines     script lines, see {@link SXXParalized} for the syntax.
+     * @param hosts     hosts the script is run on.
+     * @param groups    host groups for <code>%@group: </code> lines.
+     * @param inventory inventory for <code>%tag=name: </code> lines and variables, may be null.
+     * @throws IllegalArgumentException if a barrier line or retry marker can not be parsed, or a line
+     *                                  is for an unknown group.
+     */
+    CommandScript(final String[] lines, final String[] hosts, final Map<String, Set<String>> groups,
+                  final Inventory inventory) {
+        this.groups = groups;
+        this.inventory = inventory;
+        // Steps holding Line objects until host filters are applied, null entries are barriers.
+        List<List<Line>> parsed = new ArrayList<List<Line>>();
+        List<BarrierSpec> stepBarriers = new ArrayList<BarrierSpec>();
+        List<Integer> stepIndexes = new ArrayList<Integer>();
+        boolean hostSpecific = false;
+        boolean usesVars = false;
+
+        for (int i = 0; i < lines.length; i++) {
+            String cmd = lines[i].trim();
+            if (SXXParalized.isBarrierCmd(cmd)) {
+                BarrierSpec barrier = BarrierSpec.parse(cmd);
+                barriers.add(barrier);
+                parsed.add(null);
+                stepBarriers.add(barrier);
+                stepIndexes.add(i);
+            } else if (SXXParalized.isConcurrentCmd(cmd)) {
+                List<Line> group = new ArrayList<Line>();
+                stepIndexes.add(i);
+                for (; i < lines.length && SXXParalized.isConcurrentCmd(lines[i].trim()); i++) {
+                    Line line = parseLine(i, SXXParalized.stripConcurrentMarker(lines[i].trim()));
+                    usesVars |= line.command.contains("${");
+                    hostSpecific |= line.hosts != null;
+                    group.add(line);
+                }
+                i--;
+                parsed.add(group);
+                stepBarriers.add(null);
+            } else {
+                Line line = parseLine(i, cmd);
+                usesVars |= line.command.contains("${");
+                hostSpecific |= line.hosts != null;
+                parsed.add(Collections.singletonList(line));
+                stepBarriers.add(null);
+                stepIndexes.add(i);
+            }
+        }
+
+        if (usesVars && inventory != null && inventory.hasVars()) {
+            hostSpecific = true;
+        }
+        if (!hostSpecific) {
+            common.addAll(stepsFor(null, parsed, stepBarriers, stepIndexes));
+        } else {
+            for (String host : hosts) {
+                stepsPerHost.put(host, Collections.unmodifiableList(stepsFor(host, parsed, stepBarriers, stepIndexes)));
+            }
+        }
+    }
+
+    /**
+     * @param host a host given when the script was parsed.
+     * @return the steps to run on the host, in order.
+     */
+    List<Step> stepsFor(final String host) {
+        List<Step> steps = stepsPerHost.get(host);
+        return steps != null ? steps : Collections.unmodifiableList(common);
+    }
+
+    /**
+     * @return all barriers in the script.
+     */
+    List<BarrierSpec> barriers() {
+        return Collections.unmodifiableList(barriers);
+    }
+
+    /**
+     * @return true if the script has at least one barrier.
+     */
+    boolean hasBarriers() {
+        return !barriers.isEmpty();
+    }
+
+    private List<Step> stepsFor(final String host, final List<List<Line>> parsed,
+                                       final List<BarrierSpec> stepBarriers, final List<Integer> stepIndexes) {
+        List<Step> steps = new ArrayList<Step>(parsed.size());
+        for (int i = 0; i < parsed.size(); i++) {
+            List<Line> lines = parsed.get(i);
+            int index = stepIndexes.get(i);
+            if (lines == null) {
+                steps.add(new Step(Step.Kind.BARRIER, index, null, null, stepBarriers.get(i)));
+                continue;
+            }
+            List<String> commands = new ArrayList<String>(lines.size());
+            List<Integer> retries = new ArrayList<Integer>(lines.size());
+            for (Line line : lines) {
+                if (host == null || line.isFor(host)) {
+                    commands.add(host != null && inventory != null ? expand(line.command, inventory.vars(host))
+                            : line.command);
+                    retries.add(line.retries);
+                }
+            }
+            if (commands.isEmpty()) {
+                continue;
+            }
+            Step.Kind kind = lines.size() == 1 && commands.size() == 1 ? Step.Kind.COMMAND : Step.Kind.CONCURRENT;
+            steps.add(new Step(kind, index, Collections.unmodifiableList(commands), retries, null));
+        }
+        return steps;
+    }
+
+    /**
+     * Splits off a <code>%host: </code>, <code>%@group: </code> or <code>%tag=name: </code> prefix, and
+     * then a <code>[retry=N] </code> prefix. A line starting with % without the colon and space after
+     * the host name is not run on any host.
+     *
+     * @throws IllegalArgumentException if the number of retries is not a number, or negative, or the
+     *                                  group is unknown.
+     */
+    private Line parseLine(final int index, final String cmd) {
+        if (!SXXParalized.isHostSpecificCommand(cmd)) {
+            return retryLine(index, cmd, null);
+        }
+        int end = cmd.indexOf(": ");
+        if (end < 0) {
+            return new Line(index, cmd, Collections.<String>emptySet(), 0);
+        }
+        return retryLine(index, cmd.substring(end + 2).trim(), select(index, cmd.substring(1, end)));
+    }
+
+    /**
+     * Resolves the hosts a line is for.
+     */
+    private Set<String> select(final int index, final String selector) {
+        if (selector.startsWith(GROUP_PREFIX)) {
+            Set<String> group = groups.get(selector.substring(GROUP_PREFIX.length()));
+            if (group == null) {
+                throw new IllegalArgumentException("Unknown host group '" + selector.substring(GROUP_PREFIX.length())
+                        + "' on line " + (index + 1));
+            }
+            return group;
+        }
+        if (selector.startsWith(TAG_PREFIX)) {
+            if (inventory == null) {
+                throw new IllegalArgumentException("Tags need an inventory, on line " + (index + 1));
+            }
+            return inventory.tagged(selector.substring(TAG_PREFIX.length()));
+        }
+        Set<String> hosts = new HashSet<String>();
+        hosts.add(selector);
+        return hosts;
+    }
+
+    /**
+     * Replaces <code>${key}</code> with the variable of the host. Unknown keys are left for the shell.
+     */
+    static String expand(final String command, final Map<String, String> vars) {
+        if (vars.isEmpty() || command.indexOf("${") < 0) {
+            return command;
+        }
+        StringBuilder expanded = new StringBuilder(command.length());
+        int from = 0;
+        int start;
+        while ((start = command.indexOf("${", from)) >= 0) {
+            int end = command.indexOf('}', start);
+            if (end < 0) {
+                break;
+            }
+            String value = vars.get(command.substring(start + 2, end));
+            expanded.append(command, from, start).append(value != null ? value : command.substring(start, end + 1));
+            from = end + 1;
+        }
+        return expanded.append(command, from, command.length()).toString();
+    }
+
+    private static Line retryLine(final int index, final String cmd, final Set<String> hosts) {
+        if (!cmd.startsWith(RETRY_PREFIX)) {
+            return new Line(index, cmd, hosts, 0);
+        }
+        int end = cmd.indexOf(']');
+        if (end < 0) {
+            throw new IllegalArgumentException("Missing ] in retry marker on line " + (index + 1) + ": " + cmd);
+        }
+        String count = cmd.substring(RETRY_PREFIX.length(), end).trim();
+        int retries;
+        try {
+            retries = Integer.parseInt(count);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid retry count '" + count + "' on line " + (index + 1), ex);
+        }
+        if (retries < 0) {
+            throw new IllegalArgumentException("Retry count can not be negative on line " + (index + 1));
+        }
+        return new Line(index, cmd.substring(end + 1).trim(), hosts, retries);
+    }
+}
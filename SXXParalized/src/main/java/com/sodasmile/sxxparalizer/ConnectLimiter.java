@@ -0,0 +1,129 @@
+package com.sodasmile.sxxparalizer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Limits the rate of new connections, to keep a large run from opening all its connections at the
+ * same moment. ssh daemons drop unauthenticated connections above MaxStartups, and shared login
+ * backends slow down under a storm of logins, so spreading the connects out makes the run finish
+ * sooner. Pass it in {@link SXXParameters#connectLimiter(ConnectLimiter)}, one limiter is shared by
+ * all hosts of a run, and may be shared between runs.
+ * <p/>
+ * Limits are token buckets: connects are let through at the given rate, with up to burst connects
+ * at once after a quiet period. There is a limit for all connects, and optionally one for the
+ * connects through each jump host. Every connect attempt takes a token, also retries.
+ *
+ * @author anderssm
+ */
+public class ConnectLimiter {
+
+    private final Bucket all;
+    private double jumpHostRate;
+    private int jumpHostBurst;
+    private final Map<String, Bucket> jumpHosts = new HashMap<String, Bucket>();
+
+    /**
+     * @param connectsPerSecond connects let through per second for all hosts, 0 for no limit.
+     * @param burst             connects let through at once after a quiet period, at least 1.
+     */
+    public ConnectLimiter(final double connectsPerSecond, final int burst) {
+        this.all = connectsPerSecond > 0 ? new Bucket(connectsPerSecond, burst) : null;
+    }
+
+    /**
+     * Also limits the connects through each jump host, in addition to the limit for all connects.
+     *
+     * @param connectsPerSecond connects let through per second for each jump host.
+     * @param burst             connects let through at once after a quiet period, at least 1.
+     */
+    public synchronized ConnectLimiter perJumpHost(final double connectsPerSecond, final int burst) {
+        if (connectsPerSecond <= 0) {
+            throw new IllegalArgumentException("Connects per second must be positive, was " + connectsPerSecond);
+        }
+        checkBurst(burst);
+        this.jumpHostRate = connectsPerSecond;
+        this.jumpHostBurst = burst;
+        jumpHosts.clear();
+        return this;
+    }
+
+    /**
+     * Waits until a connect is allowed.
+     *
+     * @param jumpHost jump host the connection goes through, null for direct connections.
+     * @return nanoseconds waited.
+     * @throws InterruptedException if interrupted while waiting, the token is not given back.
+     */
+    long acquire(final String jumpHost) throws InterruptedException {
+        long wait = all != null ? all.reserve() : 0;
+        Bucket bucket = jumpHostBucket(jumpHost);
+        if (bucket != null) {
+            wait = Math.max(wait, bucket.reserve());
+        }
+        if (wait > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+        return wait;
+    }
+
+    private synchronized Bucket jumpHostBucket(final String jumpHost) {
+        if (jumpHost == null || jumpHostRate <= 0) {
+            return null;
+        }
+        Bucket bucket = jumpHosts.get(jumpHost);
+        if (bucket == null) {
+            bucket = new Bucket(jumpHostRate, jumpHostBurst);
+            jumpHosts.put(jumpHost, bucket);
+        }
+        return bucket;
+    }
+
+    private static void checkBurst(final int burst) {
+        if (burst < 1) {
+            throw new IllegalArgumentException("Burst must be at least 1, was " + burst);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (all != null ? all.toString() : "no limit") + (jumpHostRate > 0 ? ", " + jumpHostRate
+                + " connects/s, burst " + jumpHostBurst + " per jump host" : "");
+    }
+
+    /**
+     * A token bucket. Tokens may go negative, the callers then wait their turn without holding the lock.
+     */
+    private static final class Bucket {
+
+        private final double tokensPerNano;
+        private final int burst;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        Bucket(final double tokensPerSecond, final int burst) {
+            checkBurst(burst);
+            this.tokensPerNano = tokensPerSecond / 1e9;
+            this.burst = burst;
+            this.tokens = burst;
+        }
+
+        /**
+         * Takes a token.
+         *
+         * @return nanoseconds to wait before the token is there.
+         */
+        synchronized long reserve() {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - last) * tokensPerNano);
+            last = now;
+            tokens--;
+            return tokens >= 0 ? 0 : (long) (-tokens / tokensPerNano);
+        }
+
+        @Override
+        public String toString() {
+            return tokensPerNano * 1e9 + " connects/s, burst " + burst;
+        }
+    }
+}
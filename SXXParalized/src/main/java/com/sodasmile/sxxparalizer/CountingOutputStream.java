@@ -0,0 +1,38 @@
+package com.sodasmile.sxxparalizer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Passes writes on to the target stream, and counts the bytes written.
+ *
+ * @author anderssm
+ */
+class CountingOutputStream extends FilterOutputStream {
+
+    private volatile long count;
+
+    CountingOutputStream(final OutputStream target) {
+        super(target);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        out.write(b);
+        count++;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        out.write(b, off, len);
+        count += len;
+    }
+
+    /**
+     * @return number of bytes written.
+     */
+    long getCount() {
+        return count;
+    }
+}
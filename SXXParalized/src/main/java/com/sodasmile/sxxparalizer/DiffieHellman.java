@@ -0,0 +1,67 @@
+package com.sodasmile.sxxparalizer;
+
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import javax.crypto.KeyAgreement;
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHParameterSpec;
+import javax.crypto.spec.DHPublicKeySpec;
+
+import com.jcraft.jsch.DH;
+
+/**
+ * Diffie-Hellman key agreement for JSch, replacing com.jcraft.jsch.jce.DH of JSch 0.1.42.
+ * <p/>
+ * Newer JVMs return the shared secret padded to the length of the prime. JSch 0.1.42 hashes the
+ * secret as returned, so when it starts with a zero byte, about one in 256 connections, the exchange
+ * hash differs from the server's and the connection fails with "verify: false". This class returns
+ * the secret without leading zeros. Used by {@link SXXExecutor} for all sessions.
+ *
+ * @author anderssm
+ */
+public class DiffieHellman implements DH {
+
+    private BigInteger p;
+    private BigInteger g;
+    private BigInteger f;
+    private byte[] e;
+    private byte[] k;
+    private KeyAgreement agreement;
+
+    public void init() throws Exception {
+        agreement = KeyAgreement.getInstance("DH");
+    }
+
+    public byte[] getE() throws Exception {
+        if (e == null) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("DH");
+            generator.initialize(new DHParameterSpec(p, g));
+            KeyPair pair = generator.generateKeyPair();
+            agreement.init(pair.getPrivate());
+            e = ((DHPublicKey) pair.getPublic()).getY().toByteArray();
+        }
+        return e;
+    }
+
+    public byte[] getK() throws Exception {
+        if (k == null) {
+            agreement.doPhase(KeyFactory.getInstance("DH").generatePublic(new DHPublicKeySpec(f, p, g)), true);
+            k = new BigInteger(1, agreement.generateSecret()).toByteArray();
+        }
+        return k;
+    }
+
+    public void setP(final byte[] p) {
+        this.p = new BigInteger(p);
+    }
+
+    public void setG(final byte[] g) {
+        this.g = new BigInteger(g);
+    }
+
+    public void setF(final byte[] f) {
+        this.f = new BigInteger(f);
+    }
+}
@@ -0,0 +1,25 @@
+package com.sodasmile.sxxparalizer;
+
+import java.util.List;
+
+/**
+ * Strategy for running the per host command runners of {@link SXXParalized}.
+ * Use {@link ExecutionEngines} to get hold of the available implementations.
+ *
+ * @author anderssm
+ */
+public interface ExecutionEngine {
+
+    /**
+     * Runs all tasks, and returns when all of them are done.
+     *
+     * @param tasks tasks to run, typically one per host.
+     * @throws InterruptedException if interrupted while waiting for the tasks to finish.
+     */
+    void runAll(List<? extends Runnable> tasks) throws InterruptedException;
+
+    /**
+     * @return maximum number of tasks running at the same time, {@link Integer#MAX_VALUE} if unbounded.
+     */
+    int maxConcurrency();
+}
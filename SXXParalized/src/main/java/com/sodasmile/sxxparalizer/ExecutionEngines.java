@@ -0,0 +1,227 @@
+package com.sodasmile.sxxparalizer;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Factory for the {@link ExecutionEngine}s shipped with SXXParalizer.
+ * <ul>
+ * <li>{@link #threadPerHost()} starts one platform thread per host, all at once. This is the default.</li>
+ * <li>{@link #fixedPool(int)} runs the hosts on a fixed number of platform threads.</li>
+ * <li>{@link #virtualThreads(int)} runs every host on its own virtual thread, requires Java 21 or newer.</li>
+ * </ul>
+ * Note that barriers need all hosts to be running at the same time, so a bounded engine can only
+ * be used with scripts without barriers, or with at least as many slots as there are hosts.
+ *
+ * @author anderssm
+ */
+public final class ExecutionEngines {
+
+    /**
+     * Value for maxConcurrency meaning no limit.
+     */
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    private ExecutionEngines() {
+    }
+
+    /**
+     * @return engine starting one platform thread per task, all at once.
+     */
+    public static ExecutionEngine threadPerHost() {
+        return new ThreadPerHostEngine();
+    }
+
+    /**
+     * @param threads number of platform threads, and thereby the maximum number of hosts running at the same time.
+     * @return engine running the tasks on a fixed size thread pool.
+     */
+    public static ExecutionEngine fixedPool(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread pool size must be at least 1, was " + threads);
+        }
+        return new FixedPoolEngine(threads);
+    }
+
+    /**
+     * @param maxConcurrency maximum number of hosts running at the same time, {@link #UNBOUNDED} for no limit.
+     * @return engine running every task on its own virtual thread.
+     * @throws UnsupportedOperationException if the running JVM does not support virtual threads.
+     */
+    public static ExecutionEngine virtualThreads(final int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("Max concurrency must be at least 1, was " + maxConcurrency);
+        }
+        return new VirtualThreadEngine(maxConcurrency);
+    }
+
+    /**
+     * Returns an engine of the same kind as the given one, running at most maxConcurrency tasks at the same time.
+     *
+     * @param engine         engine to limit.
+     * @param maxConcurrency max number of tasks to run at the same time.
+     * @return the engine itself if it is already limited enough, otherwise a new engine.
+     */
+    static ExecutionEngine limit(final ExecutionEngine engine, final int maxConcurrency) {
+        if (engine.maxConcurrency() <= maxConcurrency) {
+            return engine;
+        }
+        if (engine instanceof VirtualThreadEngine) {
+            return virtualThreads(maxConcurrency);
+        }
+        return fixedPool(maxConcurrency);
+    }
+
+    /**
+     * @return true if the running JVM supports virtual threads.
+     */
+    public static boolean virtualThreadsSupported() {
+        return newVirtualThreadPerTaskExecutorMethod() != null;
+    }
+
+    private static Method newVirtualThreadPerTaskExecutorMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The original behaviour, one new thread per task.
+     */
+    private static class ThreadPerHostEngine implements ExecutionEngine {
+
+        public void runAll(final List<? extends Runnable> tasks) throws InterruptedException {
+            List<Thread> threads = new ArrayList<Thread>(tasks.size());
+            for (Runnable task : tasks) {
+                threads.add(new Thread(task));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        public int maxConcurrency() {
+            return UNBOUNDED;
+        }
+    }
+
+    /**
+     * Base class for engines submitting the tasks to an {@link ExecutorService}, optionally
+     * limiting the number of tasks running at the same time.
+     */
+    private abstract static class ExecutorServiceEngine implements ExecutionEngine {
+
+        private final int maxConcurrency;
+
+        ExecutorServiceEngine(final int maxConcurrency) {
+            this.maxConcurrency = maxConcurrency;
+        }
+
+        abstract ExecutorService newExecutorService(int taskCount);
+
+        /**
+         * @return true if the executor service itself does not limit concurrency.
+         */
+        abstract boolean needsPermits();
+
+        public void runAll(final List<? extends Runnable> tasks) throws InterruptedException {
+            ExecutorService executorService = newExecutorService(tasks.size());
+            try {
+                final Semaphore permits = needsPermits() && maxConcurrency != UNBOUNDED
+                        ? new Semaphore(maxConcurrency) : null;
+                List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+                for (final Runnable task : tasks) {
+                    futures.add(executorService.submit(new Runnable() {
+                        public void run() {
+                            if (permits == null) {
+                                task.run();
+                                return;
+                            }
+                            permits.acquireUninterruptibly();
+                            try {
+                                task.run();
+                            } finally {
+                                permits.release();
+                            }
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException ex) {
+                        Logger.getLogger(ExecutionEngines.class.getName()).log(Level.SEVERE, null, ex.getCause());
+                    }
+                }
+            } finally {
+                executorService.shutdownNow();
+            }
+        }
+
+        public int maxConcurrency() {
+            return maxConcurrency;
+        }
+    }
+
+    private static class FixedPoolEngine extends ExecutorServiceEngine {
+
+        FixedPoolEngine(final int threads) {
+            super(threads);
+        }
+
+        @Override
+        ExecutorService newExecutorService(final int taskCount) {
+            return Executors.newFixedThreadPool(Math.max(1, Math.min(maxConcurrency(), taskCount)));
+        }
+
+        @Override
+        boolean needsPermits() {
+            return false;
+        }
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor() reflectively, so the project still builds
+     * and runs on JVMs without virtual threads.
+     */
+    private static class VirtualThreadEngine extends ExecutorServiceEngine {
+
+        private final Method factory;
+
+        VirtualThreadEngine(final int maxConcurrency) {
+            super(maxConcurrency);
+            factory = newVirtualThreadPerTaskExecutorMethod();
+            if (factory == null) {
+                throw new UnsupportedOperationException("Virtual threads require Java 21 or newer, running "
+                        + System.getProperty("java.version"));
+            }
+        }
+
+        @Override
+        ExecutorService newExecutorService(final int taskCount) {
+            try {
+                return (ExecutorService) factory.invoke(null);
+            } catch (Exception e) {
+                throw new IllegalStateException("Unable to create virtual thread executor", e);
+            }
+        }
+
+        @Override
+        boolean needsPermits() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.sodasmile.sxxparalizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Copies a local file to many hosts.
+ * <p/>
+ * Without relay, the file is uploaded from this machine to every host, maxLocalUploads hosts at a time.
+ * <p/>
+ * With relay, hosts that have got the file pass it on: every finished host runs scp to copy it on to
+ * a host still waiting, so the number of hosts holding the file doubles every round, and total time
+ * grows with log(hosts) instead of linearly. This requires the hosts to be able to ssh to each other
+ * without a password, as the same user, for instance through agent forwarding or a shared key. If a
+ * relayed copy fails, that host gets the file uploaded from this machine instead.
+ *
+ * @author anderssm
+ */
+public class FileDistributor {
+
+    /**
+     * Source of transfers made from this machine.
+     */
+    private static final String LOCAL = null;
+
+    private final SXXParameters parameters;
+    private boolean relay;
+    private int maxLocalUploads;
+
+    /**
+     * @param parameters connection parameters, the host is set per host.
+     */
+    public FileDistributor(final SXXParameters parameters) {
+        this.parameters = parameters;
+    }
+
+    /**
+     * Lets hosts that have got the file copy it on to other hosts.
+     */
+    public FileDistributor relay(final boolean relay) {
+        this.relay = relay;
+        return this;
+    }
+
+    /**
+     * Max number of uploads from this machine at the same time. Default is 1 with relay, all hosts without.
+     */
+    public FileDistributor maxLocalUploads(final int maxLocalUploads) {
+        this.maxLocalUploads = maxLocalUploads;
+        return this;
+    }
+
+    /**
+     * Copies the file to all hosts, and returns when all copies are done.
+     *
+     * @param file       local file to copy.
+     * @param remotePath path of the file on the hosts, the same on all hosts.
+     * @param hosts      hosts to copy the file to.
+     * @return one result per host, in the same order as the hosts.
+     * @throws InterruptedException if interrupted while waiting for copies to finish.
+     */
+    public List<HostResult> distribute(final File file, final String remotePath, final String[] hosts)
+            throws InterruptedException {
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("No such file: " + file);
+        }
+        Map<String, HostResult> results = new LinkedHashMap<String, HostResult>();
+        Map<String, SXXExecutor> executors = new HashMap<String, SXXExecutor>();
+        for (String host : hosts) {
+            results.put(host, new HostResult(host));
+            parameters.host(host);
+            executors.put(host, new SXXExecutor.SXXExecutorBuilder(parameters).build());
+        }
+
+        LinkedList<String> pending = new LinkedList<String>(results.keySet());
+        LinkedList<String> fromLocalOnly = new LinkedList<String>();
+        LinkedList<String> freeSources = new LinkedList<String>();
+        int localFree = maxLocalUploads > 0 ? maxLocalUploads : (relay ? 1 : hosts.length);
+        int inFlight = 0;
+
+        BlockingQueue<Transfer> done = new LinkedBlockingQueue<Transfer>();
+        ExecutorService transfers = Executors.newFixedThreadPool(Math.max(1, hosts.length));
+        try {
+            while (!pending.isEmpty() || !fromLocalOnly.isEmpty() || inFlight > 0) {
+                while (localFree > 0 && (!fromLocalOnly.isEmpty() || !pending.isEmpty())) {
+                    String target = !fromLocalOnly.isEmpty() ? fromLocalOnly.removeFirst() : started(pending, results);
+                    start(transfers, done, new Transfer(LOCAL, target, file, remotePath, executors));
+                    localFree--;
+                    inFlight++;
+                }
+                while (!freeSources.isEmpty() && !pending.isEmpty()) {
+                    start(transfers, done, new Transfer(freeSources.removeFirst(), started(pending, results), file,
+                            remotePath, executors));
+                    inFlight++;
+                }
+                if (inFlight == 0) {
+                    break;
+                }
+
+                Transfer transfer = done.take();
+                inFlight--;
+                if (transfer.source == LOCAL) {
+                    localFree++;
+                } else {
+                    freeSources.add(transfer.source);
+                }
+                if (transfer.failure == null) {
+                    results.get(transfer.target).addCommandResult(transfer.result());
+                    results.get(transfer.target).finished();
+                    if (relay) {
+                        freeSources.add(transfer.target);
+                    }
+                } else if (transfer.source != LOCAL) {
+                    // Only the upload from here is recorded, as only the last attempt of a retried command.
+                    SXXLog.shared().warn(transfer.target, "Relay from {} failed, uploading from here instead: {}",
+                            transfer.source, transfer.failure);
+                    fromLocalOnly.add(transfer.target);
+                } else {
+                    results.get(transfer.target).addCommandResult(transfer.result());
+                    results.get(transfer.target).failed(transfer.failure);
+                    results.get(transfer.target).finished();
+                }
+            }
+        } finally {
+            transfers.shutdownNow();
+            for (SXXExecutor executor : executors.values()) {
+                executor.disconnect();
+            }
+        }
+        return new ArrayList<HostResult>(results.values());
+    }
+
+    /**
+     * @return scp command copying the file from the host running it to the target. A target given as
+     * host:port is passed as host and the port as an option, scp does not take host:port.
+     */
+    static String relayCommand(final String user, final String address, final int port, final String path) {
+        return "scp -B -q -P " + port + " " + SXXExecutor.shellQuote(path) + " "
+                + SXXExecutor.shellQuote(user + "@" + address + ":" + path);
+    }
+
+    /**
+     * Takes the next host to copy to, and marks it as started.
+     */
+    private static String started(final LinkedList<String> pending, final Map<String, HostResult> results) {
+        String target = pending.removeFirst();
+        results.get(target).started();
+        return target;
+    }
+
+    private void start(final ExecutorService transfers, final BlockingQueue<Transfer> done, final Transfer transfer) {
+        transfers.submit(new Runnable() {
+            public void run() {
+                transfer.run();
+                done.add(transfer);
+            }
+        });
+    }
+
+    /**
+     * One copy of the file to one host, either from this machine or from another host.
+     */
+    private static class Transfer implements Runnable {
+
+        private final String source;
+        private final String target;
+        private final File file;
+        private final String remotePath;
+        private final Map<String, SXXExecutor> executors;
+        private String command;
+        private long start;
+        private long end;
+        private Exception failure;
+
+        Transfer(final String source, final String target, final File file, final String remotePath,
+                 final Map<String, SXXExecutor> executors) {
+            this.source = source;
+            this.target = target;
+            this.file = file;
+            this.remotePath = remotePath;
+            this.executors = executors;
+        }
+
+        public void run() {
+            start = System.currentTimeMillis();
+            try {
+                if (source == LOCAL) {
+                    command = "upload " + file + " to " + remotePath;
+                    executors.get(target).upload(file, remotePath);
+                } else {
+                    String path = remotePath.endsWith("/") ? remotePath + file.getName() : remotePath;
+                    SXXExecutor sourceExecutor = executors.get(source);
+                    SXXExecutor targetExecutor = executors.get(target);
+                    command = relayCommand(sourceExecutor.getUsername(), targetExecutor.getAddress(),
+                            targetExecutor.getPort(), path);
+                    ByteArrayOutputStream output = new ByteArrayOutputStream();
+                    int ec = sourceExecutor.sendCommand(command, output, output);
+                    if (ec != 0) {
+                        failure = new SXXException("Relay from " + source + " failed with exit status " + ec
+                                + ": " + output.toString().trim());
+                    }
+                }
+            } catch (Exception ex) {
+                failure = ex;
+            }
+            end = System.currentTimeMillis();
+            SXXLog.shared().info(target, "{} {} from {} in {} ms", failure == null ? "Got" : "Failed to get",
+                    file.getName(), source == LOCAL ? "here" : source, end - start);
+        }
+
+        CommandResult result() {
+            return new CommandResult(command, failure == null ? 0 : -1, "", "", false, start, end, failure);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.sodasmile.sxxparalizer;
+
+/**
+ * Histogram of non-negative values with a fixed memory use, for percentiles of timings and sizes.
+ * <p/>
+ * Values are counted in buckets growing exponentially, with 8 buckets per power of two, so a
+ * percentile is never more than 12.5% above the real value. Sum, min and max are exact.
+ *
+ * @author anderssm
+ */
+public class Histogram implements HistogramMBean {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] buckets = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /**
+     * @param value value to add, negative values are counted as 0.
+     */
+    public synchronized void record(final long value) {
+        long v = Math.max(0, value);
+        buckets[bucket(v)]++;
+        count++;
+        sum += v;
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getSum() {
+        return sum;
+    }
+
+    public synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param percent percentile to get, between 0 and 100.
+     * @return the smallest value at least the given percent of the values are below or equal to, 0 if empty.
+     */
+    public synchronized long getPercentile(final double percent) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percent / 100.0));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.max(min, Math.min(max, upperBound(i)));
+            }
+        }
+        return max;
+    }
+
+    public long get50thPercentile() {
+        return getPercentile(50);
+    }
+
+    public long get90thPercentile() {
+        return getPercentile(90);
+    }
+
+    public long get99thPercentile() {
+        return getPercentile(99);
+    }
+
+    static int bucket(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    static long upperBound(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+        long lower = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "count " + count + ", mean " + Math.round(getMean()) + ", p50 " + getPercentile(50)
+                + ", p99 " + getPercentile(99) + ", max " + max;
+    }
+}
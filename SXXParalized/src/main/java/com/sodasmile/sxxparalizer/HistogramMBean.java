@@ -0,0 +1,25 @@
+package com.sodasmile.sxxparalizer;
+
+/**
+ * JMX view of a {@link Histogram}. Values are in the unit of the metric, nanoseconds or bytes.
+ *
+ * @author anderssm
+ */
+public interface HistogramMBean {
+
+    long getCount();
+
+    long getSum();
+
+    long getMin();
+
+    long getMax();
+
+    double getMean();
+
+    long get50thPercentile();
+
+    long get90thPercentile();
+
+    long get99thPercentile();
+}
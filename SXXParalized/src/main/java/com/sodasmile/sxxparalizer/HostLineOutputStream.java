@@ -0,0 +1,79 @@
+package com.sodasmile.sxxparalizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Output stream logging command output line by line, as INFO records of the host and step.
+ * Only the current line is kept in memory, lines longer than {@link #MAX_LINE_LENGTH} are printed in pieces.
+ *
+ * @author anderssm
+ */
+class HostLineOutputStream extends OutputStream {
+
+    /**
+     * Max number of bytes kept before printing an unfinished line.
+     */
+    static final int MAX_LINE_LENGTH = 8192;
+
+    private final SXXLog log;
+    private final String host;
+    private final int step;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+
+    /**
+     * @param log  log to write lines to.
+     * @param host host the output comes from.
+     * @param step index of the step of the script running the command.
+     */
+    HostLineOutputStream(final SXXLog log, final String host, final int step) {
+        this.log = log;
+        this.host = host;
+        this.step = step;
+    }
+
+    @Override
+    public synchronized void write(final int b) {
+        if (b == '\n') {
+            printLine();
+            return;
+        }
+        line.write(b);
+        if (line.size() >= MAX_LINE_LENGTH) {
+            printLine();
+        }
+    }
+
+    @Override
+    public synchronized void write(final byte[] b, final int off, final int len) {
+        int start = off;
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            if (b[i] == '\n') {
+                line.write(b, start, i - start);
+                printLine();
+                start = i + 1;
+            } else if (line.size() + i - start + 1 >= MAX_LINE_LENGTH) {
+                line.write(b, start, i - start + 1);
+                printLine();
+                start = i + 1;
+            }
+        }
+        line.write(b, start, end - start);
+    }
+
+    /**
+     * Prints what is left of an unfinished line.
+     */
+    @Override
+    public synchronized void close() {
+        if (line.size() > 0) {
+            printLine();
+        }
+    }
+
+    private void printLine() {
+        log.log(SXXLog.Level.INFO, host, step, null, line.toString());
+        line.reset();
+    }
+}
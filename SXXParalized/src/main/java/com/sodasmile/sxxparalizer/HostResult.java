@@ -0,0 +1,123 @@
+package com.sodasmile.sxxparalizer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of running the commands on one host, as returned by {@link SXXParalized#runCommands()}.
+ * Commands skipped because they were meant for other hosts are not included.
+ *
+ * @author anderssm
+ */
+public class HostResult {
+
+    private final String host;
+    private final List<CommandResult> commandResults = new ArrayList<CommandResult>();
+    private long startTime;
+    private long endTime;
+    private Throwable failure;
+    private int connectAttempts;
+
+    HostResult(final String host) {
+        this.host = host;
+    }
+
+    void started() {
+        startTime = System.currentTimeMillis();
+    }
+
+    void finished() {
+        endTime = System.currentTimeMillis();
+    }
+
+    void addCommandResult(final CommandResult result) {
+        commandResults.add(result);
+    }
+
+    void connectAttempts(final int connectAttempts) {
+        this.connectAttempts = connectAttempts;
+    }
+
+    void failed(final Throwable cause) {
+        this.failure = cause;
+    }
+
+    /**
+     * @return false if the host was never started, for instance because a rolling run was stopped.
+     */
+    public boolean wasRun() {
+        return startTime != 0;
+    }
+
+    /**
+     * @return the host.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return results of the commands run on the host, in the order they were run.
+     */
+    public List<CommandResult> getCommandResults() {
+        return Collections.unmodifiableList(commandResults);
+    }
+
+    /**
+     * @return time the first command was started, in milliseconds since the epoch.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return time the host was done, in milliseconds since the epoch.
+     */
+    public long getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * @return milliseconds the host took, including time spent waiting at barriers.
+     */
+    public long getDuration() {
+        return endTime - startTime;
+    }
+
+    /**
+     * @return number of times connecting to the host was tried, more than 1 if connects were retried
+     * or the connection was lost, 0 if the host was never connected to.
+     */
+    public int getConnectAttempts() {
+        return connectAttempts;
+    }
+
+    /**
+     * @return exception that stopped the host from running the rest of its commands, or null.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return true if all commands ran on the host and exited with status 0.
+     */
+    public boolean isSuccess() {
+        if (failure != null) {
+            return false;
+        }
+        for (CommandResult result : commandResults) {
+            if (!result.isSuccess()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return host + ": " + (isSuccess() ? "OK" : "FAILED") + ", " + commandResults.size() + " commands in "
+                + getDuration() + " ms" + (failure != null ? " (" + failure + ")" : "");
+    }
+}
@@ -0,0 +1,160 @@
+package com.sodasmile.sxxparalizer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps a {@link Histogram} per metric and host, and per metric and command, in memory.
+ * <p/>
+ * Commands expanded with host variables differ per host, so only the first commands of each metric get
+ * a histogram of their own. Values of later commands are recorded under {@link #OTHER_COMMANDS}.
+ * <p/>
+ * {@link #report()} lists the hosts and commands with the highest total first, to show which hosts
+ * or steps drive the total run time.
+ *
+ * @author anderssm
+ */
+public class InMemoryMetrics implements Metrics {
+
+    /**
+     * Default number of commands with a histogram of their own, per metric.
+     */
+    public static final int DEFAULT_MAX_COMMANDS = 100;
+
+    /**
+     * Key of the histogram of the commands beyond the maximum.
+     */
+    public static final String OTHER_COMMANDS = "(other commands)";
+
+    private final int maxCommands;
+    private final ConcurrentMap<String, ConcurrentMap<String, Histogram>> byHost =
+            new ConcurrentHashMap<String, ConcurrentMap<String, Histogram>>();
+    private final ConcurrentMap<String, ConcurrentMap<String, Histogram>> byCommand =
+            new ConcurrentHashMap<String, ConcurrentMap<String, Histogram>>();
+
+    public InMemoryMetrics() {
+        this(DEFAULT_MAX_COMMANDS);
+    }
+
+    /**
+     * @param maxCommands number of commands with a histogram of their own, per metric.
+     */
+    public InMemoryMetrics(final int maxCommands) {
+        this.maxCommands = maxCommands;
+    }
+
+    public void record(final String metric, final String host, final String command, final long value) {
+        histogram(byHost, metric, host, false).record(value);
+        if (command != null) {
+            histogram(byCommand, metric, command, true).record(value);
+        }
+    }
+
+    /**
+     * @return the histogram of the metric on the host, null if nothing has been recorded.
+     */
+    public Histogram getHistogram(final String metric, final String host) {
+        Map<String, Histogram> histograms = byHost.get(metric);
+        return histograms == null ? null : histograms.get(host);
+    }
+
+    /**
+     * @return histograms of the metric per host, with the highest total first.
+     */
+    public Map<String, Histogram> getHistogramsByHost(final String metric) {
+        return sortedBySum(byHost.get(metric));
+    }
+
+    /**
+     * @return histograms of the metric per command, over all hosts, with the highest total first.
+     */
+    public Map<String, Histogram> getHistogramsByCommand(final String metric) {
+        return sortedBySum(byCommand.get(metric));
+    }
+
+    /**
+     * @return a summary of all metrics recorded, per host and per command.
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        for (String metric : new String[]{CONNECT, HANDSHAKE, CHANNEL_OPEN, COMMAND, BYTES_RECEIVED, BYTES_SENT,
+                BARRIER_WAIT}) {
+            appendSection(report, metric + " per host", getHistogramsByHost(metric));
+            appendSection(report, metric + " per command", getHistogramsByCommand(metric));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Called when the first value of a metric is recorded for a host or command. Subclasses can
+     * override this to publish the histogram.
+     *
+     * @param metric    name of the metric.
+     * @param key       host or command.
+     * @param isCommand true if key is a command, false if it is a host.
+     * @return a new, empty histogram.
+     */
+    protected Histogram newHistogram(final String metric, final String key, final boolean isCommand) {
+        return new Histogram();
+    }
+
+    private Histogram histogram(final ConcurrentMap<String, ConcurrentMap<String, Histogram>> histograms,
+                                final String metric, final String key, final boolean isCommand) {
+        ConcurrentMap<String, Histogram> perKey = histograms.get(metric);
+        if (perKey == null) {
+            histograms.putIfAbsent(metric, new ConcurrentHashMap<String, Histogram>());
+            perKey = histograms.get(metric);
+        }
+        Histogram histogram = perKey.get(key);
+        if (histogram == null) {
+            synchronized (perKey) {
+                histogram = perKey.get(key);
+                if (histogram == null) {
+                    String bounded = isCommand && perKey.size() >= maxCommands ? OTHER_COMMANDS : key;
+                    histogram = perKey.get(bounded);
+                    if (histogram == null) {
+                        histogram = newHistogram(metric, bounded, isCommand);
+                        perKey.put(bounded, histogram);
+                    }
+                }
+            }
+        }
+        return histogram;
+    }
+
+    private static Map<String, Histogram> sortedBySum(final Map<String, Histogram> histograms) {
+        if (histograms == null) {
+            return Collections.emptyMap();
+        }
+        List<Map.Entry<String, Histogram>> entries = new ArrayList<Map.Entry<String, Histogram>>(histograms.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Histogram>>() {
+            public int compare(final Map.Entry<String, Histogram> a, final Map.Entry<String, Histogram> b) {
+                long sumA = a.getValue().getSum();
+                long sumB = b.getValue().getSum();
+                return sumA > sumB ? -1 : (sumA == sumB ? 0 : 1);
+            }
+        });
+        Map<String, Histogram> sorted = new LinkedHashMap<String, Histogram>();
+        for (Map.Entry<String, Histogram> entry : entries) {
+            sorted.put(entry.getKey(), entry.getValue());
+        }
+        return sorted;
+    }
+
+    private static void appendSection(final StringBuilder report, final String title,
+                                      final Map<String, Histogram> histograms) {
+        if (histograms.isEmpty()) {
+            return;
+        }
+        report.append(title).append(":\n");
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            report.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.sodasmile.sxxparalizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport that hands every command to a {@link Transports.CommandHandler} in this JVM, for tests
+ * and simulated fleets. Nothing is started on any host, and there is no network.
+ * <p/>
+ * Every command runs on its own thread. A handler throwing an exception is taken as a dropped
+ * connection: the command gets exit status -1 and the transport is disconnected until the next
+ * connect. Uploads are run as the command <code>cat &gt; remotePath</code> with the file as input.
+ *
+ * @author anderssm
+ */
+class InMemoryTransport implements Transport {
+
+    private static final ExecutorService HANDLERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(r, "sxx-in-memory");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String host;
+    private final Transports.CommandHandler handler;
+    private volatile boolean connected;
+
+    InMemoryTransport(final String host, final Transports.CommandHandler handler) {
+        this.host = host;
+        this.handler = handler;
+    }
+
+    public void connect() {
+        connected = true;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public Execution exec(final String command, final OutputStream stdout, final OutputStream stderr,
+                          final Runnable onExit) throws IOException {
+        if (!connected) {
+            throw new IOException("Not connected to " + host);
+        }
+        HandlerExecution execution = new HandlerExecution(command, stdout, stderr, onExit);
+        execution.future = HANDLERS.submit(execution);
+        return execution;
+    }
+
+    public void upload(final File localFile, final String remotePath) throws IOException, InterruptedException {
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        Execution execution = exec("cat > " + SXXExecutor.shellQuote(remotePath), errors, errors, null);
+        try {
+            OutputStream in = execution.stdin();
+            InputStream file = new FileInputStream(localFile);
+            try {
+                byte[] buffer = new byte[8 * 1024];
+                int read;
+                while ((read = file.read(buffer)) >= 0) {
+                    in.write(buffer, 0, read);
+                }
+            } finally {
+                file.close();
+                in.close();
+            }
+            execution.await(0);
+        } finally {
+            execution.close();
+        }
+        if (execution.exitStatus() != 0) {
+            throw new IOException("Upload of " + localFile + " to " + host + ":" + remotePath
+                    + " failed with exit status " + execution.exitStatus() + ": " + errors.toString().trim());
+        }
+    }
+
+    public void close() {
+        connected = false;
+    }
+
+    /**
+     * A command run by the handler. The input is a pipe, opened before the handler starts.
+     */
+    private class HandlerExecution implements Execution, Runnable {
+
+        private final String command;
+        private final OutputStream stdout;
+        private final OutputStream stderr;
+        private final Runnable onExit;
+        private final PipedInputStream input = new PipedInputStream();
+        private final PipedOutputStream stdin;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile int exitStatus = -1;
+        private volatile Future<?> future;
+
+        HandlerExecution(final String command, final OutputStream stdout, final OutputStream stderr,
+                         final Runnable onExit) throws IOException {
+            this.command = command;
+            this.stdout = stdout;
+            this.stderr = stderr;
+            this.onExit = onExit;
+            this.stdin = new PipedOutputStream(input);
+        }
+
+        public void run() {
+            try {
+                exitStatus = handler.run(host, command, input, stdout, stderr);
+                stdout.flush();
+                stderr.flush();
+            } catch (Exception ex) {
+                connected = false;
+            } finally {
+                closeInput();
+                done.countDown();
+                if (onExit != null) {
+                    onExit.run();
+                }
+            }
+        }
+
+        public OutputStream stdin() {
+            return stdin;
+        }
+
+        /**
+         * Input not read by the handler is dropped, and further writes fail instead of blocking.
+         */
+        private void closeInput() {
+            try {
+                input.close();
+            } catch (IOException ignored) {
+                // Closing a pipe does not fail.
+            }
+        }
+
+        public boolean await(final long timeout) throws InterruptedException {
+            if (timeout <= 0) {
+                done.await();
+                return true;
+            }
+            return done.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        public int exitStatus() {
+            return exitStatus;
+        }
+
+        /**
+         * Interrupts the handler, for every signal.
+         */
+        public void signal(final String name) {
+            close();
+        }
+
+        public void close() {
+            if (!isDone() && future != null) {
+                future.cancel(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.sodasmile.sxxparalizer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hosts with their groups, tags, variables and login overrides, read once from an inventory file and
+ * indexed by group and tag. Set it with {@link SXXParalized#setInventory(Inventory)}.
+ * <p/>
+ * The file has one host per line, with optional <code>key=value</code> pairs after the host name, under
+ * <code>[group]</code> headers. Hosts before the first header are in no group. A host may be listed in
+ * several groups, its settings are merged. Blank lines and lines starting with # are ignored.
+ * <pre>
+ * [web]
+ * web1.example.com tags=frontend,eu role=primary
+ * web2.example.com port=2222 user=deploy
+ *
+ * [db]
+ * db1.example.com tags=db
+ * </pre>
+ * The keys port and user override the port and username of the {@link SXXParameters} for the host,
+ * tags is a comma separated list of tags, all other keys are variables. A host with a port is named
+ * <code>host:port</code>, in results and in <code>%host: </code> lines.
+ * <p/>
+ * In scripts, <code>%@group: </code> runs a line on the hosts of a group, <code>%tag=name: </code> on the
+ * hosts with a tag, and <code>${key}</code> is replaced by the variable of the host, if it has one.
+ *
+ * @author anderssm
+ */
+public final class Inventory {
+
+    private static final String PORT = "port";
+    private static final String USER = "user";
+    private static final String TAGS = "tags";
+
+    private final Set<String> hosts = new LinkedHashSet<String>();
+    private final Map<String, Set<String>> groups = new LinkedHashMap<String, Set<String>>();
+    private final Map<String, Set<String>> tags = new HashMap<String, Set<String>>();
+    private final Map<String, Map<String, String>> vars = new HashMap<String, Map<String, String>>();
+    private final Map<String, String> users = new HashMap<String, String>();
+
+    private Inventory() {
+    }
+
+    /**
+     * Reads an inventory file.
+     *
+     * @param file the inventory file.
+     * @return the inventory.
+     * @throws IOException              if the file can not be read.
+     * @throws IllegalArgumentException if a line can not be parsed.
+     */
+    public static Inventory load(final File file) throws IOException {
+        Reader reader = new FileReader(file);
+        try {
+            return parse(reader, file.getPath());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parses an inventory from text, see the class comment for the format.
+     *
+     * @throws IllegalArgumentException if a line can not be parsed.
+     */
+    public static Inventory parse(final String text) {
+        try {
+            return parse(new StringReader(text), "inventory");
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to read string", ex);
+        }
+    }
+
+    private static Inventory parse(final Reader reader, final String source) throws IOException {
+        Inventory inventory = new Inventory();
+        BufferedReader lines = new BufferedReader(reader);
+        Set<String> group = null;
+        String line;
+        for (int number = 1; (line = lines.readLine()) != null; number++) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            if (line.startsWith("[")) {
+                if (!line.endsWith("]") || line.length() == 2) {
+                    throw new IllegalArgumentException(source + ":" + number + ": invalid group header " + line);
+                }
+                String name = line.substring(1, line.length() - 1).trim();
+                group = inventory.groups.get(name);
+                if (group == null) {
+                    group = new LinkedHashSet<String>();
+                    inventory.groups.put(name, group);
+                }
+                continue;
+            }
+            String host = inventory.addHost(line.split("\\s+"), source + ":" + number);
+            if (group != null) {
+                group.add(host);
+            }
+        }
+        return inventory;
+    }
+
+    /**
+     * Adds a host line, and returns the name of the host.
+     */
+    private String addHost(final String[] fields, final String where) {
+        String name = fields[0];
+        Map<String, String> settings = new LinkedHashMap<String, String>();
+        for (int i = 1; i < fields.length; i++) {
+            int equals = fields[i].indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException(where + ": expected key=value, was " + fields[i]);
+            }
+            settings.put(fields[i].substring(0, equals), fields[i].substring(equals + 1));
+        }
+        String port = settings.remove(PORT);
+        if (port != null) {
+            if (!port.matches("\\d+")) {
+                throw new IllegalArgumentException(where + ": invalid port " + port);
+            }
+            name = name + ":" + port;
+        }
+        hosts.add(name);
+        String user = settings.remove(USER);
+        if (user != null) {
+            users.put(name, user);
+        }
+        String tagList = settings.remove(TAGS);
+        if (tagList != null) {
+            for (String tag : tagList.split(",")) {
+                if (tag.length() > 0) {
+                    Set<String> tagged = tags.get(tag);
+                    if (tagged == null) {
+                        tagged = new LinkedHashSet<String>();
+                        tags.put(tag, tagged);
+                    }
+                    tagged.add(name);
+                }
+            }
+        }
+        if (!settings.isEmpty()) {
+            Map<String, String> hostVars = vars.get(name);
+            if (hostVars == null) {
+                hostVars = new HashMap<String, String>();
+                vars.put(name, hostVars);
+            }
+            hostVars.putAll(settings);
+        }
+        return name;
+    }
+
+    /**
+     * @return all hosts, in the order they were first listed.
+     */
+    public String[] hosts() {
+        return hosts.toArray(new String[hosts.size()]);
+    }
+
+    /**
+     * @return names of all groups, in the order they were first listed.
+     */
+    public Set<String> groups() {
+        return Collections.unmodifiableSet(groups.keySet());
+    }
+
+    /**
+     * @param group name of a group.
+     * @return hosts in the group, empty if there is no such group.
+     */
+    public Set<String> group(final String group) {
+        return unmodifiable(groups.get(group));
+    }
+
+    /**
+     * @param tag a tag.
+     * @return hosts with the tag, empty if no host has it.
+     */
+    public Set<String> tagged(final String tag) {
+        return unmodifiable(tags.get(tag));
+    }
+
+    /**
+     * @param host a host of the inventory.
+     * @return variables of the host, empty if it has none.
+     */
+    public Map<String, String> vars(final String host) {
+        Map<String, String> hostVars = vars.get(host);
+        return hostVars != null ? Collections.unmodifiableMap(hostVars) : Collections.<String, String>emptyMap();
+    }
+
+    /**
+     * @param host a host of the inventory.
+     * @return username to log in to the host as, null to use the one of the parameters.
+     */
+    public String user(final String host) {
+        return users.get(host);
+    }
+
+    /**
+     * @return true if any host has variables.
+     */
+    boolean hasVars() {
+        return !vars.isEmpty();
+    }
+
+    private static Set<String> unmodifiable(final Set<String> hosts) {
+        return hosts != null ? Collections.unmodifiableSet(hosts) : Collections.<String>emptySet();
+    }
+
+    @Override
+    public String toString() {
+        return hosts.size() + " hosts in " + groups.size() + " groups";
+    }
+}
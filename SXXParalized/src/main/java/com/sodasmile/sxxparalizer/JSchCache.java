@@ -0,0 +1,101 @@
+package com.sodasmile.sxxparalizer;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process wide cache of configured {@link JSch} instances, one per combination of keyfile, passphrase
+ * and known hosts file. Each keyfile is read and decrypted, and each known hosts file parsed, only once
+ * instead of once per host. A JSch instance is built anew when one of its files has changed on disk.
+ * <p/>
+ * JSch instances are safe to share between sessions, identities and known hosts are synchronized internally.
+ *
+ * @author anderssm
+ */
+final class JSchCache {
+
+    private static final JSchCache SHARED = new JSchCache();
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * @return the cache shared by all executors.
+     */
+    static JSchCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Gets a JSch instance with the given identity and known hosts loaded.
+     *
+     * @param keyfile    path to private key, or null.
+     * @param passphrase passphrase for the private key, or null.
+     * @param knownHosts path to known hosts file, or null to not check host keys against a file.
+     * @return a configured JSch instance, shared with other callers using the same files.
+     * @throws JSchException if the keyfile or known hosts file can not be read.
+     */
+    synchronized JSch get(final String keyfile, final String passphrase, final String knownHosts) throws JSchException {
+        String key = keyfile + "\u0000" + passphrase + "\u0000" + knownHosts;
+        Entry entry = entries.get(key);
+        if (entry == null || entry.isStale()) {
+            entry = new Entry(keyfile, passphrase, knownHosts);
+            entries.put(key, entry);
+        }
+        return entry.jsch;
+    }
+
+    /**
+     * Forgets all cached instances.
+     */
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    private static class Entry {
+
+        private final JSch jsch;
+        private final FileStamp keyfileStamp;
+        private final FileStamp knownHostsStamp;
+
+        Entry(final String keyfile, final String passphrase, final String knownHosts) throws JSchException {
+            keyfileStamp = new FileStamp(keyfile);
+            knownHostsStamp = new FileStamp(knownHosts);
+            jsch = new JSch();
+            if (keyfile != null) {
+                // Decrypts the key here once, instead of during authentication for every session.
+                jsch.addIdentity(keyfile, passphrase);
+            }
+            if (knownHosts != null) {
+                jsch.setKnownHosts(knownHosts);
+            }
+        }
+
+        boolean isStale() {
+            return keyfileStamp.changed() || knownHostsStamp.changed();
+        }
+    }
+
+    /**
+     * Last modified time and size of a file, to detect changes without reading it.
+     */
+    private static class FileStamp {
+
+        private final File file;
+        private final long lastModified;
+        private final long length;
+
+        FileStamp(final String path) {
+            file = path != null ? new File(path) : null;
+            lastModified = file != null ? file.lastModified() : 0;
+            length = file != null ? file.length() : 0;
+        }
+
+        boolean changed() {
+            return file != null && (file.lastModified() != lastModified || file.length() != length);
+        }
+    }
+}
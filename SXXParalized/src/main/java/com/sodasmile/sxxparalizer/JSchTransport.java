@@ -0,0 +1,437 @@
+package com.sodasmile.sxxparalizer;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SocketFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * The default transport, ssh through JSch. One session per host, with one exec channel per command.
+ * <p/>
+ * The JSch instance, with identity and known hosts loaded, is shared with all other transports using
+ * the same files, see {@link JSchCache}. With a {@link SessionPool} the session is borrowed from the
+ * pool instead of being opened, and returned to it on close. With a jump host the session is tunnelled
+ * through the session to the jump host, see {@link JumpHosts}.
+ *
+ * @author anderssm
+ */
+class JSchTransport implements Transport {
+
+    /**
+     * Milliseconds between checks of the channel state while waiting for the close signal.
+     * Only a safety net, commands normally complete as soon as the channel closes.
+     */
+    private static final int RETRY_INTERVAL = 500;
+
+    /**
+     * Bytes read from local files at a time when uploading.
+     */
+    private static final int UPLOAD_BUFFER_SIZE = 32 * 1024;
+
+    private final String host;
+    private final String address;
+    private final int port;
+    private final SSHUserInfo userInfo;
+    private final String knownHosts;
+    private final long maxwait;
+    private final boolean verbose;
+    private final SessionPool sessionPool;
+    private final Metrics metrics;
+    private final JumpHosts.JumpHost jumpHost;
+    private final SXXLog log = SXXLog.shared();
+
+    private volatile Session session;
+
+    /**
+     * @param host        host name as given, used in messages and metrics.
+     * @param address     host name or IP to connect to.
+     * @param port        port to connect to.
+     * @param userInfo    user, password or keyfile, and trust.
+     * @param knownHosts  known hosts file, used unless trust is set.
+     * @param maxwait     milliseconds to wait for connects and commands, 0 means forever.
+     * @param verbose     log DEBUG messages.
+     * @param sessionPool pool to borrow the session from, null to open and close it here.
+     * @param metrics     sink for timings, may be null.
+     * @param jumpHost    jump host to tunnel through, null to connect directly.
+     */
+    JSchTransport(final String host, final String address, final int port, final SSHUserInfo userInfo,
+                  final String knownHosts, final long maxwait, final boolean verbose, final SessionPool sessionPool,
+                  final Metrics metrics, final JumpHosts.JumpHost jumpHost) {
+        this.host = host;
+        this.address = address;
+        this.port = port;
+        this.userInfo = userInfo;
+        this.knownHosts = knownHosts;
+        this.maxwait = maxwait;
+        this.verbose = verbose;
+        this.sessionPool = sessionPool;
+        this.metrics = metrics;
+        this.jumpHost = jumpHost;
+    }
+
+    public synchronized void connect() throws IOException, InterruptedException {
+        if (session != null && session.isConnected()) {
+            return;
+        }
+        if (session != null && sessionPool != null) {
+            sessionPool.invalidate(session);
+            session = null;
+        }
+        checkValidConfiguration();
+        try {
+            if (sessionPool != null) {
+                session = sessionPool.borrow(address, port, userInfo.getName(), poolIdentity(),
+                        new SessionPool.SessionFactory() {
+                            public Session openSession() throws JSchException {
+                                return openNewSession();
+                            }
+                        });
+            } else {
+                session = openNewSession();
+            }
+        } catch (JSchException ex) {
+            if (isLoginFailure(ex)) {
+                LoginFailedException failed = new LoginFailedException("Unable to log in to " + host + ": "
+                        + ex.getMessage());
+                failed.initCause(ex);
+                throw failed;
+            }
+            throw failure("Unable to connect to " + host, ex);
+        }
+    }
+
+    /**
+     * @return what the session is opened with besides host, port and user, so pooled sessions are not shared
+     * by transports logging in differently.
+     */
+    private String poolIdentity() {
+        return loginIdentity() + "\njumpHost=" + jumpHost;
+    }
+
+    /**
+     * @return what a session to the host or the jump host is logged in with, besides host, port and user.
+     */
+    private String loginIdentity() {
+        return "password=" + userInfo.getPassword() + "\nkeyfile=" + userInfo.getKeyfile()
+                + "\npassphrase=" + userInfo.getPassphrase() + "\ntrust=" + userInfo.getTrust()
+                + "\nknownHosts=" + knownHosts;
+    }
+
+    /**
+     * JSch only tells the reasons apart by the message.
+     */
+    private static boolean isLoginFailure(final JSchException ex) {
+        String message = ex.getMessage();
+        return message != null && (message.startsWith("Auth ") || message.startsWith("UnknownHostKey")
+                || message.startsWith("reject HostKey") || message.startsWith("HostKey has been changed"));
+    }
+
+    public boolean isConnected() {
+        Session current = session;
+        return current != null && current.isConnected();
+    }
+
+    /**
+     * Connects a new session, directly or through the jump host.
+     */
+    private Session openNewSession() throws JSchException {
+        Session s = newSession(userInfo.getName(), address, port);
+        TimingSocketFactory socketFactory = null;
+        JumpHosts.Tunnel tunnel = null;
+        if (jumpHost != null) {
+            tunnel = JumpHosts.shared().tunnel(jumpHost, loginIdentity(), new SessionPool.SessionFactory() {
+                public Session openSession() throws JSchException {
+                    return openJumpHostSession();
+                }
+            });
+            s.setProxy(tunnel);
+        } else if (metrics != null) {
+            socketFactory = new TimingSocketFactory((int) maxwait);
+            s.setSocketFactory(socketFactory);
+        }
+        log(SXXLog.Level.DEBUG, "Connecting to {}:{}{}", address, port, jumpHost != null ? " through " + jumpHost : "");
+        long start = System.nanoTime();
+        s.connect();
+        if (metrics != null) {
+            long connectTime = tunnel != null ? tunnel.connectTime() : socketFactory.connectTime;
+            record(Metrics.CONNECT, null, connectTime);
+            record(Metrics.HANDSHAKE, null, System.nanoTime() - start - connectTime);
+        }
+        return s;
+    }
+
+    /**
+     * Connects the session to the jump host, shared by all hosts behind it.
+     */
+    private Session openJumpHostSession() throws JSchException {
+        Session s = newSession(jumpHost.user(), jumpHost.host(), jumpHost.port());
+        log(SXXLog.Level.DEBUG, "Connecting to jump host {}", jumpHost);
+        s.connect();
+        return s;
+    }
+
+    private Session newSession(final String user, final String toAddress, final int toPort) throws JSchException {
+        String usedKnownHosts = null;
+        if (!userInfo.getTrust() && knownHosts != null) {
+            log(SXXLog.Level.DEBUG, "Using known hosts: {}", knownHosts);
+            usedKnownHosts = knownHosts;
+        }
+        JSch jsch = JSchCache.shared().get(userInfo.getKeyfile(), userInfo.getPassphrase(), usedKnownHosts);
+
+        Session s = jsch.getSession(user, toAddress, toPort);
+        s.setUserInfo(userInfo);
+        s.setConfig("dh", DiffieHellman.class.getName());
+        s.setTimeout((int) maxwait);
+        return s;
+    }
+
+    public Execution exec(final String command, final OutputStream stdout, final OutputStream stderr,
+                          final Runnable onExit) throws IOException, InterruptedException {
+        connect();
+        ChannelCloseSignal closeSignal = new ChannelCloseSignal(stderr, onExit);
+        ChannelExec channel;
+        long start = System.nanoTime();
+        try {
+            channel = (ChannelExec) session.openChannel("exec");
+        } catch (JSchException ex) {
+            throw failure("Unable to open channel on " + host, ex);
+        }
+        channel.setCommand(command);
+        channel.setOutputStream(stdout, true);
+        channel.setExtOutputStream(closeSignal);
+
+        try {
+            channel.connect();
+        } catch (JSchException ex) {
+            channel.disconnect();
+            throw failure("Unable to open channel on " + host, ex);
+        }
+        record(Metrics.CHANNEL_OPEN, command, System.nanoTime() - start);
+        return new ChannelExecution(channel, closeSignal);
+    }
+
+    /**
+     * Copies the file with the scp protocol ("scp -t" on the host).
+     */
+    public void upload(final File localFile, final String remotePath) throws IOException, InterruptedException {
+        connect();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        ChannelCloseSignal closeSignal = new ChannelCloseSignal(errors);
+        ChannelExec channel;
+        OutputStream out;
+        InputStream in;
+        try {
+            channel = (ChannelExec) session.openChannel("exec");
+        } catch (JSchException ex) {
+            throw failure("Unable to open channel on " + host, ex);
+        }
+        channel.setCommand("scp -t " + SXXExecutor.shellQuote(remotePath));
+        channel.setExtOutputStream(closeSignal);
+        out = channel.getOutputStream();
+        in = channel.getInputStream();
+
+        ChannelExecution execution = new ChannelExecution(channel, closeSignal);
+        try {
+            try {
+                channel.connect();
+            } catch (JSchException ex) {
+                throw failure("Unable to open channel on " + host, ex);
+            }
+            checkAck(in, errors);
+            out.write(("C0644 " + localFile.length() + " " + localFile.getName() + "\n").getBytes("UTF-8"));
+            out.flush();
+            checkAck(in, errors);
+            copy(localFile, out);
+            out.write(0);
+            out.flush();
+            checkAck(in, errors);
+            out.close();
+            execution.await(maxwait);
+        } finally {
+            execution.close();
+        }
+
+        int ec = execution.exitStatus();
+        if (ec != 0) {
+            throw new IOException("Upload of " + localFile + " to " + host + ":" + remotePath
+                    + " failed with exit status " + ec + ": " + errors.toString().trim());
+        }
+    }
+
+    /**
+     * Returns the session to the pool, or disconnects it.
+     */
+    public synchronized void close() {
+        if (session == null) {
+            return;
+        }
+        if (sessionPool != null) {
+            sessionPool.release(session);
+        } else {
+            session.disconnect();
+        }
+        session = null;
+    }
+
+    private void copy(final File localFile, final OutputStream out) throws IOException {
+        InputStream file = new FileInputStream(localFile);
+        try {
+            byte[] buffer = new byte[UPLOAD_BUFFER_SIZE];
+            int read;
+            while ((read = file.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Reads the reply of the remote scp: 0 for ok, 1 or 2 followed by a message for errors.
+     */
+    private void checkAck(final InputStream in, final ByteArrayOutputStream errors) throws IOException {
+        int status = in.read();
+        if (status == 0) {
+            return;
+        }
+        if (status < 0) {
+            throw new IOException("Remote scp on " + host + " ended unexpectedly: " + errors.toString().trim());
+        }
+        StringBuilder message = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            message.append((char) c);
+        }
+        throw new IOException("Remote scp on " + host + " failed: " + message);
+    }
+
+    private void checkValidConfiguration() {
+        if (host == null) {
+            throw new IllegalStateException("No host is configured. Host is required.");
+        }
+        if (userInfo.getName() == null) {
+            throw new IllegalStateException("No username is configured. Username is required.");
+        }
+        if (userInfo.getKeyfile() == null && userInfo.getPassword() == null) {
+            throw new IllegalStateException("No password nor keyfile is configured. Password or Keyfile is required.");
+        }
+    }
+
+    private static IOException failure(final String message, final JSchException cause) {
+        IOException ex = new IOException(message + ": " + cause.getMessage());
+        ex.initCause(cause);
+        return ex;
+    }
+
+    private void record(final String metric, final String cmd, final long value) {
+        if (metrics != null) {
+            metrics.record(metric, host, cmd, value);
+        }
+    }
+
+    private void log(final SXXLog.Level level, final String message, final Object... args) {
+        if (log.isEnabled(level) || (verbose && level == SXXLog.Level.DEBUG)) {
+            log.append(level, host, SXXLog.NO_STEP, null, message, args);
+        }
+    }
+
+    /**
+     * A command on its own exec channel.
+     */
+    private static class ChannelExecution implements Execution {
+
+        private final ChannelExec channel;
+        private final ChannelCloseSignal closeSignal;
+
+        ChannelExecution(final ChannelExec channel, final ChannelCloseSignal closeSignal) {
+            this.channel = channel;
+            this.closeSignal = closeSignal;
+        }
+
+        public OutputStream stdin() throws IOException {
+            return channel.getOutputStream();
+        }
+
+        /**
+         * Blocks until the channel is closed, or the timeout has passed.
+         * Wakes up as soon as JSch closes the channel, no extra thread is needed.
+         */
+        public boolean await(final long timeout) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + timeout;
+            while (!isDone()) {
+                long wait = RETRY_INTERVAL;
+                if (timeout > 0) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        return false;
+                    }
+                    wait = Math.min(wait, left);
+                }
+                closeSignal.await(wait);
+            }
+            return true;
+        }
+
+        public boolean isDone() {
+            return closeSignal.isClosed() || channel.isClosed();
+        }
+
+        public int exitStatus() {
+            return channel.getExitStatus();
+        }
+
+        /**
+         * Sends the signal as an ssh "signal" request. OpenSSH only delivers it from version 7.9.
+         */
+        public void signal(final String name) {
+            try {
+                channel.sendSignal(name);
+            } catch (Exception ignored) {
+                // The channel is closed, or the server does not support signals.
+            }
+        }
+
+        public void close() {
+            channel.disconnect();
+        }
+    }
+
+    /**
+     * Opens the sockets for JSch, and measures the time to connect.
+     */
+    private static class TimingSocketFactory implements SocketFactory {
+
+        private final int timeout;
+        private long connectTime;
+
+        TimingSocketFactory(final int timeout) {
+            this.timeout = timeout;
+        }
+
+        public Socket createSocket(final String host, final int port) throws IOException {
+            long start = System.nanoTime();
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            connectTime = System.nanoTime() - start;
+            return socket;
+        }
+
+        public InputStream getInputStream(final Socket socket) throws IOException {
+            return socket.getInputStream();
+        }
+
+        public OutputStream getOutputStream(final Socket socket) throws IOException {
+            return socket.getOutputStream();
+        }
+    }
+}
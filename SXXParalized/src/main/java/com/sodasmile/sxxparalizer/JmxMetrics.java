@@ -0,0 +1,85 @@
+package com.sodasmile.sxxparalizer;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publishes the histograms of {@link InMemoryMetrics} as MBeans, named
+ * <code>com.sodasmile.sxxparalizer:type=&lt;metric&gt;,host=&lt;host&gt;</code> and
+ * <code>com.sodasmile.sxxparalizer:type=&lt;metric&gt;,command=&lt;command&gt;</code>.
+ * <p/>
+ * Commands beyond the maximum of {@link InMemoryMetrics} share one MBean, so expanded commands do not
+ * register an MBean per host. MBeans with the same name from an earlier run are replaced. Call {@link #unregisterAll()} to remove them.
+ *
+ * @author anderssm
+ */
+public class JmxMetrics extends InMemoryMetrics {
+
+    public static final String DOMAIN = "com.sodasmile.sxxparalizer";
+
+    private final MBeanServer server;
+    private final String domain;
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+    /**
+     * Publishes to the platform MBean server.
+     */
+    public JmxMetrics() {
+        this(ManagementFactory.getPlatformMBeanServer(), DOMAIN);
+    }
+
+    public JmxMetrics(final MBeanServer server, final String domain) {
+        this(server, domain, DEFAULT_MAX_COMMANDS);
+    }
+
+    /**
+     * @param maxCommands number of commands with an MBean of their own, per metric.
+     */
+    public JmxMetrics(final MBeanServer server, final String domain, final int maxCommands) {
+        super(maxCommands);
+        this.server = server;
+        this.domain = domain;
+    }
+
+    @Override
+    protected Histogram newHistogram(final String metric, final String key, final boolean isCommand) {
+        Histogram histogram = super.newHistogram(metric, key, isCommand);
+        try {
+            ObjectName name = new ObjectName(domain + ":type=" + metric + ","
+                    + (isCommand ? "command=" : "host=") + ObjectName.quote(key));
+            synchronized (registered) {
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(histogram, name);
+                registered.add(name);
+            }
+        } catch (JMException ex) {
+            SXXLog.shared().log(SXXLog.Level.WARN, null, SXXLog.NO_STEP, ex, "Unable to register {} for {}",
+                    metric, key);
+        }
+        return histogram;
+    }
+
+    /**
+     * Removes all MBeans registered by this instance.
+     */
+    public void unregisterAll() {
+        synchronized (registered) {
+            for (ObjectName name : registered) {
+                try {
+                    if (server.isRegistered(name)) {
+                        server.unregisterMBean(name);
+                    }
+                } catch (JMException ex) {
+                    SXXLog.shared().log(SXXLog.Level.WARN, null, SXXLog.NO_STEP, ex, "Unable to unregister {}", name);
+                }
+            }
+            registered.clear();
+        }
+    }
+}
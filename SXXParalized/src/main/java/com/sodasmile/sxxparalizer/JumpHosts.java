@@ -0,0 +1,260 @@
+package com.sodasmile.sxxparalizer;
+
+import com.jcraft.jsch.ChannelDirectTCPIP;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Proxy;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SocketFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process wide registry of sessions to jump hosts, see {@link SXXParameters#jumpHost(String)}.
+ * <p/>
+ * Sessions to hosts behind a jump host are tunnelled through "direct-tcpip" channels of one shared
+ * session to the jump host, instead of every host logging in to the jump host on its own. The jump
+ * host session is opened by the first tunnel, and disconnected when the last tunnel is closed. It is
+ * opened again if it has been lost. Sessions to a jump host are only shared by transports logging in to
+ * it the same way, with the same password, keys and host key checking.
+ *
+ * @author anderssm
+ */
+final class JumpHosts {
+
+    private static final JumpHosts SHARED = new JumpHosts();
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * @return the registry shared by all executors.
+     */
+    static JumpHosts shared() {
+        return SHARED;
+    }
+
+    /**
+     * Creates a JSch proxy tunnelling through the jump host. Give it to {@link Session#setProxy(Proxy)}
+     * of the session to the host behind the jump host.
+     *
+     * @param jumpHost jump host to tunnel through.
+     * @param identity everything else the jump host session is opened with, like password, keyfile and
+     *                 known hosts. Only a digest of it is kept.
+     * @param factory  opens the session to the jump host, when there is none.
+     * @return a proxy for one session.
+     */
+    Tunnel tunnel(final JumpHost jumpHost, final String identity, final SessionPool.SessionFactory factory) {
+        return new Tunnel(jumpHost, jumpHost + "#" + SessionPool.digest(identity), factory);
+    }
+
+    /**
+     * Gets the session to the jump host, and holds it until released.
+     */
+    private Session acquire(final String key, final SessionPool.SessionFactory factory) throws JSchException {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(key, entry);
+            }
+            entry.users++;
+        }
+        try {
+            return entry.session(factory);
+        } catch (JSchException ex) {
+            release(key);
+            throw ex;
+        } catch (RuntimeException ex) {
+            release(key);
+            throw ex;
+        }
+    }
+
+    /**
+     * Disconnects the session to the jump host when nobody holds it anymore.
+     */
+    private void release(final String key) {
+        Session unused = null;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && --entry.users == 0) {
+                entries.remove(key);
+                unused = entry.session;
+            }
+        }
+        if (unused != null) {
+            unused.disconnect();
+        }
+    }
+
+    /**
+     * A jump host, parsed from <code>[user@]host[:port]</code>.
+     */
+    static final class JumpHost {
+
+        private final String user;
+        private final String host;
+        private final int port;
+
+        private JumpHost(final String user, final String host, final int port) {
+            this.user = user;
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * @param spec        jump host as <code>[user@]host[:port]</code>.
+         * @param defaultUser user to log in as if the spec has none.
+         * @return the parsed jump host.
+         * @throws IllegalArgumentException if the port is not a number.
+         */
+        static JumpHost parse(final String spec, final String defaultUser) {
+            String user = defaultUser;
+            String rest = spec.trim();
+            int at = rest.lastIndexOf('@');
+            if (at >= 0) {
+                user = rest.substring(0, at);
+                rest = rest.substring(at + 1);
+            }
+            int port = SXXParameters.SSH_PORT;
+            int colon = rest.lastIndexOf(':');
+            if (colon > 0) {
+                try {
+                    port = Integer.parseInt(rest.substring(colon + 1));
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Invalid port in jump host " + spec, ex);
+                }
+                rest = rest.substring(0, colon);
+            }
+            return new JumpHost(user, rest, port);
+        }
+
+        String user() {
+            return user;
+        }
+
+        String host() {
+            return host;
+        }
+
+        int port() {
+            return port;
+        }
+
+        @Override
+        public String toString() {
+            return user + "@" + host + ":" + port;
+        }
+    }
+
+    /**
+     * The session to a jump host, and the number of tunnels using it.
+     */
+    private static final class Entry {
+
+        private Session session;
+        private int users;
+
+        /**
+         * Opens the session if it is not open, only once when many tunnels ask at the same time.
+         */
+        synchronized Session session(final SessionPool.SessionFactory factory) throws JSchException {
+            if (session == null || !session.isConnected()) {
+                session = factory.openSession();
+            }
+            return session;
+        }
+    }
+
+    /**
+     * A JSch proxy connecting through a direct-tcpip channel of the jump host session. JSch closes
+     * the proxy when the session using it is disconnected.
+     */
+    final class Tunnel implements Proxy {
+
+        private final JumpHost jumpHost;
+        private final String key;
+        private final SessionPool.SessionFactory factory;
+        private ChannelDirectTCPIP channel;
+        private InputStream in;
+        private OutputStream out;
+        private Socket socket;
+        private boolean holding;
+        private long connectTime;
+
+        private Tunnel(final JumpHost jumpHost, final String key, final SessionPool.SessionFactory factory) {
+            this.jumpHost = jumpHost;
+            this.key = key;
+            this.factory = factory;
+        }
+
+        public void connect(final SocketFactory socketFactory, final String host, final int port, final int timeout)
+                throws Exception {
+            long start = System.nanoTime();
+            Session session = acquire(key, factory);
+            synchronized (this) {
+                holding = true;
+            }
+            try {
+                channel = (ChannelDirectTCPIP) session.openChannel("direct-tcpip");
+                channel.setHost(host);
+                channel.setPort(port);
+                in = channel.getInputStream();
+                out = channel.getOutputStream();
+                // JSch sets the session timeout on the socket even with a proxy, so give it an unconnected one.
+                socket = new Socket();
+                channel.connect();
+                if (!channel.isConnected()) {
+                    throw new JSchException("Jump host " + jumpHost + " could not open a tunnel to " + host + ":" + port);
+                }
+            } catch (Exception ex) {
+                close();
+                throw ex;
+            }
+            connectTime = System.nanoTime() - start;
+        }
+
+        /**
+         * @return nanoseconds it took to get the jump host session and open the tunnel.
+         */
+        long connectTime() {
+            return connectTime;
+        }
+
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        public Socket getSocket() {
+            return socket;
+        }
+
+        public synchronized void close() {
+            if (channel != null) {
+                channel.disconnect();
+                channel = null;
+            }
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Never connected.
+                }
+                socket = null;
+            }
+            if (holding) {
+                holding = false;
+                release(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.sodasmile.sxxparalizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs commands as local processes, for localhost and containers, without ssh.
+ * <p/>
+ * Every command is started with the launcher followed by the command, by default <code>sh -c command</code>
+ * in the home directory of the current user, as ssh would. <code>{host}</code> in the launcher is replaced
+ * with the host name, so for instance <code>docker exec -i {host} sh -c</code> runs the commands in the
+ * container named as the host. Files are uploaded by streaming them to <code>cat</code> through the launcher.
+ *
+ * @author anderssm
+ */
+class LocalProcessTransport implements Transport {
+
+    /**
+     * Launcher used when none is given.
+     */
+    static final String[] DEFAULT_LAUNCHER = {"sh", "-c"};
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Threads copying output of the processes, shared by all local transports.
+     */
+    private static final ExecutorService PUMPS = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(r, "sxx-local-process");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String host;
+    private final List<String> launcher = new ArrayList<String>();
+    private volatile boolean connected;
+
+    /**
+     * @param host     host name, replaces <code>{host}</code> in the launcher.
+     * @param launcher program and arguments to run the commands with, the command is added as the last argument.
+     */
+    LocalProcessTransport(final String host, final String[] launcher) {
+        this.host = host;
+        for (String arg : launcher) {
+            this.launcher.add(arg.replace("{host}", host));
+        }
+    }
+
+    public void connect() {
+        connected = true;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public Execution exec(final String command, final OutputStream stdout, final OutputStream stderr,
+                          final Runnable onExit) throws IOException {
+        List<String> args = new ArrayList<String>(launcher);
+        args.add(command);
+        ProcessBuilder builder = new ProcessBuilder(args);
+        builder.directory(new File(System.getProperty("user.home")));
+        ProcessExecution execution = new ProcessExecution(builder.start(), stdout, stderr, onExit);
+        PUMPS.submit(execution);
+        return execution;
+    }
+
+    public void upload(final File localFile, final String remotePath) throws IOException, InterruptedException {
+        String path = SXXExecutor.shellQuote(remotePath);
+        String target = SXXExecutor.shellQuote(remotePath + "/" + localFile.getName());
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        Execution execution = exec("if [ -d " + path + " ]; then cat > " + target + "; else cat > " + path + "; fi",
+                errors, errors, null);
+        try {
+            OutputStream in = execution.stdin();
+            InputStream file = new FileInputStream(localFile);
+            try {
+                pump(file, in);
+            } finally {
+                file.close();
+                in.close();
+            }
+            execution.await(0);
+        } finally {
+            execution.close();
+        }
+        if (execution.exitStatus() != 0) {
+            throw new IOException("Upload of " + localFile + " to " + host + ":" + remotePath
+                    + " failed with exit status " + execution.exitStatus() + ": " + errors.toString().trim());
+        }
+    }
+
+    public void close() {
+        connected = false;
+    }
+
+    private static void pump(final InputStream in, final OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+            out.flush();
+        }
+    }
+
+    /**
+     * A running process. Run on a pump thread, it copies stdout itself and stderr on another pump thread,
+     * and finishes when both streams have ended and the process has exited.
+     */
+    private static class ProcessExecution implements Execution, Runnable {
+
+        private final Process process;
+        private final OutputStream stdout;
+        private final OutputStream stderr;
+        private final Runnable onExit;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile int exitStatus = -1;
+
+        ProcessExecution(final Process process, final OutputStream stdout, final OutputStream stderr,
+                         final Runnable onExit) {
+            this.process = process;
+            this.stdout = stdout;
+            this.stderr = stderr;
+            this.onExit = onExit;
+        }
+
+        public void run() {
+            final CountDownLatch stderrDone = new CountDownLatch(1);
+            try {
+                PUMPS.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            pump(process.getErrorStream(), stderr);
+                        } catch (IOException ignored) {
+                            // The process was destroyed.
+                        } finally {
+                            stderrDone.countDown();
+                        }
+                    }
+                });
+                pump(process.getInputStream(), stdout);
+                stderrDone.await();
+                exitStatus = process.waitFor();
+            } catch (IOException ignored) {
+                // The process was destroyed.
+            } catch (InterruptedException ignored) {
+                // The pumps are only interrupted when the JVM exits.
+            } finally {
+                done.countDown();
+                if (onExit != null) {
+                    onExit.run();
+                }
+            }
+        }
+
+        public OutputStream stdin() {
+            return process.getOutputStream();
+        }
+
+        public boolean await(final long timeout) throws InterruptedException {
+            if (timeout <= 0) {
+                done.await();
+                return true;
+            }
+            return done.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        public int exitStatus() {
+            return exitStatus;
+        }
+
+        /**
+         * Java can only terminate processes, so every signal stops the process.
+         */
+        public void signal(final String name) {
+            process.destroy();
+        }
+
+        public void close() {
+            if (!isDone()) {
+                process.destroy();
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.sodasmile.sxxparalizer;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link Transport#connect()} when the host refuses the login, or its host key is not
+ * accepted. Connecting again will not help, so it is not retried.
+ *
+ * @author anderssm
+ */
+public class LoginFailedException extends IOException {
+
+    public LoginFailedException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,65 @@
+package com.sodasmile.sxxparalizer;
+
+/**
+ * Sink for timings and sizes recorded while running commands, see {@link SXXParameters#metrics(Metrics)}.
+ * <p/>
+ * Times are recorded in nanoseconds, sizes in bytes. Implementations are called from many threads at
+ * once, including the JSch session threads, and must be thread safe and fast.
+ *
+ * @author anderssm
+ * @see InMemoryMetrics
+ * @see JmxMetrics
+ */
+public interface Metrics {
+
+    /**
+     * Time to open the TCP connection to the host.
+     */
+    String CONNECT = "connect";
+
+    /**
+     * Time waited for the {@link ConnectLimiter} before connecting.
+     */
+    String CONNECT_WAIT = "connectWait";
+
+    /**
+     * Time from the TCP connection is open until the session is ready: key exchange and authentication.
+     */
+    String HANDSHAKE = "handshake";
+
+    /**
+     * Time to open an exec channel.
+     */
+    String CHANNEL_OPEN = "channelOpen";
+
+    /**
+     * Time from a command is started until its channel is closed.
+     */
+    String COMMAND = "command";
+
+    /**
+     * Bytes of output received from a command.
+     */
+    String BYTES_RECEIVED = "bytesReceived";
+
+    /**
+     * Bytes of file content sent to a host.
+     */
+    String BYTES_SENT = "bytesSent";
+
+    /**
+     * Time a host spent waiting at a barrier.
+     */
+    String BARRIER_WAIT = "barrierWait";
+
+    /**
+     * Records one value.
+     *
+     * @param metric  name of the metric, one of the constants in this interface.
+     * @param host    host the value was measured on.
+     * @param command command or barrier the value belongs to, null for values not belonging to a command.
+     *                Bytes of uploaded files are recorded under the command "upload".
+     * @param value   time in nanoseconds or size in bytes.
+     */
+    void record(String metric, String host, String command, long value);
+}
@@ -0,0 +1,262 @@
+package com.sodasmile.sxxparalizer;
+
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Groups hosts by the output of their commands, for fleet wide checks where most hosts give the
+ * same answer, see {@link SXXParalized#setAggregateOutput(boolean)}.
+ * <p/>
+ * Output is hashed as it streams in, and only the first copy of each distinct output is kept. The
+ * {@link CommandResult}s of all hosts in a group share that copy. When all hosts are done, a summary
+ * with one entry per distinct output is logged instead of every line of every host.
+ *
+ * @author anderssm
+ */
+final class OutputAggregator {
+
+    /**
+     * Max number of hosts named in the summary for each group, the largest group is never named.
+     */
+    private static final int MAX_HOSTS_LISTED = 10;
+
+    /**
+     * Commands by step index, and by position in the step and command as run on the hosts. The same
+     * command may be in a concurrent step twice, and hosts may run different commands at a position.
+     */
+    private final Map<Integer, Map<String, Command>> commands = new TreeMap<Integer, Map<String, Command>>();
+
+    /**
+     * @return a digest for a stream of output.
+     */
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    /**
+     * Adds the output of a command on a host to its group. Adding the same command on the same host
+     * again, like when it is retried, moves the host to the group of the new output.
+     *
+     * @param step         index of the step of the script.
+     * @param position     position of the command in the step, 0 unless the step runs commands concurrently.
+     * @param command      the command as run on the host.
+     * @param host         the host.
+     * @param exitStatus   exit status of the command.
+     * @param stdoutDigest digest of all of standard output.
+     * @param stderrDigest digest of all of standard error.
+     * @param stdout       the captured standard output.
+     * @param stderr       the captured standard error.
+     * @return the group of the output, holding the copy of the output to use.
+     */
+    synchronized Group add(final int step, final int position, final String command, final String host,
+                           final int exitStatus, final byte[] stdoutDigest, final byte[] stderrDigest,
+                           final CapturingOutputStream stdout, final CapturingOutputStream stderr) {
+        Map<String, Command> atStep = commands.get(step);
+        if (atStep == null) {
+            atStep = new LinkedHashMap<String, Command>();
+            commands.put(step, atStep);
+        }
+        String key = position + "\u0000" + command;
+        Command entry = atStep.get(key);
+        if (entry == null) {
+            entry = new Command(command);
+            atStep.put(key, entry);
+        }
+        return entry.add(host, new Key(exitStatus, stdoutDigest, stderrDigest), stdout, stderr);
+    }
+
+    /**
+     * Logs one entry per distinct output of every command, largest group first.
+     */
+    synchronized void logSummary(final SXXLog log) {
+        for (Map.Entry<Integer, Map<String, Command>> atStep : commands.entrySet()) {
+            for (Command command : atStep.getValue().values()) {
+                log.info(null, "#{} {}{}", atStep.getKey() + 1, command.command, command.summary());
+            }
+        }
+    }
+
+    /**
+     * Hosts with the same output of a command, and the one copy of that output.
+     */
+    static final class Group {
+
+        private final String stdout;
+        private final String stderr;
+        private final boolean truncated;
+        private final int exitStatus;
+        private final List<String> hosts = new ArrayList<String>();
+
+        private Group(final int exitStatus, final CapturingOutputStream stdout, final CapturingOutputStream stderr) {
+            this.exitStatus = exitStatus;
+            this.stdout = stdout.captured();
+            this.stderr = stderr.captured();
+            this.truncated = stdout.truncated() || stderr.truncated();
+        }
+
+        String stdout() {
+            return stdout;
+        }
+
+        String stderr() {
+            return stderr;
+        }
+
+        boolean truncated() {
+            return truncated;
+        }
+    }
+
+    /**
+     * The groups of one command.
+     */
+    private static final class Command {
+
+        private final String command;
+        private final Map<Key, Group> groups = new LinkedHashMap<Key, Group>();
+        private final Map<String, Key> hosts = new HashMap<String, Key>();
+
+        Command(final String command) {
+            this.command = command;
+        }
+
+        Group add(final String host, final Key key, final CapturingOutputStream stdout,
+                  final CapturingOutputStream stderr) {
+            Key previous = hosts.put(host, key);
+            if (previous != null) {
+                Group old = groups.get(previous);
+                old.hosts.remove(host);
+                if (old.hosts.isEmpty()) {
+                    groups.remove(previous);
+                }
+            }
+            Group group = groups.get(key);
+            if (group == null) {
+                group = new Group(key.exitStatus, stdout, stderr);
+                groups.put(key, group);
+            }
+            group.hosts.add(host);
+            return group;
+        }
+
+        String summary() {
+            List<Group> sorted = new ArrayList<Group>(groups.values());
+            Collections.sort(sorted, new Comparator<Group>() {
+                public int compare(final Group a, final Group b) {
+                    return b.hosts.size() - a.hosts.size();
+                }
+            });
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < sorted.size(); i++) {
+                Group group = sorted.get(i);
+                text.append("\n  ").append(group.hosts.size()).append(group.hosts.size() == 1 ? " host" : " hosts");
+                if (group.exitStatus != 0) {
+                    text.append(", exit status ").append(group.exitStatus);
+                }
+                if (i > 0) {
+                    text.append(" (").append(names(group.hosts)).append(')');
+                }
+                text.append(':');
+                appendOutput(text, group.stdout + group.stderr, group.truncated);
+            }
+            return text.toString();
+        }
+
+        private static String names(final List<String> hosts) {
+            StringBuilder names = new StringBuilder();
+            for (int i = 0; i < hosts.size() && i < MAX_HOSTS_LISTED; i++) {
+                names.append(i > 0 ? ", " : "").append(hosts.get(i));
+            }
+            if (hosts.size() > MAX_HOSTS_LISTED) {
+                names.append(", ...");
+            }
+            return names.toString();
+        }
+
+        private static void appendOutput(final StringBuilder text, final String output, final boolean truncated) {
+            String trimmed = output.trim();
+            if (trimmed.length() == 0) {
+                text.append(" (no output)");
+            } else if (trimmed.indexOf('\n') < 0) {
+                text.append(' ').append(trimmed);
+            } else {
+                for (String line : trimmed.split("\n")) {
+                    text.append("\n    ").append(line);
+                }
+            }
+            if (truncated) {
+                text.append(" [truncated]");
+            }
+        }
+    }
+
+    /**
+     * Identifies an output: exit status and digests of stdout and stderr.
+     */
+    private static final class Key {
+
+        private final int exitStatus;
+        private final byte[] stdoutDigest;
+        private final byte[] stderrDigest;
+
+        Key(final int exitStatus, final byte[] stdoutDigest, final byte[] stderrDigest) {
+            this.exitStatus = exitStatus;
+            this.stdoutDigest = stdoutDigest;
+            this.stderrDigest = stderrDigest;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return exitStatus == key.exitStatus && Arrays.equals(stdoutDigest, key.stdoutDigest)
+                    && Arrays.equals(stderrDigest, key.stderrDigest);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(stdoutDigest) + Arrays.hashCode(stderrDigest) + exitStatus;
+        }
+    }
+
+    /**
+     * Output stream only feeding a digest.
+     */
+    static final class DigestingOutputStream extends OutputStream {
+
+        private final MessageDigest digest = newDigest();
+
+        @Override
+        public void write(final int b) {
+            digest.update((byte) b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            digest.update(b, off, len);
+        }
+
+        /**
+         * @return the digest of everything written, resets the digest.
+         */
+        byte[] digest() {
+            return digest.digest();
+        }
+    }
+}
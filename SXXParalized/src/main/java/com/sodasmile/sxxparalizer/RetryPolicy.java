@@ -0,0 +1,86 @@
+package com.sodasmile.sxxparalizer;
+
+import java.util.Random;
+
+/**
+ * Retries with exponential backoff, see {@link SXXParameters#retryPolicy(RetryPolicy)}.
+ * <p/>
+ * maxAttempts is the number of times connecting to a host is tried. Commands are only retried when
+ * marked with <code>[retry=N]</code> in the script, they use the delays of this policy.
+ * <p/>
+ * The delay doubles for every attempt, from initialDelay up to maxDelay, and a random half of it is
+ * taken off, so hosts failing at the same time do not all come back at the same time. The wait
+ * happens on the thread of the failing host, other hosts go on meanwhile.
+ *
+ * @author anderssm
+ */
+public class RetryPolicy {
+
+    private final Random random = new Random();
+    private int maxAttempts = 1;
+    private long initialDelay = 500;
+    private long maxDelay = 30000;
+
+    public RetryPolicy() {
+    }
+
+    /**
+     * Number of times to try to connect, including the first. Default is 1, no retries.
+     */
+    public RetryPolicy maxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Max attempts must be at least 1, was " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    int maxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Milliseconds to wait before the first retry, before jitter. Default is 500.
+     */
+    public RetryPolicy initialDelay(long initialDelay) {
+        if (initialDelay < 0) {
+            throw new IllegalArgumentException("Initial delay must not be negative, was " + initialDelay);
+        }
+        this.initialDelay = initialDelay;
+        return this;
+    }
+
+    /**
+     * Max milliseconds to wait between attempts, before jitter. Default is 30000. Set the initial delay
+     * first, the max delay can not be less than it.
+     */
+    public RetryPolicy maxDelay(long maxDelay) {
+        if (maxDelay < initialDelay) {
+            throw new IllegalArgumentException("Max delay must be at least the initial delay " + initialDelay
+                    + ", was " + maxDelay);
+        }
+        this.maxDelay = maxDelay;
+        return this;
+    }
+
+    /**
+     * @param attempt number of the attempt that failed, from 1.
+     * @return milliseconds to wait before the next attempt.
+     */
+    long delay(final int attempt) {
+        long delay = initialDelay;
+        for (int i = 1; i < attempt && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelay);
+        long half = delay / 2;
+        synchronized (random) {
+            return delay - (half > 0 ? (long) (random.nextDouble() * half) : 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return maxAttempts + " attempts, backoff " + initialDelay + " to " + maxDelay + " ms";
+    }
+}
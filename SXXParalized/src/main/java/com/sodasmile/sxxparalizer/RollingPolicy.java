@@ -0,0 +1,74 @@
+package com.sodasmile.sxxparalizer;
+
+/**
+ * Settings for running a script on a few hosts at a time, see {@link SXXParalized#setRollingPolicy(RollingPolicy)}.
+ * <p/>
+ * The batch is a sliding window: a new host is started as soon as one finishes, there is no waiting
+ * for the whole batch. When more than maxFailures hosts have failed, no more hosts are started, hosts
+ * already running are let finish.
+ * <p/>
+ * Barriers wait for all hosts, and can not be used in a rolling run smaller than the number of hosts.
+ *
+ * @author anderssm
+ */
+public class RollingPolicy {
+
+    private int batchSize;
+    private int batchPercent;
+    private int maxFailures = Integer.MAX_VALUE;
+
+    public RollingPolicy() {
+    }
+
+    /**
+     * Number of hosts to run at the same time.
+     */
+    public RollingPolicy batchSize(int batchSize) {
+        this.batchSize = batchSize;
+        this.batchPercent = 0;
+        return this;
+    }
+
+    /**
+     * Percentage of the hosts to run at the same time, rounded up to at least one host.
+     */
+    public RollingPolicy batchPercent(int batchPercent) {
+        if (batchPercent < 1 || batchPercent > 100) {
+            throw new IllegalArgumentException("Batch percent must be between 1 and 100, was " + batchPercent);
+        }
+        this.batchPercent = batchPercent;
+        this.batchSize = 0;
+        return this;
+    }
+
+    /**
+     * Number of failed hosts to accept. When more hosts than this have failed, no more hosts are started.
+     * 0 stops at the first failure.
+     */
+    public RollingPolicy maxFailures(int maxFailures) {
+        this.maxFailures = maxFailures;
+        return this;
+    }
+
+    int maxFailures() {
+        return maxFailures;
+    }
+
+    /**
+     * @param hosts total number of hosts.
+     * @return number of hosts to run at the same time.
+     */
+    int windowSize(final int hosts) {
+        int size = batchPercent > 0 ? (int) Math.ceil(hosts * batchPercent / 100.0) : batchSize;
+        if (size < 1) {
+            size = hosts;
+        }
+        return Math.max(1, Math.min(size, hosts));
+    }
+
+    @Override
+    public String toString() {
+        return "rolling " + (batchPercent > 0 ? batchPercent + "%" : batchSize + " hosts") + " at a time"
+                + (maxFailures != Integer.MAX_VALUE ? ", max " + maxFailures + " failures" : "");
+    }
+}
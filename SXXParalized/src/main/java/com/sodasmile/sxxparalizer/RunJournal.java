@@ -0,0 +1,267 @@
+package com.sodasmile.sxxparalizer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of a run, to resume it if the JVM dies halfway, see
+ * {@link SXXParalized#setJournal(File, boolean)}.
+ * <p/>
+ * The file starts with a header holding a fingerprint of the script, followed by one small record per
+ * command completed and barrier passed on a host. Each record is framed by its length and a CRC32, and
+ * written with a single write on a file channel, so a record torn by a crash is detected and dropped
+ * when the journal is read back. Records reach the operating system when written, and survive the JVM
+ * dying. They are forced to disk when the journal is closed.
+ *
+ * @author anderssm
+ */
+final class RunJournal {
+
+    private static final int MAGIC = 0x53585847;
+    private static final int VERSION = 1;
+    private static final int FINGERPRINT_LENGTH = 32;
+    private static final int HEADER_LENGTH = 8 + FINGERPRINT_LENGTH;
+
+    /**
+     * Longest record accepted when reading, anything longer is a torn or corrupt record.
+     */
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+    private static final byte COMMAND_DONE = 1;
+    private static final byte BARRIER_PASSED = 2;
+
+    private final File file;
+    private final Map<String, Integer> done = new HashMap<String, Integer>();
+    private final Set<String> passed = new HashSet<String>();
+    private FileChannel channel;
+
+    private RunJournal(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens a journal for writing.
+     *
+     * @param file   the journal file.
+     * @param script the script of the run.
+     * @param resume true to read what an earlier run of the same script has done, and append to it.
+     *               false to start a new journal, replacing any old one.
+     * @return the journal.
+     * @throws IOException if the file can not be read or written, or is a journal of another script.
+     */
+    static RunJournal open(final File file, final String[] script, final boolean resume) throws IOException {
+        RunJournal journal = new RunJournal(file);
+        byte[] fingerprint = fingerprint(script);
+        long valid = resume && file.exists() ? journal.read(fingerprint) : 0;
+        if (valid == 0) {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                DataOutputStream header = new DataOutputStream(out);
+                header.writeInt(MAGIC);
+                header.writeInt(VERSION);
+                header.write(fingerprint);
+                header.flush();
+            } finally {
+                out.close();
+            }
+        } else {
+            // Drops a record torn by a crash, so new records follow the last good one.
+            RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+            try {
+                truncate.setLength(valid);
+            } finally {
+                truncate.close();
+            }
+        }
+        journal.channel = new FileOutputStream(file, true).getChannel();
+        return journal;
+    }
+
+    /**
+     * Reads the records of an earlier run.
+     *
+     * @return length of the file up to the end of the last good record, 0 if the file is empty.
+     */
+    private long read(final byte[] fingerprint) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            long length = file.length();
+            if (length == 0) {
+                return 0;
+            }
+            if (length < HEADER_LENGTH || in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a journal");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has unknown journal version " + version);
+            }
+            byte[] written = new byte[FINGERPRINT_LENGTH];
+            in.readFully(written);
+            if (!Arrays.equals(written, fingerprint)) {
+                throw new IOException(file + " is the journal of another script, it can not be resumed");
+            }
+            long valid = HEADER_LENGTH;
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] record;
+                try {
+                    int recordLength = in.readInt();
+                    if (recordLength <= 0 || recordLength > MAX_RECORD_LENGTH) {
+                        return valid;
+                    }
+                    record = new byte[recordLength];
+                    in.readFully(record);
+                    crc.reset();
+                    crc.update(record);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        return valid;
+                    }
+                } catch (EOFException torn) {
+                    return valid;
+                }
+                apply(record);
+                valid += 8 + record.length;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void apply(final byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        String host = in.readUTF();
+        int step = in.readInt();
+        if (type == COMMAND_DONE) {
+            int position = in.readInt();
+            done.put(key(host, step, position), in.readInt());
+        } else if (type == BARRIER_PASSED) {
+            passed.add(key(host, step, 0));
+        }
+    }
+
+    /**
+     * @return true if the command was completed on the host in the run that is resumed.
+     */
+    synchronized boolean isDone(final String host, final int step, final int position) {
+        return done.containsKey(key(host, step, position));
+    }
+
+    /**
+     * @return exit status of a command completed in the run that is resumed, -1 if not done.
+     */
+    synchronized int exitStatus(final String host, final int step, final int position) {
+        Integer exitStatus = done.get(key(host, step, position));
+        return exitStatus != null ? exitStatus : -1;
+    }
+
+    /**
+     * @return true if the host passed the barrier in the run that is resumed.
+     */
+    synchronized boolean isPassed(final String host, final int step) {
+        return passed.contains(key(host, step, 0));
+    }
+
+    /**
+     * @return number of commands completed on all hosts in the run that is resumed.
+     */
+    synchronized int doneCount() {
+        return done.size();
+    }
+
+    /**
+     * Records that a command was completed on a host, and the host went on.
+     *
+     * @param host       the host.
+     * @param step       index of the step of the script.
+     * @param position   position of the command in the step, 0 unless the step runs commands concurrently.
+     * @param exitStatus exit status of the command.
+     */
+    void commandDone(final String host, final int step, final int position, final int exitStatus)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + host.length());
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(COMMAND_DONE);
+        record.writeUTF(host);
+        record.writeInt(step);
+        record.writeInt(position);
+        record.writeInt(exitStatus);
+        record.writeLong(System.currentTimeMillis());
+        append(bytes.toByteArray());
+    }
+
+    /**
+     * Records that a host passed a barrier.
+     */
+    void barrierPassed(final String host, final int step) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + host.length());
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(BARRIER_PASSED);
+        record.writeUTF(host);
+        record.writeInt(step);
+        record.writeLong(System.currentTimeMillis());
+        append(bytes.toByteArray());
+    }
+
+    private synchronized void append(final byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        ByteBuffer frame = ByteBuffer.allocate(8 + record.length);
+        frame.putInt(record.length).put(record).putInt((int) crc.getValue());
+        frame.flip();
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    /**
+     * Forces the journal to disk and closes it.
+     */
+    synchronized void close() throws IOException {
+        try {
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static String key(final String host, final int step, final int position) {
+        return host + '\u0000' + step + '\u0000' + position;
+    }
+
+    private static byte[] fingerprint(final String[] script) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String line : script) {
+                digest.update(line.getBytes("UTF-8"));
+                digest.update((byte) '\n');
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("UTF-8 is not available", ex);
+        }
+    }
+}
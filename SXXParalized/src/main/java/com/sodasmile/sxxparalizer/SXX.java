@@ -38,6 +38,7 @@ public class SXX {
             // Nada, expecting this exception.
         }
 
+        SXXLog.shared().flush(1000);
         System.out.println("That's all folks...");
     }
 }
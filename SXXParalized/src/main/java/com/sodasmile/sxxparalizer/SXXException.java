@@ -2,7 +2,14 @@ package com.sodasmile.sxxparalizer;
 
 /**
  * General exception incapsulator for SXX exceptions.
- * // TODO anderssm: use or remove.
  */
 public class SXXException extends RuntimeException {
+
+    public SXXException(final String message) {
+        super(message);
+    }
+
+    public SXXException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
 }
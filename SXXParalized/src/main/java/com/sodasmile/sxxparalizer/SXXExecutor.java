@@ -17,34 +17,80 @@
  */
 package com.sodasmile.sxxparalizer;
 
-import com.jcraft.jsch.ChannelExec;
-import com.jcraft.jsch.JSch;
-import com.jcraft.jsch.JSchException;
-import com.jcraft.jsch.Session;
-
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Class to execute operations over SSH/SCP. Wraps JSch and this code is mainly
- * a copy of apache ants
+ * Class to execute operations over SSH/SCP. This code is mainly a copy of apache ants
  * {@link org.apache.tools.ant.taskdefs.optional.ssh.SSHExcec} and
  * {@link org.apache.tools.ant.taskdefs.optional.ssh.SSHBase}.
  * <p/>
- * TODO: Implement proper logging, remove system.out
+ * The host is reached through a {@link Transport}, by default ssh through JSch, see
+ * {@link SXXParameters#transport(Transport.Factory)}.
+ * <p/>
+ * Commands can be started without waiting for them with
+ * {@link #sendCommandAsync(String, OutputStream, OutputStream, long)}, see {@link CommandFuture}.
+ * <p/>
+ * Logs to {@link SXXLog#shared()}, with DEBUG messages enabled by the verbose flag.
  *
  * @author anderssm
  */
 public class SXXExecutor {
 
     /**
-     * Milliseconds to wait between retries for checking if commands completed
+     * Milliseconds between checks of the command state while waiting for commands to finish.
+     * Only a safety net, commands normally complete as soon as the transport signals them done.
      */
     private static final int RETRY_INTERVAL = 500;
 
+    /**
+     * Bytes of a local file mapped at a time when computing its checksum.
+     */
+    private static final long CHECKSUM_CHUNK_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Number of times a resumable upload is tried when the connection is dropped.
+     */
+    public static final int RESUME_ATTEMPTS = 3;
+
+    /**
+     * Command the bytes of uploaded files are recorded under in the metrics, whatever the remote path.
+     */
+    static final String UPLOAD = "upload";
+
+    /**
+     * Stops asynchronous commands that run out of time, shared by all executors.
+     */
+    private static final ScheduledExecutorService TIMEOUTS = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(r, "sxx-timeouts");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     private String host;
+    private String address;
     private String knownHosts;
     private int port;
     private boolean failOnError;
@@ -57,9 +103,57 @@ public class SXXExecutor {
     private long maxwait;
 
     /**
-     * Stores session for reuse between commands
+     * max number of channels to run commands on at the same time
      */
-    private Session session;
+    private int maxChannels;
+
+    /**
+     * Connection to the host, reused between commands
+     */
+    private final Transport transport;
+
+    /**
+     * Sink for timings and sizes, null to not record any.
+     */
+    private Metrics metrics;
+
+    /**
+     * Retries for connecting, and backoff for retried commands.
+     */
+    private final RetryPolicy retryPolicy;
+
+    /**
+     * Limits the rate of connects over all hosts, may be null.
+     */
+    private final ConnectLimiter connectLimiter;
+
+    /**
+     * Jump host the host is reached through, null for direct connections.
+     */
+    private final JumpHosts.JumpHost jumpHost;
+
+    /**
+     * Number of times connecting has been tried, including reconnects.
+     */
+    private int connectAttempts;
+
+    /**
+     * Commands started and not yet closed, to stop on cancel.
+     */
+    private final Map<Transport.Execution, Boolean> inFlight = new IdentityHashMap<Transport.Execution, Boolean>();
+
+    /**
+     * Asynchronous commands not yet done, to complete on cancel, guarded by inFlight.
+     */
+    private final Map<AsyncCommand, Boolean> pending = new IdentityHashMap<AsyncCommand, Boolean>();
+
+    /**
+     * Set by cancel, with the signal to send, guarded by inFlight.
+     */
+    private boolean cancelled;
+    private String cancelSignal;
+
+    private final SXXLog log = SXXLog.shared();
 
     /**
      * Builder class to create new SXXExecutors.
@@ -95,10 +189,24 @@ public class SXXExecutor {
         setPassphrase(parameters.passphrase());
         setKnownHostsIfSpecified(parameters);
         setPort(parameters.port());
+        splitPortFromHost();
         setFailonerror(parameters.failOnError());
         setVerbose(parameters.verbose());
         setTimeout(parameters.timeout());
         setTrust(parameters.trust());
+        this.maxChannels = Math.max(1, parameters.maxChannels());
+        this.metrics = parameters.metrics();
+        this.retryPolicy = parameters.retryPolicy() != null ? parameters.retryPolicy() : new RetryPolicy();
+        this.connectLimiter = parameters.connectLimiter();
+        if (parameters.transport() != null) {
+            this.jumpHost = null;
+            this.transport = parameters.transport().open(host);
+        } else {
+            this.jumpHost = parameters.jumpHost() != null
+                    ? JumpHosts.JumpHost.parse(parameters.jumpHost(), userInfo.getName()) : null;
+            this.transport = new JSchTransport(host, address, port, userInfo, knownHosts, maxwait, verbose,
+                    parameters.sessionPool(), metrics, jumpHost);
+        }
     }
 
     private void setKnownHostsIfSpecified(final SXXParameters parameters) {
@@ -108,151 +216,683 @@ public class SXXExecutor {
     }
 
     /**
-     * Open an ssh seession. Call this when done configuring executor, before calling sendCommand.
+     * Connects if not connected. Failed connects are retried with backoff as set by the {@link RetryPolicy},
+     * except when the login is refused. Every attempt waits for the {@link ConnectLimiter}, if any.
+     */
+    private void connect() throws IOException, InterruptedException {
+        if (transport.isConnected()) {
+            return;
+        }
+        for (int attempt = 1; ; attempt++) {
+            connectAttempts++;
+            if (connectLimiter != null) {
+                long waited = connectLimiter.acquire(jumpHost != null ? jumpHost.toString() : null);
+                if (metrics != null) {
+                    metrics.record(Metrics.CONNECT_WAIT, host, null, waited);
+                }
+            }
+            try {
+                transport.connect();
+                return;
+            } catch (LoginFailedException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                if (attempt >= retryPolicy.maxAttempts()) {
+                    throw ex;
+                }
+                long delay = retryPolicy.delay(attempt);
+                log(SXXLog.Level.WARN, "Connect attempt {} of {} failed, retrying in {} ms: {}", attempt,
+                        retryPolicy.maxAttempts(), delay, ex.getMessage());
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * Sends command to server. Returns response as StringBuffer.
+     * The whole output is kept in memory, use {@link #sendCommand(String, OutputStream, OutputStream)}
+     * for commands with large output.
+     *
+     * @param cmd command to execute
+     * @return
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public StringBuffer sendCommand(final String cmd) throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        sendCommand(cmd, out, out);
+
+        String result = out.toString();
+        log(SXXLog.Level.DEBUG, "Command result:\n<result>\n{}</result>", result);
+
+        return new StringBuffer(result);
+    }
+
+    /**
+     * Sends command to server, and streams the output to the given streams as it arrives.
+     * Nothing is buffered by the executor, so memory use does not depend on the size of the output.
+     * The streams are written to from a thread of the transport, and are flushed but never closed.
      *
-     * @return the opened session
-     * @throws JSchException on error
+     * @param cmd    command to execute
+     * @param stdout stream to receive standard output of the command
+     * @param stderr stream to receive standard error of the command, may be the same as stdout
+     * @return exit status of the command, -1 if the command did not finish within the timeout
+     * @throws IOException if the host could not be reached, or the command could not be started
+     * @throws InterruptedException
      */
-    private void openSession() throws JSchException {
-        checkValidConfiguration();
+    public int sendCommand(final String cmd, final OutputStream stdout, final OutputStream stderr)
+            throws IOException, InterruptedException {
+        checkValidCommand(cmd);
+        connect();
 
-        JSch jsch = new JSch();
-        if (null != userInfo.getKeyfile()) {
-            jsch.addIdentity(userInfo.getKeyfile());
+        final CountingOutputStream countedStdout = metrics != null ? new CountingOutputStream(stdout) : null;
+        final CountingOutputStream countedStderr = metrics != null ? new CountingOutputStream(stderr) : null;
+        final long start = System.nanoTime();
+        log(SXXLog.Level.DEBUG, "Executing command: {}", cmd);
+        final Transport.Execution execution = started(transport.exec(cmd,
+                countedStdout != null ? countedStdout : stdout, countedStderr != null ? countedStderr : stderr, null));
+        try {
+            execution.await(maxwait);
+        } finally {
+            closed(execution);
+            recordCommand(cmd, System.nanoTime() - start, countedStdout, countedStderr);
         }
 
-        if (!userInfo.getTrust() && knownHosts != null) {
-            log("Using known hosts: " + knownHosts);
-            jsch.setKnownHosts(knownHosts);
+        int ec = execution.exitStatus();
+        if (!checkExitStatus(cmd, ec) && failOnError) {
+            throw new CommandFailedException(host, cmd, ec);
         }
+        return ec;
+    }
 
-        Session s = jsch.getSession(userInfo.getName(), host, port);
-        s.setUserInfo(userInfo);
-        s.setTimeout((int) maxwait);
-        log("Connecting to " + host + ":" + port);
-        s.connect();
-        this.session = s;
+    /**
+     * As {@link #sendCommandAsync(String, OutputStream, OutputStream, long)}, with the timeout of the executor.
+     */
+    public CommandFuture sendCommandAsync(final String cmd, final OutputStream stdout, final OutputStream stderr)
+            throws IOException, InterruptedException {
+        return sendCommandAsync(cmd, stdout, stderr, maxwait);
     }
 
     /**
-     * Get the user information.
+     * Starts a command on the server, and returns without waiting for it to finish. The returned future is
+     * completed from a thread of the transport when the command exits, so a few threads can keep many
+     * commands in flight on many executors, and chain the next command from a listener.
+     * <p/>
+     * Connecting, if not connected, and starting the command is done on the calling thread. Output is
+     * streamed as by {@link #sendCommand(String, OutputStream, OutputStream)}. A command that fails with
+     * failOnError set completes the future with a {@link CommandFailedException}.
      *
-     * @return the user information
+     * @param cmd     command to execute
+     * @param stdout  stream to receive standard output of the command
+     * @param stderr  stream to receive standard error of the command, may be the same as stdout
+     * @param timeout milliseconds the command may run before it is stopped and completed with exit status
+     *                -1, 0 means forever
+     * @return the running command
+     * @throws IOException if the host could not be reached, or the command could not be started
+     * @throws InterruptedException if interrupted while connecting or starting the command
      */
-    private SSHUserInfo getUserInfo() {
-        return userInfo;
+    public CommandFuture sendCommandAsync(final String cmd, final OutputStream stdout, final OutputStream stderr,
+                                          final long timeout) throws IOException, InterruptedException {
+        checkValidCommand(cmd);
+        connect();
+
+        final AsyncCommand command = new AsyncCommand(cmd, stdout, stderr);
+        log(SXXLog.Level.DEBUG, "Executing command: {}", cmd);
+        command.started(started(transport.exec(cmd, command.stdout, command.stderr, command)));
+        if (timeout > 0 && !command.future.isDone()) {
+            command.timeout = TIMEOUTS.schedule(new Runnable() {
+                public void run() {
+                    command.future.timeout();
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+        boolean stopped;
+        synchronized (inFlight) {
+            stopped = cancelled;
+            // A command that has already exited has been finished, and must not be added back. One
+            // finishing after this check removes itself once this lock is released.
+            if (!stopped && !command.finished.get()) {
+                pending.put(command, Boolean.TRUE);
+            }
+        }
+        if (stopped) {
+            command.finish(true, false);
+        }
+        return command.future;
     }
 
     /**
-     * Sends command to server. Returns response as StringBuffer.
+     * Sends independent commands to the server at the same time, each on its own exec channel in the
+     * same session. At most maxChannels commands run at once, when one finishes the next is started.
+     * If the server refuses to open more channels (MaxSessions in sshd_config), the remaining commands
+     * are run on as many channels as the server accepted.
+     * <p/>
+     * With failOnError set, all commands are run to the end before the first failure is thrown.
      *
-     * @param cmd command to execute
-     * @return
-     * @throws JSchException
+     * @param cmds   commands to execute
+     * @param stdout stream per command to receive standard output
+     * @param stderr stream per command to receive standard error, may be the same as stdout
+     * @return exit status per command, -1 for commands that did not finish within the timeout
+     * @throws IOException if the host could not be reached, or no command could be started
      * @throws InterruptedException
      */
-    public StringBuffer sendCommand(final String cmd) throws JSchException, InterruptedException {
-        checkValidSession();
-        checkValidCommand(cmd);
+    public int[] sendCommands(final String[] cmds, final OutputStream[] stdout, final OutputStream[] stderr)
+            throws IOException, InterruptedException {
+        int[] exitStatus = new int[cmds.length];
+        sendCommands(cmds, stdout, stderr, exitStatus);
+        return exitStatus;
+    }
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        final ChannelExec channel = (ChannelExec) session.openChannel("exec");
-        channel.setCommand(cmd);
-        channel.setOutputStream(out);
-        channel.setExtOutputStream(out);
+    /**
+     * As {@link #sendCommands(String[], OutputStream[], OutputStream[])}, but fills in the exit statuses
+     * in the given array, so they are available also when a failure is thrown.
+     */
+    void sendCommands(final String[] cmds, final OutputStream[] stdout, final OutputStream[] stderr,
+                      final int[] exitStatus) throws IOException, InterruptedException {
+        Arrays.fill(exitStatus, -1);
+        for (String cmd : cmds) {
+            checkValidCommand(cmd);
+        }
+        connect();
 
-        log("DEBUG: Executing command: " + cmd);
+        final BlockingQueue<Integer> closed = new LinkedBlockingQueue<Integer>();
+        final Transport.Execution[] executions = new Transport.Execution[cmds.length];
+        final long[] deadlines = new long[cmds.length];
+        final boolean[] done = new boolean[cmds.length];
+        final long[] starts = new long[cmds.length];
+        final long[] ends = new long[cmds.length];
+        final CountingOutputStream[] countedStdout = new CountingOutputStream[cmds.length];
+        final CountingOutputStream[] countedStderr = new CountingOutputStream[cmds.length];
+        int window = maxChannels;
+        int next = 0;
+        int running = 0;
+        try {
+            while (next < cmds.length || running > 0) {
+                while (running < window && next < cmds.length) {
+                    final Integer index = next;
+                    if (metrics != null) {
+                        countedStdout[next] = new CountingOutputStream(stdout[next]);
+                        countedStderr[next] = new CountingOutputStream(stderr[next]);
+                    }
+                    starts[next] = System.nanoTime();
+                    log(SXXLog.Level.DEBUG, "Executing command: {}", cmds[next]);
+                    try {
+                        executions[next] = started(transport.exec(cmds[next],
+                                metrics != null ? countedStdout[next] : stdout[next],
+                                metrics != null ? countedStderr[next] : stderr[next], new Runnable() {
+                                    public void run() {
+                                        closed.add(index);
+                                    }
+                                }));
+                    } catch (IOException ex) {
+                        if (running == 0) {
+                            throw ex;
+                        }
+                        log(SXXLog.Level.WARN, "Server refused to open channel {}, continuing with {} channels: {}",
+                                running + 1, running, ex.getMessage());
+                        window = running;
+                        break;
+                    }
+                    deadlines[next] = System.currentTimeMillis() + maxwait;
+                    next++;
+                    running++;
+                }
 
-        channel.connect();
-        waitForCommandToFinish(channel);
+                Integer closedIndex = closed.poll(RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+                if (closedIndex != null) {
+                    if (!done[closedIndex]) {
+                        done[closedIndex] = true;
+                        ends[closedIndex] = System.nanoTime();
+                        running--;
+                    }
+                    continue;
+                }
+                // Safety net and timeouts.
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < next; i++) {
+                    if (!done[i] && (executions[i].isDone() || (maxwait > 0 && now >= deadlines[i]))) {
+                        done[i] = true;
+                        ends[i] = System.nanoTime();
+                        running--;
+                    }
+                }
+            }
+        } finally {
+            for (int i = 0; i < executions.length; i++) {
+                if (executions[i] != null) {
+                    closed(executions[i]);
+                    recordCommand(cmds[i], (done[i] ? ends[i] : System.nanoTime()) - starts[i],
+                            countedStdout[i], countedStderr[i]);
+                }
+            }
+        }
 
-        log("DEBUG: Done with command: " + cmd);
+        CommandFailedException failure = null;
+        for (int i = 0; i < cmds.length; i++) {
+            exitStatus[i] = executions[i].exitStatus();
+            if (!checkExitStatus(cmds[i], exitStatus[i]) && failure == null) {
+                failure = new CommandFailedException(host, cmds[i], exitStatus[i]);
+            }
+        }
+        if (failure != null && failOnError) {
+            throw failure;
+        }
+    }
 
-        int ec = channel.getExitStatus();
-        if (ec != 0) {
-            String msg = "WARN: Remote command failed with exit status " + ec;
-            log(msg);
-            if (failOnError) {
-                throw new RuntimeException("Remote command failed with status: " + ec);
+    /**
+     * Copies a local file to the server. Over ssh the scp protocol is used ("scp -t" on the server).
+     *
+     * @param localFile  file to copy.
+     * @param remotePath path of the file on the server, or an existing directory to copy the file into.
+     * @throws IOException          if the local file can not be read, or the server reports an error.
+     * @throws InterruptedException
+     */
+    public void upload(final File localFile, final String remotePath) throws IOException, InterruptedException {
+        checkValidCommand(remotePath);
+        connect();
+
+        log(SXXLog.Level.DEBUG, "Uploading {} to {}", localFile, remotePath);
+        transport.upload(localFile, remotePath);
+        record(Metrics.BYTES_SENT, UPLOAD, localFile.length());
+        log(SXXLog.Level.DEBUG, "Uploaded {} bytes to {}", localFile.length(), remotePath);
+    }
+
+    /**
+     * Uploads a local file to the host, unless the remote file already has the same size and sha256
+     * checksum. Meant for large files, it can be called again after a failure and continues where
+     * the last attempt stopped.
+     * <p/>
+     * The file is written to <code>remotePath.part</code> with cat, and moved in place once its checksum
+     * has been verified. If a part file exists and its checksum matches the start of the local file, only
+     * the rest of the file is sent. A part file left by another file is replaced. If the connection is
+     * dropped during the transfer, the executor reconnects and resumes, up to {@link #RESUME_ATTEMPTS}
+     * times. The local file is read through a FileChannel from the resume offset, and is never held in
+     * memory. Requires wc, sha256sum and mv on the host.
+     *
+     * @param localFile  file to upload.
+     * @param remotePath full path of the file on the host, not a directory.
+     * @return true if the file was sent, false if the remote file was already up to date.
+     * @throws IOException if the file could not be read, or the transfer or verification failed.
+     */
+    public boolean uploadResumable(final File localFile, final String remotePath)
+            throws IOException, InterruptedException {
+        checkValidCommand(remotePath);
+        final String checksum = sha256(localFile);
+        final long size = localFile.length();
+        final String quotedPath = shellQuote(remotePath);
+        final String quotedPart = shellQuote(remotePath + ".part");
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                connect();
+                String[] state = readCommandOutput("if [ -f " + quotedPath + " ]; then wc -c < " + quotedPath
+                        + "; sha256sum < " + quotedPath + "; else echo -1; echo -; fi; if [ -f " + quotedPart
+                        + " ]; then wc -c < " + quotedPart + "; sha256sum < " + quotedPart
+                        + "; else echo 0; echo -; fi").trim().split("\n");
+                if (Long.parseLong(firstWord(state[0])) == size && checksum.equals(firstWord(state[1]))) {
+                    log(SXXLog.Level.DEBUG, "{} is up to date, not uploading {}", remotePath, localFile);
+                    return false;
+                }
+                long offset = Long.parseLong(firstWord(state[2]));
+                if (offset > size) {
+                    offset = 0;
+                } else if (offset > 0 && !sha256(localFile, offset).equals(firstWord(state[3]))) {
+                    log(SXXLog.Level.WARN, "{}.part is not the start of {}, uploading it all", remotePath, localFile);
+                    offset = 0;
+                }
+                sendFrom(localFile, offset, (offset > 0 ? "cat >> " : "cat > ") + quotedPart);
+                break;
+            } catch (IOException ex) {
+                if (attempt >= RESUME_ATTEMPTS || transport.isConnected()) {
+                    throw ex;
+                }
+                log(SXXLog.Level.WARN, "Connection lost while uploading {}, resuming: {}", localFile, ex.getMessage());
             }
-        } else {
-            log("DEBUG: Success");
         }
 
-        log("DEBUG: Command result:\n<result>\n" + out.toString() + "</result>");
-        String result = out.toString();
+        String remoteChecksum = firstWord(readCommandOutput("sha256sum < " + quotedPart));
+        if (!checksum.equals(remoteChecksum)) {
+            readCommandOutput("rm -f " + quotedPart);
+            throw new IOException("Upload of " + localFile + " to " + host + ":" + remotePath
+                    + " failed, checksum was " + remoteChecksum + ", expected " + checksum);
+        }
+        readCommandOutput("mv -f " + quotedPart + " " + quotedPath);
+        log(SXXLog.Level.DEBUG, "Uploaded {} bytes to {}", size, remotePath);
+        return true;
+    }
+
+    /**
+     * Runs a command, and returns its standard output.
+     *
+     * @throws IOException if the command did not exit with status 0.
+     */
+    private String readCommandOutput(final String cmd) throws IOException, InterruptedException {
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        int ec;
+        try {
+            ec = sendCommand(cmd, stdout, stderr);
+        } catch (CommandFailedException ex) {
+            ec = ex.getExitStatus();
+        }
+        if (ec != 0) {
+            throw new IOException("Command '" + cmd + "' on " + host + " failed with exit status " + ec + ": "
+                    + stderr.toString().trim());
+        }
+        return stdout.toString("UTF-8");
+    }
 
+    /**
+     * Streams the local file from the offset to the standard input of the command.
+     */
+    private void sendFrom(final File localFile, final long offset, final String cmd)
+            throws IOException, InterruptedException {
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        log(SXXLog.Level.DEBUG, "Sending {} from byte {}", localFile, offset);
+        Transport.Execution execution = started(transport.exec(cmd, errors, errors, null));
+        FileInputStream in = new FileInputStream(localFile);
         try {
+            OutputStream out = execution.stdin();
+            FileChannel file = in.getChannel();
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = offset;
+            long size = file.size();
+            while (position < size) {
+                position += file.transferTo(position, size - position, target);
+            }
+            out.flush();
             out.close();
-        } catch (IOException ex) {
-            Logger.getLogger(SXXExecutor.class.getName()).log(Level.SEVERE, null, ex);
+            record(Metrics.BYTES_SENT, UPLOAD, size - offset);
+            execution.await(maxwait);
+        } finally {
+            in.close();
+            closed(execution);
         }
 
-        return new StringBuffer(result);
+        int ec = execution.exitStatus();
+        if (ec != 0) {
+            throw new IOException("Sending " + localFile + " to " + host + " failed with exit status " + ec + ": "
+                    + errors.toString().trim());
+        }
+    }
+
+    private static String firstWord(final String line) {
+        return line.trim().split("\\s+")[0];
     }
 
     /**
-     * Make sure to call this after last command to be sent to server. Closes connections and tidies up internal JSch stuff.
+     * @return hex encoded sha256 checksum of the file, read in mapped chunks.
      */
-    public void disconnect() {
-        session.disconnect();
+    static String sha256(final File file) throws IOException {
+        return sha256(file, file.length());
     }
 
-    private void waitForCommandToFinish(final ChannelExec channel) throws InterruptedException {
-        Thread threadl = new Thread("Waiting for command finished-thread: " + host) {
+    /**
+     * @return hex encoded sha256 checksum of the first length bytes of the file.
+     */
+    static String sha256(final File file, final long length) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported by this JVM", e);
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = Math.min(length, channel.size());
+            for (long position = 0; position < size; position += CHECKSUM_CHUNK_SIZE) {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(CHECKSUM_CHUNK_SIZE, size - position)));
+            }
+        } finally {
+            in.close();
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
 
-            @Override
-            public void run() {
-                while (!channel.isClosed()) {
-                    try {
-                        sleep(RETRY_INTERVAL);
-                    } catch (InterruptedException e) {
-                        // ignored
-                    }
-                }
+    /**
+     * Quotes a string for use as a single argument in a sh command line.
+     */
+    static String shellQuote(final String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+    private void recordCommand(final String cmd, final long time, final CountingOutputStream stdout,
+                               final CountingOutputStream stderr) {
+        if (metrics == null) {
+            return;
+        }
+        record(Metrics.COMMAND, cmd, time);
+        record(Metrics.BYTES_RECEIVED, cmd, stdout.getCount() + stderr.getCount());
+    }
+
+    private void record(final String metric, final String cmd, final long value) {
+        if (metrics != null) {
+            metrics.record(metric, host, cmd, value);
+        }
+    }
+
+    /**
+     * Logs the outcome of a command.
+     *
+     * @return true if the command succeeded.
+     */
+    private boolean checkExitStatus(final String cmd, final int ec) {
+        log(SXXLog.Level.DEBUG, "Done with command: {}", cmd);
+        if (ec != 0) {
+            log(SXXLog.Level.WARN, "Remote command failed with exit status {}", ec);
+            return false;
+        }
+        log(SXXLog.Level.DEBUG, "Success");
+        return true;
+    }
+
+    /**
+     * Stops all commands running on this executor, and all commands started on it later. Threads waiting
+     * for them return as if the commands had timed out. May be called from any thread.
+     *
+     * @param signal signal to send the commands before their channels are closed, like TERM, or null for none.
+     *               Without a signal, commands started over ssh may keep running on the host.
+     */
+    public void cancel(final String signal) {
+        Transport.Execution[] executions;
+        synchronized (inFlight) {
+            cancelled = true;
+            cancelSignal = signal;
+            executions = inFlight.keySet().toArray(new Transport.Execution[inFlight.size()]);
+        }
+        if (executions.length > 0) {
+            log(SXXLog.Level.DEBUG, "Cancelling {} commands", executions.length);
+        }
+        for (Transport.Execution execution : executions) {
+            stop(execution, signal);
+        }
+        AsyncCommand[] commands;
+        synchronized (inFlight) {
+            commands = pending.keySet().toArray(new AsyncCommand[pending.size()]);
+        }
+        for (AsyncCommand command : commands) {
+            command.finish(true, false);
+        }
+    }
+
+    private Transport.Execution started(final Transport.Execution execution) {
+        String signal;
+        synchronized (inFlight) {
+            if (!cancelled) {
+                inFlight.put(execution, Boolean.TRUE);
+                return execution;
             }
-        };
-        threadl.start();
-        threadl.join(maxwait);
+            signal = cancelSignal;
+        }
+        stop(execution, signal);
+        return execution;
     }
 
-    private void checkValidConfiguration() {
-        if (getHost() == null) {
-            throw new IllegalStateException("No host is configured. Host is required.");
+    private static void stop(final Transport.Execution execution, final String signal) {
+        if (signal != null) {
+            execution.signal(signal);
         }
-        if (getUserInfo().getName() == null) {
-            throw new IllegalStateException("No username is configured. Username is required.");
+        execution.close();
+    }
+
+    private void closed(final Transport.Execution execution) {
+        synchronized (inFlight) {
+            inFlight.remove(execution);
         }
-        if (getUserInfo().getKeyfile() == null && getUserInfo().getPassword() == null) {
-            throw new IllegalStateException("No password nor keyfile is configured. Password or Keyfile is required.");
+        execution.close();
+    }
+
+    /**
+     * A command started by {@link #sendCommandAsync(String, OutputStream, OutputStream, long)}. Finished
+     * once, by whichever comes first of its exit, its timeout and a cancel.
+     */
+    private final class AsyncCommand implements Runnable, CommandFuture.Stopper {
+
+        private final String cmd;
+        private final CommandFuture future;
+        private final OutputStream stdout;
+        private final OutputStream stderr;
+        private final long start = System.nanoTime();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile ScheduledFuture<?> timeout;
+
+        /**
+         * Guarded by this, the command may exit before exec has returned it.
+         */
+        private Transport.Execution execution;
+        private boolean exited;
+
+        AsyncCommand(final String cmd, final OutputStream stdout, final OutputStream stderr) {
+            this.cmd = cmd;
+            this.future = new CommandFuture(host, cmd);
+            this.stdout = metrics != null ? new CountingOutputStream(stdout) : stdout;
+            this.stderr = metrics != null ? new CountingOutputStream(stderr) : stderr;
+        }
+
+        void started(final Transport.Execution execution) {
+            boolean exitedAlready;
+            synchronized (this) {
+                this.execution = execution;
+                exitedAlready = exited;
+            }
+            future.stopper(this);
+            if (exitedAlready) {
+                finish(false, false);
+            }
+        }
+
+        /**
+         * Called by the transport when the command exits.
+         */
+        public void run() {
+            synchronized (this) {
+                exited = true;
+                if (execution == null) {
+                    return;
+                }
+            }
+            finish(false, false);
+        }
+
+        public void stop(final String signal, final boolean timedOut) {
+            if (!finished.get()) {
+                SXXExecutor.stop(execution(), signal);
+            }
+            finish(!timedOut, timedOut);
+        }
+
+        private synchronized Transport.Execution execution() {
+            return execution;
+        }
+
+        void finish(final boolean cancel, final boolean timedOut) {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            ScheduledFuture<?> scheduled = timeout;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            synchronized (inFlight) {
+                pending.remove(this);
+            }
+            Transport.Execution done = execution();
+            closed(done);
+            if (metrics != null) {
+                recordCommand(cmd, System.nanoTime() - start, (CountingOutputStream) stdout,
+                        (CountingOutputStream) stderr);
+            }
+            if (cancel) {
+                future.complete(-1, null, true, false);
+                return;
+            }
+            int ec = done.exitStatus();
+            boolean failed = !checkExitStatus(cmd, ec) && failOnError;
+            future.complete(ec, failed ? new CommandFailedException(host, cmd, ec) : null, false, timedOut);
+        }
+    }
+
+    /**
+     * @return number of asynchronous commands not yet done.
+     */
+    int pendingAsyncCommands() {
+        synchronized (inFlight) {
+            return pending.size();
         }
     }
 
+    /**
+     * Make sure to call this after last command to be sent to server. Closes the transport, when using
+     * a session pool the ssh session is returned to the pool instead.
+     */
+    public void disconnect() {
+        transport.close();
+    }
+
     private void checkValidCommand(final String cmd) {
         if (cmd == null || cmd.trim().equals("")) {
             throw new IllegalStateException("Command or commandResource is required.");
         }
     }
 
-    private void checkValidSession() throws JSchException {
-        if (session == null || !session.isConnected()) {
-            openSession();
+    /**
+     * Logs a message about this host. DEBUG messages are also logged when verbose is set.
+     * Arguments are only turned into strings if the message is logged.
+     */
+    private void log(final SXXLog.Level level, final String message, final Object... args) {
+        if (log.isEnabled(level) || (verbose && level == SXXLog.Level.DEBUG)) {
+            log.append(level, host, SXXLog.NO_STEP, null, message, args);
         }
     }
 
-    private void log(final String message) {
-        System.out.println(getHost() + ": " + message);
-    }
-
     /* ===================== Bean properties ==============================*/
 
     /**
-     * Remote host, either DNS name or IP.
+     * Remote host, either DNS name or IP, optionally followed by :port.
      *
      * @param host The new host value
      */
     private void setHost(final String host) {
         this.host = host;
+        this.address = host;
+    }
+
+    /**
+     * A host given as host:port is connected to on that port. The host name is kept as given, it
+     * identifies the host in results and barriers.
+     */
+    private void splitPortFromHost() {
+        int colon = host != null ? host.lastIndexOf(':') : -1;
+        if (colon > 0 && host.indexOf(':') == colon && host.substring(colon + 1).matches("\\d+")) {
+            address = host.substring(0, colon);
+            port = Integer.parseInt(host.substring(colon + 1));
+        }
     }
 
     /**
@@ -264,6 +904,13 @@ public class SXXExecutor {
         return host;
     }
 
+    /**
+     * @return the host without any :port, as connected to.
+     */
+    String getAddress() {
+        return address;
+    }
+
     /**
      * Set the failonerror flag.
      * Default is true
@@ -275,6 +922,29 @@ public class SXXExecutor {
         failOnError = failure;
     }
 
+    /**
+     * Get the username.
+     *
+     * @return the username
+     */
+    public String getUsername() {
+        return userInfo.getName();
+    }
+
+    /**
+     * @return number of times connecting to the host has been tried, including retries and reconnects.
+     */
+    public int getConnectAttempts() {
+        return connectAttempts;
+    }
+
+    /**
+     * @return the retry policy of this executor, the default one if none was set.
+     */
+    RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
     /**
      * Get the failonerror flag.
      *
@@ -0,0 +1,284 @@
+package com.sodasmile.sxxparalizer;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asynchronous log for messages and command output from all hosts.
+ * <p/>
+ * Threads only put a record (level, host, step, message and arguments) in a bounded ring buffer, one
+ * writer thread formats the records and prints them in batches. Every record is printed as whole lines,
+ * so output from different hosts is never mixed within a line, and no thread running a host waits for
+ * the console. When the buffer is full, logging threads wait for the writer instead of dropping output,
+ * also when they have been interrupted.
+ * <p/>
+ * Messages use <code>{}</code> as placeholders for the arguments, and are only formatted by the writer
+ * thread, and only if their level is enabled. Records are printed as
+ * <code>host#step: LEVEL message</code>, without the level for INFO and without the step for records
+ * not belonging to a step.
+ *
+ * @author anderssm
+ */
+public final class SXXLog {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    /**
+     * Step index for records not belonging to a step of the script.
+     */
+    public static final int NO_STEP = -1;
+
+    /**
+     * Number of records the ring buffer holds.
+     */
+    static final int CAPACITY = 8192;
+
+    /**
+     * Max number of records formatted and printed at a time.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * Milliseconds to wait for the log to be written when the JVM exits.
+     */
+    private static final long SHUTDOWN_FLUSH_TIMEOUT = 2000;
+
+    private static final SXXLog SHARED = new SXXLog(System.out, CAPACITY);
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("sxx-log-shutdown") {
+            @Override
+            public void run() {
+                SHARED.flush(SHUTDOWN_FLUSH_TIMEOUT);
+            }
+        });
+    }
+
+    private final BlockingQueue<Entry> ring;
+    private final PrintStream out;
+    private volatile Level level = Level.INFO;
+
+    /**
+     * Starts the writer thread, printing to the given stream.
+     */
+    SXXLog(final PrintStream out, final int capacity) {
+        this.out = out;
+        this.ring = new ArrayBlockingQueue<Entry>(capacity);
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "sxx-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return the log used by SXXParalizer, printing to standard out.
+     */
+    public static SXXLog shared() {
+        return SHARED;
+    }
+
+    /**
+     * Sets the lowest level to print, default is INFO.
+     */
+    public void setLevel(final Level level) {
+        this.level = level;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * @return true if records of the level are printed.
+     */
+    public boolean isEnabled(final Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    public void debug(final String host, final String message, final Object... args) {
+        log(Level.DEBUG, host, NO_STEP, null, message, args);
+    }
+
+    public void info(final String host, final String message, final Object... args) {
+        log(Level.INFO, host, NO_STEP, null, message, args);
+    }
+
+    public void warn(final String host, final String message, final Object... args) {
+        log(Level.WARN, host, NO_STEP, null, message, args);
+    }
+
+    public void error(final String host, final Throwable thrown, final String message, final Object... args) {
+        log(Level.ERROR, host, NO_STEP, thrown, message, args);
+    }
+
+    /**
+     * Logs a record, if its level is enabled.
+     *
+     * @param level   level of the record.
+     * @param host    host the record is about, null for none.
+     * @param step    index of the step of the script the record belongs to, {@link #NO_STEP} for none.
+     * @param thrown  exception to print the stack trace of, null for none.
+     * @param message message, with <code>{}</code> for each argument.
+     * @param args    arguments, only converted to strings if the record is printed.
+     */
+    public void log(final Level level, final String host, final int step, final Throwable thrown,
+                    final String message, final Object... args) {
+        if (isEnabled(level)) {
+            append(level, host, step, thrown, message, args);
+        }
+    }
+
+    /**
+     * Logs a record without checking its level, for callers with their own level check.
+     */
+    void append(final Level level, final String host, final int step, final Throwable thrown,
+                final String message, final Object... args) {
+        Entry entry = new Entry(level, host, step, thrown, message, args, null);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                ring.put(entry);
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            // Keep the interrupt for the caller to handle.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until all records logged before this call have been printed.
+     *
+     * @param timeout milliseconds to wait.
+     * @return true if all records were printed, false on timeout or interrupt.
+     */
+    public boolean flush(final long timeout) {
+        CountDownLatch written = new CountDownLatch(1);
+        try {
+            if (!ring.offer(new Entry(null, null, NO_STEP, null, null, null, written), timeout, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            return written.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void write() {
+        List<Entry> batch = new ArrayList<Entry>(BATCH_SIZE);
+        StringBuilder text = new StringBuilder();
+        while (true) {
+            try {
+                batch.add(ring.take());
+            } catch (InterruptedException ex) {
+                return;
+            }
+            ring.drainTo(batch, BATCH_SIZE - 1);
+            for (Entry entry : batch) {
+                if (entry.flushed == null) {
+                    int length = text.length();
+                    try {
+                        entry.format(text);
+                    } catch (RuntimeException ex) {
+                        // An argument failing to turn into a string must not stop the writer.
+                        text.setLength(length);
+                        entry.formatFailure(text, ex);
+                    }
+                }
+            }
+            out.print(text);
+            out.flush();
+            for (Entry entry : batch) {
+                if (entry.flushed != null) {
+                    entry.flushed.countDown();
+                }
+            }
+            batch.clear();
+            text.setLength(0);
+        }
+    }
+
+    /**
+     * One record, or a flush marker if flushed is set.
+     */
+    private static final class Entry {
+
+        private final Level level;
+        private final String host;
+        private final int step;
+        private final Throwable thrown;
+        private final String message;
+        private final Object[] args;
+        private final CountDownLatch flushed;
+
+        Entry(final Level level, final String host, final int step, final Throwable thrown, final String message,
+              final Object[] args, final CountDownLatch flushed) {
+            this.level = level;
+            this.host = host;
+            this.step = step;
+            this.thrown = thrown;
+            this.message = message;
+            this.args = args;
+            this.flushed = flushed;
+        }
+
+        void format(final StringBuilder text) {
+            if (host != null) {
+                text.append(host);
+                if (step != NO_STEP) {
+                    text.append('#').append(step + 1);
+                }
+                text.append(": ");
+            }
+            if (level != Level.INFO) {
+                text.append(level).append(' ');
+            }
+            formatMessage(text, message, args);
+            text.append('\n');
+            if (thrown != null) {
+                StringWriter trace = new StringWriter();
+                thrown.printStackTrace(new PrintWriter(trace));
+                text.append(trace);
+            }
+        }
+
+        /**
+         * Prints a placeholder for a record that could not be formatted.
+         */
+        void formatFailure(final StringBuilder text, final RuntimeException ex) {
+            if (host != null) {
+                text.append(host).append(": ");
+            }
+            text.append(Level.ERROR).append(" Unable to format log record \"").append(message).append("\": ")
+                    .append(ex.getClass().getName()).append('\n');
+        }
+    }
+
+    /**
+     * Replaces each <code>{}</code> in the message with the next argument.
+     */
+    static void formatMessage(final StringBuilder text, final String message, final Object[] args) {
+        int arg = 0;
+        int start = 0;
+        int placeholder;
+        while (args != null && arg < args.length && (placeholder = message.indexOf("{}", start)) >= 0) {
+            text.append(message, start, placeholder).append(args[arg++]);
+            start = placeholder + 2;
+        }
+        text.append(message, start, message.length());
+    }
+}
@@ -1,11 +1,16 @@
 package com.sodasmile.sxxparalizer;
 
-import com.jcraft.jsch.JSchException;
-
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CyclicBarrier;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class to run commands in parallel to multiple hosts over an ssh connection.
@@ -14,12 +19,44 @@ import java.util.logging.Logger;
  * <p/>
  * Supports barrier mechanism, just pass the command starting with at least three consecutive
  * equals signs, and all the execution will wait until all hosts have reached that barrier.
+ * Barriers can be limited to a group of hosts, open at a quorum and have a timeout, see {@link BarrierSpec}.
+ * Groups are set up with {@link #setHostGroup(String, String[])}, or read from an {@link Inventory}.
+ * <p/>
+ * Lines starting with <code>%host: </code>, <code>%@group: </code> or <code>%tag=name: </code> are only
+ * run on that host, the hosts of the group, or the hosts with the tag in the inventory.
+ * <p/>
+ * Consecutive commands starting with an ampersand are independent of each other, and are run at
+ * the same time on each host, on separate channels of the same ssh session.
+ * <p/>
+ * Commands that are safe to run again can be prefixed with <code>[retry=N]</code>, after any
+ * ampersand and <code>%host: </code>, to run them up to N more times if they fail. The waits
+ * between attempts are set by the {@link RetryPolicy}, which also sets how many times connecting
+ * to a host is tried.
+ * <p/>
+ * How the hosts are run is decided by the {@link ExecutionEngine}, default is one thread per host.
+ * With a {@link RollingPolicy} only a batch of the hosts is run at a time, with a {@link CancellationPolicy}
+ * the whole run is stopped when hosts fail.
+ * Connects can be spread out with {@link #setStartJitter(long)} and a {@link ConnectLimiter}.
+ * Command output is streamed to standard out line by line, prefixed with the host name, or
+ * summarized per distinct output with {@link #setAggregateOutput(boolean)}.
+ * With a journal, see {@link #setJournal(File, boolean)}, a run that was stopped halfway can be resumed.
+ * The outcome of every command on every host is returned from {@link #runCommands()}.
  * <p/>
  *
  * @author anderssm
  */
 public class SXXParalized {
 
+    /**
+     * Default number of bytes of stdout and stderr kept in each {@link CommandResult}.
+     */
+    public static final int DEFAULT_MAX_CAPTURED_OUTPUT = 64 * 1024;
+
+    /**
+     * Milliseconds to wait for the output of all hosts to be printed before returning the results.
+     */
+    private static final long LOG_FLUSH_TIMEOUT = 10000;
+
     private SXXParameters parameters;
 
     public SXXParalized(final SXXParameters parameters) {
@@ -31,6 +68,27 @@ public class SXXParalized {
 
     private String[] hosts;
     private String[] commands;
+    private ExecutionEngine engine = ExecutionEngines.threadPerHost();
+    private RollingPolicy rollingPolicy;
+    private CancellationPolicy cancellationPolicy;
+    private int maxCapturedOutput = DEFAULT_MAX_CAPTURED_OUTPUT;
+    private long startJitter;
+    private Inventory inventory;
+    private boolean aggregateOutput;
+    private File journalFile;
+    private boolean resume;
+
+    /**
+     * Groups the output of the current run when aggregating, null otherwise.
+     */
+    private OutputAggregator aggregator;
+
+    /**
+     * Journal of the current run when journaling, null otherwise.
+     */
+    private RunJournal journal;
+    private final Map<String, Set<String>> hostGroups = new HashMap<String, Set<String>>();
+    private final SXXLog log = SXXLog.shared();
 
     public void setCommands(final String[] commands) {
         synchronized (lock) {
@@ -44,85 +102,670 @@ public class SXXParalized {
         }
     }
 
-    public void runCommands() throws Exception { // TODO: Wrap known exceptions in some smart exception, existing or new.
+    /**
+     * Names a group of hosts, for use in group barriers like <code>=== @name</code>.
+     *
+     * @param name  name of the group.
+     * @param hosts hosts in the group.
+     */
+    public void setHostGroup(final String name, final String[] hosts) {
+        synchronized (lock) {
+            Set<String> group = new LinkedHashSet<String>();
+            for (String host : hosts) {
+                group.add(host);
+            }
+            hostGroups.put(name, group);
+        }
+    }
+
+    /**
+     * Aggregates the output of commands instead of streaming it. Hosts with the same output of a command
+     * are grouped, only one copy of each distinct output is kept, shared by the {@link CommandResult}s
+     * of the hosts, and a summary with one entry per distinct output is logged when all hosts are done.
+     * Meant for fleet wide checks, where most hosts give the same answer.
+     *
+     * @param aggregateOutput true to aggregate, false to stream output line by line. Default is false.
+     */
+    public void setAggregateOutput(final boolean aggregateOutput) {
         synchronized (lock) {
-            Thread[] runners = new Thread[hosts.length];
+            this.aggregateOutput = aggregateOutput;
+        }
+    }
 
-            CyclicBarrier barrier = new CyclicBarrier(hosts.length);
+    /**
+     * Records every command completed and barrier passed on every host in a journal file, to resume the
+     * run if it is stopped halfway, like when the JVM is killed. Resuming skips the commands already
+     * completed on each host, and lets each host through the barriers it has passed. The journal is
+     * only resumed by a run of the same commands.
+     *
+     * @param journalFile journal file, null for no journal.
+     * @param resume      true to resume the run in the journal file, if any. False to start a new journal.
+     */
+    public void setJournal(final File journalFile, final boolean resume) {
+        synchronized (lock) {
+            this.journalFile = journalFile;
+            this.resume = resume;
+        }
+    }
 
-            for (int i = 0; i < runners.length; i++) {
-                parameters.host(hosts[i]);
-                runners[i] = new ParallelCommandRunner(barrier, parameters);
+    /**
+     * Runs on the hosts of an inventory, and makes its groups, tags and variables available to the
+     * script, see {@link Inventory}. The groups can also be used in barriers. Call {@link #setHosts(String[])}
+     * afterwards to run on only some of the hosts.
+     *
+     * @param inventory the inventory.
+     */
+    public void setInventory(final Inventory inventory) {
+        synchronized (lock) {
+            this.inventory = inventory;
+            this.hosts = inventory.hosts();
+            for (String group : inventory.groups()) {
+                hostGroups.put(group, inventory.group(group));
             }
+        }
+    }
+
+    /**
+     * Sets the engine used to run the hosts, see {@link ExecutionEngines}.
+     *
+     * @param engine engine to use.
+     */
+    public void setExecutionEngine(final ExecutionEngine engine) {
+        synchronized (lock) {
+            this.engine = engine;
+        }
+    }
+
+    /**
+     * Runs the hosts a batch at a time instead of all at once, see {@link RollingPolicy}.
+     *
+     * @param rollingPolicy batch size and failure budget, null to run all hosts at once.
+     */
+    public void setRollingPolicy(final RollingPolicy rollingPolicy) {
+        synchronized (lock) {
+            this.rollingPolicy = rollingPolicy;
+        }
+    }
 
-            for (Thread thread : runners) {
-                thread.start();
+    /**
+     * Stops all hosts when hosts fail, see {@link CancellationPolicy}.
+     *
+     * @param cancellationPolicy failures to accept and signal to send, null to let all hosts run to the end.
+     */
+    public void setCancellationPolicy(final CancellationPolicy cancellationPolicy) {
+        synchronized (lock) {
+            this.cancellationPolicy = cancellationPolicy;
+        }
+    }
+
+    /**
+     * Sets how many bytes of stdout and stderr to keep in the {@link CommandResult} of every command.
+     * Output is still streamed to standard out in full. 0 keeps no output.
+     *
+     * @param bytes max bytes to keep per stream and command.
+     */
+    public void setMaxCapturedOutput(final int bytes) {
+        synchronized (lock) {
+            this.maxCapturedOutput = bytes;
+        }
+    }
+
+    /**
+     * Lets every host wait a random time before it connects, to spread the connects when many hosts
+     * are started at once. See also {@link SXXParameters#connectLimiter(ConnectLimiter)}.
+     *
+     * @param millis max milliseconds to wait, 0 to start all hosts at once.
+     */
+    public void setStartJitter(final long millis) {
+        synchronized (lock) {
+            this.startJitter = millis;
+        }
+    }
+
+    /**
+     * Runs the commands on all hosts, and returns when all hosts are done.
+     *
+     * @return one result per host, in the same order as the hosts.
+     * @throws Exception
+     */
+    public List<HostResult> runCommands() throws Exception { // TODO: Wrap known exceptions in some smart exception, existing or new.
+        synchronized (lock) {
+            ExecutionEngine runEngine = engine;
+            int maxFailures = Integer.MAX_VALUE;
+            if (rollingPolicy != null) {
+                runEngine = ExecutionEngines.limit(engine, rollingPolicy.windowSize(hosts.length));
+                maxFailures = rollingPolicy.maxFailures();
+                log.info(null, "Running {} hosts, {}", hosts.length, rollingPolicy);
             }
+            final FailureBudget failureBudget = new FailureBudget(maxFailures,
+                    cancellationPolicy != null ? cancellationPolicy.maxFailures() : Integer.MAX_VALUE);
+            CommandScript script = new CommandScript(commands, hosts, hostGroups, inventory);
+            checkEngineCanRunBarriers(runEngine, script);
+
+            List<ParallelCommandRunner> runners = new ArrayList<ParallelCommandRunner>(hosts.length);
+            aggregator = aggregateOutput ? new OutputAggregator() : null;
 
-            for (Thread thread : runners) {
-                thread.join();
+            Barriers barriers = new Barriers(hosts, hostGroups);
+            for (BarrierSpec barrier : script.barriers()) {
+                barriers.verify(barrier);
             }
+
+            String username = parameters.username();
+            try {
+                for (String host : hosts) {
+                    parameters.host(host);
+                    String user = inventory != null ? inventory.user(host) : null;
+                    parameters.username(user != null ? user : username);
+                    runners.add(new ParallelCommandRunner(script.stepsFor(host), barriers, failureBudget, parameters));
+                }
+            } finally {
+                parameters.username(username);
+            }
+
+            if (cancellationPolicy != null) {
+                final List<ParallelCommandRunner> all = runners;
+                final String signal = cancellationPolicy.signal();
+                failureBudget.onCancel(new Runnable() {
+                    public void run() {
+                        log.warn(null, "Cancelling run, {} hosts have failed", failureBudget.failures());
+                        for (ParallelCommandRunner runner : all) {
+                            runner.cancel(signal);
+                        }
+                    }
+                });
+            }
+
+            if (journalFile != null) {
+                journal = RunJournal.open(journalFile, commands, resume);
+                if (journal.doneCount() > 0) {
+                    log.info(null, "Resuming {}, {} commands done", journalFile, journal.doneCount());
+                }
+            }
+            try {
+                runEngine.runAll(runners);
+            } finally {
+                if (aggregator != null) {
+                    aggregator.logSummary(log);
+                    aggregator = null;
+                }
+                if (journal != null) {
+                    journal.close();
+                    journal = null;
+                }
+            }
+            log.flush(LOG_FLUSH_TIMEOUT);
+
+            List<HostResult> results = new ArrayList<HostResult>(runners.size());
+            for (ParallelCommandRunner runner : runners) {
+                results.add(runner.result);
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Copies a local file to all hosts, see {@link FileDistributor}.
+     *
+     * @param file       local file to copy.
+     * @param remotePath path of the file on the hosts, or a directory ending with a slash.
+     * @param relay      true to let hosts that have got the file pass it on to other hosts.
+     * @return one result per host, in the same order as the hosts.
+     * @throws InterruptedException if interrupted while waiting for copies to finish.
+     */
+    public List<HostResult> distribute(final File file, final String remotePath, final boolean relay)
+            throws InterruptedException {
+        synchronized (lock) {
+            return new FileDistributor(parameters).relay(relay).distribute(file, remotePath, hosts);
+        }
+    }
+
+    /**
+     * Barriers wait for all hosts, so all hosts must be able to run at the same time.
+     */
+    private void checkEngineCanRunBarriers(final ExecutionEngine engine, final CommandScript script) {
+        if (engine.maxConcurrency() < hosts.length && script.hasBarriers()) {
+            throw new IllegalStateException("Script contains barriers, but the execution engine only runs "
+                    + engine.maxConcurrency() + " of " + hosts.length + " hosts at the same time.");
+        }
+    }
+
+    /**
+     * Counts failed hosts, to stop starting new hosts when more than maxFailures have failed, and to
+     * cancel the run when more than cancelAfter have failed.
+     */
+    static class FailureBudget {
+
+        private final int maxFailures;
+        private final int cancelAfter;
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private volatile Runnable onCancel;
+
+        FailureBudget(final int maxFailures, final int cancelAfter) {
+            this.maxFailures = maxFailures;
+            this.cancelAfter = cancelAfter;
+        }
+
+        /**
+         * @param onCancel run once, from the thread of the host failing last, when the run is cancelled.
+         */
+        void onCancel(final Runnable onCancel) {
+            this.onCancel = onCancel;
+        }
+
+        void failed() {
+            if (failures.incrementAndGet() > cancelAfter && cancelled.compareAndSet(false, true) && onCancel != null) {
+                onCancel.run();
+            }
+        }
+
+        boolean exceeded() {
+            return failures.get() > maxFailures || cancelled.get();
+        }
+
+        boolean cancelled() {
+            return cancelled.get();
+        }
+
+        int failures() {
+            return failures.get();
         }
     }
 
     /**
      * Runner to be able to run commands in parallel.
      */
-    class ParallelCommandRunner extends Thread {
+    class ParallelCommandRunner implements Runnable {
 
         private final SXXExecutor executor;
-        private final CyclicBarrier barrier;
+        private final List<CommandScript.Step> steps;
+        private final Barriers barriers;
+        private final FailureBudget failureBudget;
+        private final HostResult result;
+        private final Metrics metrics;
+
+        /**
+         * Thread running this host, null when not running. Guarded by this.
+         */
+        private Thread thread;
+        private volatile boolean cancelled;
 
         /**
-         * Runs commands on one hosts. Using barrier to synchronize with other running threads.
+         * Runs commands on one hosts. Using barriers to synchronize with other running threads.
          *
-         * @param barrier
+         * @param steps
+         * @param barriers
+         * @param failureBudget
          * @param parameters
          */
-        private ParallelCommandRunner(final CyclicBarrier barrier, final SXXParameters parameters) {
-            this.barrier = barrier;
+        private ParallelCommandRunner(final List<CommandScript.Step> steps, final Barriers barriers,
+                                      final FailureBudget failureBudget, final SXXParameters parameters) {
+            this.steps = steps;
+            this.barriers = barriers;
+            this.failureBudget = failureBudget;
             executor = new SXXExecutor.SXXExecutorBuilder(parameters).build();
+            result = new HostResult(executor.getHost());
+            metrics = parameters.metrics();
         }
 
-        @Override
         public void run() {
+            if (failureBudget.exceeded()) {
+                log.warn(executor.getHost(), "Not started, {} hosts have failed", failureBudget.failures());
+                result.failed(new SXXException("Not started, " + failureBudget.failures() + " hosts have failed"));
+                barriers.leave(executor.getHost());
+                return;
+            }
+            synchronized (this) {
+                thread = Thread.currentThread();
+            }
+            result.started();
             try {
-                for (String cmd : commands) {
-                    cmd = cmd.trim();
-                    if (isBarrierCmd(cmd)) {
-                        System.out.println(executor.getHost() + " roach barrier, waiting...");
-                        barrier.await();
-                    } else if (isHostSpecificCommand(cmd) && !commandForCurrentHost(executor.getHost(), cmd)) {
-                        System.out.println(executor.getHost() + ": Skipping command not specific for this host: " + cmd);
-                    } else {
-                        executor.sendCommand(cleanupCommand(cmd));
+                if (startJitter > 0) {
+                    Thread.sleep((long) (Math.random() * startJitter));
+                }
+                for (CommandScript.Step step : steps) {
+                    if (cancelled) {
+                        throw new SXXException("Cancelled");
+                    }
+                    switch (step.kind()) {
+                        case BARRIER:
+                            log.log(SXXLog.Level.INFO, executor.getHost(), step.index(), null, "Reached {}, waiting...",
+                                    step.barrier());
+                            if (journal != null && journal.isPassed(executor.getHost(), step.index())) {
+                                barriers.pass(step.index(), step.barrier(), executor.getHost());
+                                log.log(SXXLog.Level.INFO, executor.getHost(), step.index(), null,
+                                        "Passed {} in the resumed run", step.barrier());
+                                break;
+                            }
+                            long start = System.nanoTime();
+                            int missing = barriers.await(step.index(), step.barrier(), executor.getHost());
+                            if (journal != null) {
+                                journal.barrierPassed(executor.getHost(), step.index());
+                            }
+                            if (metrics != null) {
+                                metrics.record(Metrics.BARRIER_WAIT, executor.getHost(),
+                                        "line " + (step.index() + 1) + ": " + step.barrier(), System.nanoTime() - start);
+                            }
+                            if (missing > 0) {
+                                log.log(SXXLog.Level.WARN, executor.getHost(), step.index(), null,
+                                        "Passed {} without {} hosts", step.barrier(), missing);
+                            }
+                            break;
+                        case CONCURRENT:
+                            runConcurrentCommands(step);
+                            break;
+                        default:
+                            runJournaledCommand(step.index(), 0, step.command(), step.retries(0));
                     }
                 }
-            } catch (JSchException ex) {
-                Logger.getLogger(SXXParalized.class.getName()).log(Level.SEVERE, null, ex);
+            } catch (IOException ex) {
+                failed(ex);
             } catch (InterruptedException ex) {
-                Logger.getLogger(SXXParalized.class.getName()).log(Level.SEVERE, null, ex);
-            } catch (BrokenBarrierException ex) {
-                Logger.getLogger(SXXParalized.class.getName()).log(Level.SEVERE, null, ex);
+                failed(ex);
+            } catch (RuntimeException ex) {
+                failed(ex);
             } finally {
+                synchronized (this) {
+                    thread = null;
+                    // An interrupt from cancel must not hit the next task run by the same thread.
+                    Thread.interrupted();
+                }
+                // Before leaving the barriers, so a cancel stops the other hosts before they pass them.
+                if (!result.isSuccess() && !cancelled) {
+                    failureBudget.failed();
+                }
+                // Does nothing if all barriers are passed, otherwise lets the other hosts go on without this one.
+                barriers.leave(executor.getHost());
                 // Disconnects from server when all commands are run.
                 executor.disconnect();
+                result.connectAttempts(executor.getConnectAttempts());
+                result.finished();
             }
         }
-    }
 
-    static String cleanupCommand(final String cmd) {
-        return cmd.replaceAll("^%.*: *", "");
-    }
+        /**
+         * Stops this host: commands in flight are stopped and a wait at a barrier is interrupted.
+         * Called from the thread of the host failing last.
+         *
+         * @param signal signal to send the commands in flight, null for none.
+         */
+        void cancel(final String signal) {
+            cancelled = true;
+            executor.cancel(signal);
+            synchronized (this) {
+                if (thread != null && thread != Thread.currentThread()) {
+                    thread.interrupt();
+                }
+            }
+        }
+
+        /**
+         * Runs one command, unless it was completed in the resumed run, and records it in the journal.
+         */
+        private void runJournaledCommand(final int index, final int position, final String cmd, final int retries)
+                throws IOException, InterruptedException {
+            if (journal == null) {
+                runCommand(index, position, cmd, retries);
+            } else if (journal.isDone(executor.getHost(), index, position)) {
+                result.addCommandResult(skipped(index, position, cmd));
+            } else {
+                journal.commandDone(executor.getHost(), index, position, runCommand(index, position, cmd, retries));
+            }
+        }
+
+        /**
+         * @return result of a command completed in the resumed run, with its exit status but no output.
+         */
+        private CommandResult skipped(final int index, final int position, final String cmd) {
+            long now = System.currentTimeMillis();
+            int exitStatus = journal.exitStatus(executor.getHost(), index, position);
+            log.log(SXXLog.Level.INFO, executor.getHost(), index, null, "Skipped {}, done in the resumed run", cmd);
+            return new CommandResult(cmd, exitStatus, "", "", false, now, now, null, 0);
+        }
+
+        /**
+         * Runs one command, streaming output to standard out, and records the result. A failed command
+         * is run again while it has retries left, only the last attempt is recorded.
+         *
+         * @return exit status of the last attempt.
+         */
+        private int runCommand(final int index, final int position, final String cmd, final int retries)
+                throws IOException, InterruptedException {
+            long start = System.currentTimeMillis();
+            for (int attempt = 1; ; attempt++) {
+                CommandOutput output = new CommandOutput(index, position);
+                int exitStatus = -1;
+                Throwable failure = null;
+                boolean retry = false;
+                CommandResult commandResult;
+                try {
+                    exitStatus = executor.sendCommand(cmd, output.stdout, output.stderr);
+                    retry = exitStatus != 0 && canRetry(attempt, retries);
+                } catch (CommandFailedException ex) {
+                    exitStatus = ex.getExitStatus();
+                    failure = ex;
+                    retry = canRetry(attempt, retries);
+                    if (!retry) {
+                        throw ex;
+                    }
+                } catch (IOException ex) {
+                    failure = ex;
+                    retry = canRetry(attempt, retries);
+                    if (!retry) {
+                        throw ex;
+                    }
+                } catch (InterruptedException ex) {
+                    failure = ex;
+                    throw ex;
+                } finally {
+                    commandResult = output.result(cmd, exitStatus, start, failure, attempt);
+                    if (!retry) {
+                        result.addCommandResult(commandResult);
+                    }
+                }
+                if (!retry) {
+                    return exitStatus;
+                }
+                try {
+                    backoff(index, attempt, cmd);
+                } catch (InterruptedException ex) {
+                    result.addCommandResult(commandResult);
+                    throw ex;
+                }
+            }
+        }
+
+        /**
+         * Runs independent commands at the same time on separate channels, and records the results.
+         * Failed commands with retries left are run again together, as long as no failed command
+         * without retries has stopped the host. Commands completed in the resumed run are skipped.
+         */
+        private void runConcurrentCommands(final CommandScript.Step step) throws IOException, InterruptedException {
+            List<String> cmds = step.commands();
+            if (cmds.size() <= 1) {
+                for (int i = 0; i < cmds.size(); i++) {
+                    runJournaledCommand(step.index(), i, cmds.get(i), step.retries(i));
+                }
+                return;
+            }
+            CommandResult[] results = new CommandResult[cmds.size()];
+            List<Integer> batch = new ArrayList<Integer>(cmds.size());
+            for (int i = 0; i < cmds.size(); i++) {
+                if (journal != null && journal.isDone(executor.getHost(), step.index(), i)) {
+                    results[i] = skipped(step.index(), i, cmds.get(i));
+                } else {
+                    batch.add(i);
+                }
+            }
+            long start = System.currentTimeMillis();
+            try {
+                for (int attempt = 1; !batch.isEmpty(); attempt++) {
+                    Exception failure = runBatch(step.index(), cmds, batch, start, attempt, results);
+                    List<Integer> retry = new ArrayList<Integer>();
+                    boolean stopped = false;
+                    for (int i : batch) {
+                        if (!results[i].isSuccess()) {
+                            if (canRetry(attempt, step.retries(i))) {
+                                retry.add(i);
+                                continue;
+                            }
+                            stopped = true;
+                        }
+                        if (journal != null && results[i].getFailure() == null) {
+                            journal.commandDone(executor.getHost(), step.index(), i, results[i].getExitStatus());
+                        }
+                    }
+                    if (retry.isEmpty() || (stopped && failure != null)) {
+                        if (failure instanceof IOException) {
+                            throw (IOException) failure;
+                        }
+                        if (failure != null) {
+                            throw (RuntimeException) failure;
+                        }
+                        return;
+                    }
+                    backoff(step.index(), attempt, retry.size() + " commands");
+                    batch = retry;
+                }
+            } finally {
+                for (CommandResult commandResult : results) {
+                    result.addCommandResult(commandResult);
+                }
+            }
+        }
 
-    static boolean commandForCurrentHost(final String host, final String cmd) {
-        return cmd.matches("%" + host + ": .*");
+        /**
+         * Runs some of the commands of a concurrent step, and stores their results.
+         *
+         * @return the exception the commands failed with, or null.
+         */
+        private Exception runBatch(final int index, final List<String> allCmds, final List<Integer> batch,
+                                   final long start, final int attempt, final CommandResult[] results)
+                throws InterruptedException {
+            int size = batch.size();
+            String[] cmds = new String[size];
+            CommandOutput[] outputs = new CommandOutput[size];
+            OutputStream[] stdout = new OutputStream[size];
+            OutputStream[] stderr = new OutputStream[size];
+            for (int i = 0; i < size; i++) {
+                cmds[i] = allCmds.get(batch.get(i));
+                outputs[i] = new CommandOutput(index, batch.get(i));
+                stdout[i] = outputs[i].stdout;
+                stderr[i] = outputs[i].stderr;
+            }
+            int[] exitStatus = new int[size];
+            Exception failure = null;
+            try {
+                executor.sendCommands(cmds, stdout, stderr, exitStatus);
+            } catch (CommandFailedException ex) {
+                failure = ex;
+            } catch (IOException ex) {
+                failure = ex;
+            } catch (InterruptedException ex) {
+                failure = ex;
+                throw ex;
+            } finally {
+                for (int i = 0; i < size; i++) {
+                    // The same command may be in the batch twice, so failed commands are told by index.
+                    Exception failedHere = failure;
+                    if (failure instanceof CommandFailedException) {
+                        failedHere = exitStatus[i] == 0 ? null
+                                : new CommandFailedException(executor.getHost(), cmds[i], exitStatus[i]);
+                    }
+                    results[batch.get(i)] = outputs[i].result(cmds[i], exitStatus[i], start, failedHere, attempt);
+                }
+            }
+            return failure;
+        }
+
+        /**
+         * Output of one command on this host: streamed to standard out line by line, or hashed for the
+         * summary when output is aggregated. The first bytes are captured for the result either way.
+         */
+        private final class CommandOutput {
+
+            private final int index;
+            private final int position;
+            private final HostLineOutputStream console;
+            private final OutputAggregator.DigestingOutputStream stdoutDigest;
+            private final OutputAggregator.DigestingOutputStream stderrDigest;
+            private final CapturingOutputStream stdout;
+            private final CapturingOutputStream stderr;
+
+            CommandOutput(final int index, final int position) {
+                this.index = index;
+                this.position = position;
+                if (aggregator == null) {
+                    console = new HostLineOutputStream(log, executor.getHost(), index);
+                    stdoutDigest = null;
+                    stderrDigest = null;
+                    stdout = new CapturingOutputStream(console, maxCapturedOutput);
+                    stderr = new CapturingOutputStream(console, maxCapturedOutput);
+                } else {
+                    console = null;
+                    stdoutDigest = new OutputAggregator.DigestingOutputStream();
+                    stderrDigest = new OutputAggregator.DigestingOutputStream();
+                    stdout = new CapturingOutputStream(stdoutDigest, maxCapturedOutput);
+                    stderr = new CapturingOutputStream(stderrDigest, maxCapturedOutput);
+                }
+            }
+
+            /**
+             * Ends the output, and makes the result of the command. Aggregated output is shared with the
+             * other hosts with the same output.
+             */
+            CommandResult result(final String cmd, final int exitStatus, final long start, final Throwable failure,
+                                 final int attempts) {
+                long end = System.currentTimeMillis();
+                if (console != null) {
+                    console.close();
+                    return new CommandResult(cmd, exitStatus, stdout.captured(), stderr.captured(),
+                            stdout.truncated() || stderr.truncated(), start, end, failure, attempts);
+                }
+                OutputAggregator.Group group = aggregator.add(index, position, cmd, executor.getHost(), exitStatus,
+                        stdoutDigest.digest(), stderrDigest.digest(), stdout, stderr);
+                return new CommandResult(cmd, exitStatus, group.stdout(), group.stderr(), group.truncated(), start,
+                        end, failure, attempts);
+            }
+        }
+
+        private boolean canRetry(final int attempt, final int retries) {
+            return attempt <= retries && !cancelled;
+        }
+
+        /**
+         * Waits before the next attempt, only this host waits.
+         */
+        private void backoff(final int index, final int attempt, final String what) throws InterruptedException {
+            long delay = executor.getRetryPolicy().delay(attempt);
+            log.log(SXXLog.Level.WARN, executor.getHost(), index, null, "Attempt {} of {} failed, retrying in {} ms",
+                    attempt, what, delay);
+            Thread.sleep(delay);
+        }
+
+        private void failed(final Exception ex) {
+            if (cancelled) {
+                log.warn(executor.getHost(), "Cancelled");
+                result.failed(new SXXException("Cancelled, " + failureBudget.failures() + " hosts have failed", ex));
+                return;
+            }
+            log.error(executor.getHost(), ex, "Failed");
+            result.failed(ex);
+        }
     }
 
     static boolean isHostSpecificCommand(final String cmd) {
         return cmd.startsWith("%");
     }
 
+    static boolean isConcurrentCmd(final String cmd) {
+        return cmd.startsWith("&");
+    }
+
+    static String stripConcurrentMarker(final String cmd) {
+        return cmd.substring(1).trim();
+    }
+
     static boolean isBarrierCmd(final String cmd) {
         return cmd.startsWith("===");
     }
@@ -7,7 +7,10 @@ package com.sodasmile.sxxparalizer;
 public class SXXParameters {
 
     /** Default listen port for SSH daemon */
-    private static final int SSH_PORT = 22;
+    static final int SSH_PORT = 22;
+
+    /** Default max number of open sessions (channels) per connection in OpenSSH, see MaxSessions in sshd_config */
+    private static final int MAX_CHANNELS = 10;
 
     private String host;
     private String username;
@@ -20,6 +23,13 @@ public class SXXParameters {
     private boolean verbose;
     private long maxwait;
     private boolean trust;
+    private SessionPool sessionPool;
+    private int maxChannels = MAX_CHANNELS;
+    private Metrics metrics;
+    private Transport.Factory transport;
+    private RetryPolicy retryPolicy;
+    private ConnectLimiter connectLimiter;
+    private String jumpHost;
 
     public SXXParameters() {
     }
@@ -33,6 +43,9 @@ public class SXXParameters {
         return failOnError;
     }
 
+    /**
+     * Host to connect to, either DNS name or IP. host:port connects to that port instead of the port set.
+     */
     public SXXParameters host(String host) {
         this.host = host;
         return this;
@@ -105,6 +118,94 @@ public class SXXParameters {
         return trust;
     }
 
+    /**
+     * Sessions are borrowed from and returned to this pool, instead of being opened and closed per run.
+     */
+    public SXXParameters sessionPool(SessionPool sessionPool) {
+        this.sessionPool = sessionPool;
+        return this;
+    }
+
+    SessionPool sessionPool() {
+        return sessionPool;
+    }
+
+    /**
+     * Max number of commands run at the same time on one host, each on its own channel.
+     * Should not be higher than MaxSessions of the ssh daemons.
+     */
+    public SXXParameters maxChannels(int maxChannels) {
+        this.maxChannels = maxChannels;
+        return this;
+    }
+
+    int maxChannels() {
+        return maxChannels;
+    }
+
+    /**
+     * Records connect, channel and command timings and output sizes, see {@link Metrics}.
+     */
+    public SXXParameters metrics(Metrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Transport to reach the hosts with, see {@link Transports}. Default is ssh through JSch.
+     */
+    public SXXParameters transport(Transport.Factory transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    Transport.Factory transport() {
+        return transport;
+    }
+
+    /**
+     * Retries connecting to hosts, and sets the backoff for commands marked with [retry=N], see {@link RetryPolicy}.
+     */
+    public SXXParameters retryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    RetryPolicy retryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Limits the rate of new connections, see {@link ConnectLimiter}. Default is no limit.
+     */
+    public SXXParameters connectLimiter(ConnectLimiter connectLimiter) {
+        this.connectLimiter = connectLimiter;
+        return this;
+    }
+
+    ConnectLimiter connectLimiter() {
+        return connectLimiter;
+    }
+
+    /**
+     * Jump host to reach the hosts through, as <code>[user@]host[:port]</code>, like ProxyJump of OpenSSH.
+     * The hosts are reached through tunnels in one session to the jump host, shared by all hosts. The jump
+     * host is logged in to with the same password or keyfile as the hosts, and the username of the hosts
+     * unless one is given. Only used with the default ssh transport. Default is none.
+     */
+    public SXXParameters jumpHost(String jumpHost) {
+        this.jumpHost = jumpHost;
+        return this;
+    }
+
+    String jumpHost() {
+        return jumpHost;
+    }
+
     public SXXParameters username(String username) {
         this.username = username;
         return this;
@@ -124,12 +225,14 @@ public class SXXParameters {
     }
 
     /**
-     * Checks if SXXExecutor configuration is valid.
+     * Checks if SXXExecutor configuration is valid. Login details are only required for ssh.
      */
     void verifyValidConfig() {
         failIfAllNull("Hostname is required", host);
-        failIfAllNull("Username is required", username);
-        failIfAllNull("Keyfile or password required", keyfile, password);
+        if (transport == null) {
+            failIfAllNull("Username is required", username);
+            failIfAllNull("Keyfile or password required", keyfile, password);
+        }
     }
 
     /**
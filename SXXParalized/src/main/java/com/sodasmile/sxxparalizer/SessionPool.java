@@ -0,0 +1,323 @@
+package com.sodasmile.sxxparalizer;
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Pool of connected ssh sessions, keyed on host, port, username and how the session was opened:
+ * password, keyfile, known hosts and jump host. Share one pool between
+ * {@link SXXParalized} runs, by passing it in {@link SXXParameters#sessionPool(SessionPool)},
+ * to skip the connect and key exchange when the same hosts are used again.
+ * <p/>
+ * Idle sessions are checked before they are handed out, outside the lock of the pool. Only sessions
+ * known to be closed are caught by the check. A session with a half dead connection is handed out,
+ * and fails on the first command. Sessions idle for longer than maxIdle are disconnected. Eviction is
+ * done when sessions are borrowed and returned, or by calling {@link #evictIdle()}. Call {@link #close()}
+ * when done with the pool.
+ *
+ * @author anderssm
+ */
+public class SessionPool {
+
+    /**
+     * Opens a new session when the pool has none to give.
+     */
+    interface SessionFactory {
+        Session openSession() throws JSchException;
+    }
+
+    private final int maxSessions;
+    private final long maxIdle;
+    private final long maxWait;
+
+    private final Map<String, LinkedList<IdleSession>> idle = new HashMap<String, LinkedList<IdleSession>>();
+    private final Map<Session, String> borrowed = new IdentityHashMap<Session, String>();
+    private int open;
+    private boolean closed;
+
+    /**
+     * @param maxSessions max number of open sessions, borrowed and idle.
+     * @param maxIdle     milliseconds a session may stay unused in the pool before it is disconnected.
+     * @param maxWait     milliseconds to wait for a session when maxSessions are open, 0 means forever.
+     */
+    public SessionPool(final int maxSessions, final long maxIdle, final long maxWait) {
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException("Max sessions must be at least 1, was " + maxSessions);
+        }
+        this.maxSessions = maxSessions;
+        this.maxIdle = maxIdle;
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Gets a connected session from the pool, or opens a new one using the factory.
+     *
+     * @param host     host to connect to.
+     * @param port     port to connect to.
+     * @param username user to log in as.
+     * @param identity everything else the session was opened with, like password, keyfile, known hosts and
+     *                 jump host. Sessions are only shared by borrowers with the same identity. Only a digest
+     *                 of it is kept.
+     * @param factory  used to open a new session when there is no idle one.
+     * @return a connected session, give it back with {@link #release(Session)}.
+     * @throws JSchException        if a new session could not be opened, or no session was available within maxWait.
+     * @throws InterruptedException if interrupted while waiting for a session.
+     */
+    Session borrow(final String host, final int port, final String username, final String identity,
+                   final SessionFactory factory) throws JSchException, InterruptedException {
+        String key = key(host, port, username, identity);
+        long deadline = System.currentTimeMillis() + maxWait;
+        while (true) {
+            Session idleSession = reserve(key, host, port, username, deadline);
+            if (idleSession == null) {
+                break;
+            }
+            // Checked outside the lock, so a stalled socket does not hold up borrowers of other hosts.
+            if (isHealthy(idleSession)) {
+                return idleSession;
+            }
+            drop(idleSession);
+        }
+
+        Session session = null;
+        try {
+            session = factory.openSession();
+            return session;
+        } finally {
+            synchronized (this) {
+                if (session == null) {
+                    open--;
+                    notifyAll();
+                } else {
+                    borrowed.put(session, key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes an idle session, or makes room for a new one, waiting for a session to be returned if all
+     * are in use.
+     *
+     * @return an idle session, borrowed but not checked, or null if the caller is to open a new session.
+     */
+    private synchronized Session reserve(final String key, final String host, final int port, final String username,
+                                         final long deadline) throws JSchException, InterruptedException {
+        while (true) {
+            checkNotClosed();
+            evictExpired();
+            Session session = takeIdle(key);
+            if (session != null) {
+                borrowed.put(session, key);
+                return session;
+            }
+            if (open < maxSessions) {
+                open++;
+                return null;
+            }
+            if (evictOldestIdle()) {
+                continue;
+            }
+            if (maxWait <= 0) {
+                wait();
+            } else {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    throw new JSchException("No ssh session available for " + username + "@" + host + ":"
+                            + port + " within " + maxWait
+                            + " ms, all " + maxSessions + " sessions are in use");
+                }
+                wait(left);
+            }
+        }
+    }
+
+    /**
+     * Gives a borrowed session back to the pool. Sessions no longer connected are dropped.
+     *
+     * @param session session to return.
+     */
+    synchronized void release(final Session session) {
+        String key = borrowed.remove(session);
+        if (key == null) {
+            session.disconnect();
+            return;
+        }
+        if (closed || !session.isConnected()) {
+            discard(session);
+            return;
+        }
+        LinkedList<IdleSession> sessions = idle.get(key);
+        if (sessions == null) {
+            sessions = new LinkedList<IdleSession>();
+            idle.put(key, sessions);
+        }
+        sessions.addFirst(new IdleSession(session));
+        evictExpired();
+        notifyAll();
+    }
+
+    /**
+     * Disconnects a borrowed session instead of returning it, use when the session is known to be broken.
+     *
+     * @param session session to throw away.
+     */
+    synchronized void invalidate(final Session session) {
+        if (borrowed.remove(session) != null) {
+            discard(session);
+        } else {
+            session.disconnect();
+        }
+    }
+
+    /**
+     * Disconnects all sessions idle for longer than maxIdle.
+     */
+    public synchronized void evictIdle() {
+        evictExpired();
+    }
+
+    /**
+     * @return number of open sessions, borrowed and idle.
+     */
+    public synchronized int getOpenSessions() {
+        return open;
+    }
+
+    /**
+     * Disconnects all idle sessions. Borrowed sessions are disconnected when they are returned.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (LinkedList<IdleSession> sessions : idle.values()) {
+            for (IdleSession idleSession : sessions) {
+                discard(idleSession.session);
+            }
+        }
+        idle.clear();
+        notifyAll();
+    }
+
+    private Session takeIdle(final String key) {
+        LinkedList<IdleSession> sessions = idle.get(key);
+        return sessions != null && !sessions.isEmpty() ? sessions.removeFirst().session : null;
+    }
+
+    /**
+     * Drops a borrowed session that failed its check, and disconnects it outside the lock.
+     */
+    private void drop(final Session session) {
+        synchronized (this) {
+            borrowed.remove(session);
+            open--;
+            notifyAll();
+        }
+        session.disconnect();
+    }
+
+    /**
+     * A session is healthy if it is connected, and a keep alive message can be written to it. No answer
+     * is waited for, so this only catches sessions that are already closed, not a connection that has
+     * died without the socket knowing it.
+     */
+    private boolean isHealthy(final Session session) {
+        if (!session.isConnected()) {
+            return false;
+        }
+        try {
+            session.sendKeepAliveMsg();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void evictExpired() {
+        long now = System.currentTimeMillis();
+        for (Iterator<LinkedList<IdleSession>> it = idle.values().iterator(); it.hasNext();) {
+            LinkedList<IdleSession> sessions = it.next();
+            for (Iterator<IdleSession> sessionIt = sessions.iterator(); sessionIt.hasNext();) {
+                IdleSession idleSession = sessionIt.next();
+                if (now - idleSession.idleSince > maxIdle) {
+                    sessionIt.remove();
+                    discard(idleSession.session);
+                }
+            }
+            if (sessions.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Disconnects the session that has been idle the longest, to make room for a session to another host.
+     *
+     * @return true if a session was disconnected.
+     */
+    private boolean evictOldestIdle() {
+        LinkedList<IdleSession> oldestList = null;
+        for (LinkedList<IdleSession> sessions : idle.values()) {
+            if (!sessions.isEmpty()
+                    && (oldestList == null || sessions.getLast().idleSince < oldestList.getLast().idleSince)) {
+                oldestList = sessions;
+            }
+        }
+        if (oldestList == null) {
+            return false;
+        }
+        discard(oldestList.removeLast().session);
+        return true;
+    }
+
+    private void discard(final Session session) {
+        session.disconnect();
+        open--;
+        notifyAll();
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("Session pool is closed");
+        }
+    }
+
+    private static String key(final String host, final int port, final String username, final String identity) {
+        return username + "@" + host + ":" + port + "#" + digest(identity);
+    }
+
+    /**
+     * Keeps passwords in the identity out of the pool, and out of {@link JumpHosts}.
+     */
+    static String digest(final String identity) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(identity.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("UTF-8 is not available", ex);
+        }
+    }
+
+    private static class IdleSession {
+        private final Session session;
+        private final long idleSince = System.currentTimeMillis();
+
+        IdleSession(final Session session) {
+            this.session = session;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.sodasmile.sxxparalizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Connection to one host, used by {@link SXXExecutor} to run commands and copy files.
+ * <p/>
+ * The default transport is ssh through JSch. Others are set with
+ * {@link SXXParameters#transport(Transport.Factory)}, see {@link Transports} for the ones shipped
+ * with SXXParalizer. A transport is used by one executor, but commands may be started on it from
+ * several threads at the same time.
+ *
+ * @author anderssm
+ */
+public interface Transport {
+
+    /**
+     * Creates the transport for a host.
+     */
+    interface Factory {
+
+        /**
+         * @param host host as given to SXXParalizer, including any :port.
+         * @return a transport, not yet connected.
+         */
+        Transport open(String host);
+    }
+
+    /**
+     * A started command.
+     */
+    interface Execution {
+
+        /**
+         * @return stream to the standard input of the command, close it to signal end of input.
+         * @throws IOException if the input can not be opened.
+         */
+        OutputStream stdin() throws IOException;
+
+        /**
+         * Waits for the command to finish.
+         *
+         * @param timeout milliseconds to wait, 0 means forever.
+         * @return true if the command finished, false on timeout.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        boolean await(long timeout) throws InterruptedException;
+
+        /**
+         * @return true if the command has finished, and all its output has been written.
+         */
+        boolean isDone();
+
+        /**
+         * @return exit status of the command, -1 if it has not finished.
+         */
+        int exitStatus();
+
+        /**
+         * Sends a signal to the command, if the transport supports it. Best effort, failures are ignored.
+         *
+         * @param name signal name without the SIG prefix, like TERM or KILL.
+         */
+        void signal(String name);
+
+        /**
+         * Releases the resources of the command, and stops it if it is still running.
+         */
+        void close();
+    }
+
+    /**
+     * Connects to the host. Does nothing if already connected.
+     *
+     * @throws IOException          if the host can not be reached, or refuses the login.
+     * @throws InterruptedException if interrupted while connecting.
+     */
+    void connect() throws IOException, InterruptedException;
+
+    /**
+     * @return true if connected, false before the first connect, after close and when the connection is lost.
+     */
+    boolean isConnected();
+
+    /**
+     * Starts a command. Output is streamed to the given streams as it arrives, from a thread of the
+     * transport. The streams are flushed but never closed.
+     *
+     * @param command command to run.
+     * @param stdout  stream to receive standard output of the command.
+     * @param stderr  stream to receive standard error of the command, may be the same as stdout.
+     * @param onExit  run from a thread of the transport when the command has finished, may be null.
+     * @return the running command.
+     * @throws IOException          if the command could not be started.
+     * @throws InterruptedException if interrupted while starting the command.
+     */
+    Execution exec(String command, OutputStream stdout, OutputStream stderr, Runnable onExit)
+            throws IOException, InterruptedException;
+
+    /**
+     * Copies a local file to the host.
+     *
+     * @param localFile  file to copy.
+     * @param remotePath path of the file on the host, or an existing directory to copy the file into.
+     * @throws IOException          if the local file can not be read, or the copy failed.
+     * @throws InterruptedException if interrupted while copying.
+     */
+    void upload(File localFile, String remotePath) throws IOException, InterruptedException;
+
+    /**
+     * Disconnects. The transport may be connected again.
+     */
+    void close();
+}
@@ -0,0 +1,68 @@
+package com.sodasmile.sxxparalizer;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Factory for the {@link Transport}s shipped with SXXParalizer, to set with
+ * {@link SXXParameters#transport(Transport.Factory)}.
+ * <ul>
+ * <li>ssh through JSch is used when no transport is set. It needs username and password or keyfile.</li>
+ * <li>{@link #localProcess(String...)} runs the commands as local processes, for localhost or containers.</li>
+ * <li>{@link #inMemory(CommandHandler)} hands the commands to a handler in this JVM, for tests and
+ * simulated fleets.</li>
+ * </ul>
+ *
+ * @author anderssm
+ */
+public final class Transports {
+
+    /**
+     * Runs commands for the in memory transport.
+     */
+    public interface CommandHandler {
+
+        /**
+         * Runs a command. Called from a thread per command, for many hosts at the same time.
+         *
+         * @param host    host the command is run on.
+         * @param command the command.
+         * @param stdin   input of the command, ends when the executor closes it.
+         * @param stdout  standard output of the command.
+         * @param stderr  standard error of the command, may be the same as stdout.
+         * @return exit status.
+         * @throws Exception to simulate a dropped connection.
+         */
+        int run(String host, String command, InputStream stdin, OutputStream stdout, OutputStream stderr)
+                throws Exception;
+    }
+
+    private Transports() {
+    }
+
+    /**
+     * @param launcher program and arguments to run the commands with, the command is added as the last argument.
+     *                 <code>{host}</code> is replaced with the host name. Default is <code>sh -c</code>.
+     * @return factory for transports running the commands as local processes.
+     */
+    public static Transport.Factory localProcess(final String... launcher) {
+        final String[] used = launcher.length > 0 ? launcher.clone() : LocalProcessTransport.DEFAULT_LAUNCHER;
+        return new Transport.Factory() {
+            public Transport open(final String host) {
+                return new LocalProcessTransport(host, used);
+            }
+        };
+    }
+
+    /**
+     * @param handler runs the commands of all hosts.
+     * @return factory for transports handing the commands to the handler.
+     */
+    public static Transport.Factory inMemory(final CommandHandler handler) {
+        return new Transport.Factory() {
+            public Transport open(final String host) {
+                return new InMemoryTransport(host, handler);
+            }
+        };
+    }
+}
@@ -0,0 +1,88 @@
+package com.sodasmile.sxxparalizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests barrier parsing, quorums, groups and hosts leaving.
+ */
+public class BarriersTest {
+
+    private static final String[] HOSTS = {"host1", "host2", "host3", "host4"};
+
+    @Test
+    public void testParse() {
+        BarrierSpec plain = BarrierSpec.parse("=========");
+        assertEquals(null, plain.group());
+        assertEquals(4, plain.required(4));
+
+        BarrierSpec spec = BarrierSpec.parse("=== @web 50% 2m");
+        assertEquals("web", spec.group());
+        assertEquals(2, spec.required(4));
+        assertEquals(2, spec.required(3));
+        assertEquals(120000, spec.timeout());
+
+        assertEquals(3, BarrierSpec.parse("=== 3 500ms").required(10));
+        assertEquals(2, BarrierSpec.parse("=== 3").required(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseUnknownOption() {
+        BarrierSpec.parse("=== fisk");
+    }
+
+    @Test
+    public void testQuorumOpensWithoutSlowHosts() throws Exception {
+        Barriers barriers = new Barriers(HOSTS, Collections.<String, Set<String>>emptyMap());
+        BarrierSpec spec = BarrierSpec.parse("=== 50%");
+        Thread first = awaitInThread(barriers, spec, "host1");
+        assertEquals(2, barriers.await(0, spec, "host2"));
+        first.join(1000);
+        assertTrue(!first.isAlive());
+    }
+
+    @Test
+    public void testGroupBarrierIgnoresOtherHostsAndLeavers() throws Exception {
+        Map<String, Set<String>> groups = new HashMap<String, Set<String>>();
+        groups.put("web", new HashSet<String>(Arrays.asList("host1", "host2")));
+        Barriers barriers = new Barriers(HOSTS, groups);
+        BarrierSpec spec = BarrierSpec.parse("=== @web");
+
+        assertEquals(0, barriers.await(0, spec, "host3"));
+        Thread first = awaitInThread(barriers, spec, "host1");
+        barriers.leave("host2");
+        first.join(1000);
+        assertTrue(!first.isAlive());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        Barriers barriers = new Barriers(HOSTS, Collections.<String, Set<String>>emptyMap());
+        assertEquals(3, barriers.await(0, BarrierSpec.parse("=== 20ms"), "host1"));
+    }
+
+    private Thread awaitInThread(final Barriers barriers, final BarrierSpec spec, final String host)
+            throws InterruptedException {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    barriers.await(0, spec, host);
+                } catch (InterruptedException e) {
+                    // ignored
+                }
+            }
+        };
+        thread.start();
+        Thread.sleep(50);
+        return thread;
+    }
+}
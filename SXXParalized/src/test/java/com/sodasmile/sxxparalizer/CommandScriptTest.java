@@ -0,0 +1,120 @@
+package com.sodasmile.sxxparalizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests parsing of command scripts into steps per host.
+ */
+public class CommandScriptTest {
+
+    private static final String[] HOSTS = {"host1", "host2"};
+
+    @Test
+    public void testHostSpecificCommands() {
+        CommandScript script = new CommandScript(new String[]{
+                "ls -l",
+                "%host1: echo a: b",
+                "%host2 : not for anyone",
+                "===",
+                "& %host2: sleep 1",
+                "& sleep 2",
+                "rm rattata"}, HOSTS);
+
+        List<CommandScript.Step> host1 = script.stepsFor("host1");
+        assertEquals(5, host1.size());
+        assertEquals("ls -l", host1.get(0).command());
+        assertEquals("echo a: b", host1.get(1).command());
+        assertEquals(CommandScript.Step.Kind.BARRIER, host1.get(2).kind());
+        assertEquals(3, host1.get(2).index());
+        assertEquals(CommandScript.Step.Kind.CONCURRENT, host1.get(3).kind());
+        assertEquals(1, host1.get(3).commands().size());
+        assertEquals("rm rattata", host1.get(4).command());
+
+        List<CommandScript.Step> host2 = script.stepsFor("host2");
+        assertEquals(4, host2.size());
+        assertEquals(2, host2.get(2).commands().size());
+        assertEquals("sleep 1", host2.get(2).commands().get(0));
+    }
+
+    @Test
+    public void testHostPrefixEndsAtFirstColonAndSpace() {
+        String wget = "wget http://osloisdev5.statnett.no/nexus/content/repositories/statnett-snapshots/no/statnett/larm/larm-ear/1.0-SNAPSHOT/larm-ear-1.0-SNAPSHOT-`hostname -s`.ear";
+        CommandScript script = new CommandScript(new String[]{
+                "sleep 1",
+                "% host1 sleep 2",
+                "% host1: sleep 3",
+                "%host1 : sleep 4",
+                "%host2: sleep 5",
+                "%host1: sleep 6",
+                "sleep 7%",
+                wget}, HOSTS);
+
+        List<CommandScript.Step> host1 = script.stepsFor("host1");
+        assertEquals(4, host1.size());
+        assertEquals("sleep 1", host1.get(0).command());
+        assertEquals("sleep 6", host1.get(1).command());
+        assertEquals("sleep 7%", host1.get(2).command());
+        assertEquals(wget, host1.get(3).command());
+
+        List<CommandScript.Step> host2 = script.stepsFor("host2");
+        assertEquals(4, host2.size());
+        assertEquals("sleep 5", host2.get(1).command());
+    }
+
+    @Test
+    public void testConcurrentMarker() {
+        CommandScript script = new CommandScript(new String[]{
+                "sleep 1 &",
+                "& sleep 2",
+                "&%host1: sleep 3"}, HOSTS);
+
+        List<CommandScript.Step> host1 = script.stepsFor("host1");
+        assertEquals(2, host1.size());
+        assertEquals(CommandScript.Step.Kind.COMMAND, host1.get(0).kind());
+        assertEquals("sleep 1 &", host1.get(0).command());
+        assertEquals(CommandScript.Step.Kind.CONCURRENT, host1.get(1).kind());
+        assertEquals(Arrays.asList("sleep 2", "sleep 3"), host1.get(1).commands());
+
+        List<CommandScript.Step> host2 = script.stepsFor("host2");
+        assertEquals(CommandScript.Step.Kind.CONCURRENT, host2.get(1).kind());
+        assertEquals(Arrays.asList("sleep 2"), host2.get(1).commands());
+    }
+
+    @Test
+    public void testScriptWithoutHostSpecificCommandsIsShared() {
+        CommandScript script = new CommandScript(new String[]{"ls", "=== 50%", "ls"}, HOSTS);
+        assertSame(script.stepsFor("host1").get(0), script.stepsFor("host2").get(0));
+        assertEquals(1, script.barriers().size());
+    }
+
+    @Test
+    public void testRetryMarker() {
+        CommandScript script = new CommandScript(new String[]{
+                "[retry=3] apt-get update",
+                "%host1: [retry=1] echo once",
+                "& [retry=2] sleep 1",
+                "& sleep 2",
+                "ls [retry=4]"}, HOSTS);
+
+        List<CommandScript.Step> host1 = script.stepsFor("host1");
+        assertEquals("apt-get update", host1.get(0).command());
+        assertEquals(3, host1.get(0).retries(0));
+        assertEquals("echo once", host1.get(1).command());
+        assertEquals(1, host1.get(1).retries(0));
+        assertEquals("sleep 1", host1.get(2).commands().get(0));
+        assertEquals(2, host1.get(2).retries(0));
+        assertEquals(0, host1.get(2).retries(1));
+        assertEquals("ls [retry=4]", host1.get(3).command());
+        assertEquals(0, host1.get(3).retries(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRetryMarker() {
+        new CommandScript(new String[]{"[retry=many] ls"}, HOSTS);
+    }
+}
@@ -0,0 +1,37 @@
+package com.sodasmile.sxxparalizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests the token buckets of the connect limiter.
+ */
+public class ConnectLimiterTest {
+
+    @Test
+    public void testBurstThenRate() throws Exception {
+        ConnectLimiter limiter = new ConnectLimiter(20, 5);
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.acquire(null));
+        }
+        for (int i = 0; i < 5; i++) {
+            limiter.acquire(null);
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        assertTrue("Took " + elapsed + " ms", elapsed >= 200);
+    }
+
+    @Test
+    public void testJumpHostsHaveTheirOwnLimit() throws Exception {
+        ConnectLimiter limiter = new ConnectLimiter(0, 1).perJumpHost(1, 2);
+        assertEquals(0, limiter.acquire("bastion1"));
+        assertEquals(0, limiter.acquire("bastion1"));
+        assertEquals(0, limiter.acquire("bastion2"));
+        assertEquals(0, limiter.acquire(null));
+        long start = System.nanoTime();
+        assertTrue(limiter.acquire("bastion1") > 0);
+        assertTrue(System.nanoTime() - start >= 500000000L);
+    }
+}
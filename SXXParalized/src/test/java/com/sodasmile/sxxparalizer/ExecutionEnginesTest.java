@@ -0,0 +1,78 @@
+package com.sodasmile.sxxparalizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the execution engines without any ssh involved.
+ */
+public class ExecutionEnginesTest {
+
+    @Test
+    public void testFixedPoolRunsAllTasksWithinLimit() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int i = 0; i < 20; i++) {
+            tasks.add(new Runnable() {
+                public void run() {
+                    int now = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), now));
+                    }
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        // ignored
+                    }
+                    running.decrementAndGet();
+                    done.incrementAndGet();
+                }
+            });
+        }
+
+        ExecutionEngines.fixedPool(3).runAll(tasks);
+
+        assertEquals(20, done.get());
+        assertTrue("Ran " + maxRunning.get() + " tasks at once", maxRunning.get() <= 3);
+    }
+
+    @Test
+    public void testThreadPerHostIsUnbounded() {
+        assertEquals(ExecutionEngines.UNBOUNDED, ExecutionEngines.threadPerHost().maxConcurrency());
+    }
+
+    @Test
+    public void testLimitOnlyNarrows() {
+        ExecutionEngine pool = ExecutionEngines.fixedPool(3);
+        assertSame(pool, ExecutionEngines.limit(pool, 5));
+        assertEquals(2, ExecutionEngines.limit(pool, 2).maxConcurrency());
+        assertEquals(5, ExecutionEngines.limit(ExecutionEngines.threadPerHost(), 5).maxConcurrency());
+    }
+
+    @Test
+    public void testRollingWindowSize() {
+        assertEquals(2, new RollingPolicy().batchPercent(10).windowSize(15));
+        assertEquals(1, new RollingPolicy().batchPercent(1).windowSize(3));
+        assertEquals(3, new RollingPolicy().batchPercent(100).windowSize(3));
+        assertEquals(4, new RollingPolicy().batchSize(4).windowSize(10));
+        assertEquals(7, new RollingPolicy().batchSize(50).windowSize(7));
+        assertEquals(7, new RollingPolicy().batchSize(0).windowSize(7));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBarriersNeedAllHostsRunning() throws Exception {
+        SXXParalized paralized = new SXXParalized(new SXXParameters().username("user").password("pass"));
+        paralized.setHosts(new String[]{"host1", "host2", "host3"});
+        paralized.setCommands(new String[]{"ls", "===", "ls"});
+        paralized.setExecutionEngine(ExecutionEngines.fixedPool(2));
+        paralized.runCommands();
+    }
+}
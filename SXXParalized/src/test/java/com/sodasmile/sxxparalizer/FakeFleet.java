@@ -0,0 +1,353 @@
+package com.sodasmile.sxxparalizer;
+
+import org.apache.sshd.common.AttributeRepository;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.kex.BuiltinDHFactories;
+import org.apache.sshd.common.keyprovider.KeyPairProvider;
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.core.CoreModuleProperties;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.ServerBuilder;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.command.Command;
+import org.apache.sshd.server.forward.AcceptAllForwardingFilter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fleet of fake hosts for tests: one embedded MINA SSH server listening on one localhost port per
+ * host, so the hosts are reached as <code>127.0.0.1:port</code> through the real JSch code.
+ * <p/>
+ * Every host runs any command by waiting its command time, writing its output and exiting with its
+ * exit status. Commands starting with <code>echo </code> also print the rest of the command, and
+ * <code>false</code> exits with 1. Per host, the fixture can add latency to every connect and command,
+ * drop the connection during a command, refuse logins and fail given commands. All commands run are
+ * recorded with their start and end time, and logins are counted. Every host accepts tunnels to the
+ * others, to be used as jump host.
+ *
+ * @author anderssm
+ */
+class FakeFleet {
+
+    private static final AttributeRepository.AttributeKey<Host> HOST = new AttributeRepository.AttributeKey<Host>();
+
+    private final ExecutorService runner = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "fake-fleet-command");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final FleetServer server;
+    private final List<Host> hosts = new ArrayList<Host>();
+    private final Map<Integer, Host> hostsByPort = new HashMap<Integer, Host>();
+
+    /**
+     * Starts the fleet.
+     *
+     * @param size number of hosts.
+     */
+    FakeFleet(final int size) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+
+        server = (FleetServer) ServerBuilder.builder().factory(FleetServer::new).build();
+        server.setHost("127.0.0.1");
+        server.setPort(0);
+        server.setKeyPairProvider(KeyPairProvider.wrap(generator.generateKeyPair()));
+        // JSch 0.1.42 only supports these key exchanges, which sshd has deprecated as weak.
+        @SuppressWarnings("deprecation")
+        List<BuiltinDHFactories> keyExchanges = Arrays.asList(BuiltinDHFactories.dhg1, BuiltinDHFactories.dhgex);
+        server.setKeyExchangeFactories(NamedFactory.setUpTransformedFactories(false, keyExchanges,
+                ServerBuilder.DH2KEX));
+        server.setPasswordAuthenticator((username, password, session) -> login(session));
+        // Login latency is simulated by sleeping in the authenticator, on an I/O thread, so have one per host.
+        CoreModuleProperties.NIO_WORKERS.set(server, size + 1);
+        server.setCommandFactory((channel, command) -> new FakeCommand(command));
+        // Lets any host be used as jump host to the others.
+        server.setForwardingFilter(AcceptAllForwardingFilter.INSTANCE);
+        server.start();
+
+        for (int i = 0; i < size; i++) {
+            int port = i == 0 ? server.getPort() : server.bind(new InetSocketAddress("127.0.0.1", 0));
+            Host host = new Host("127.0.0.1:" + port);
+            hosts.add(host);
+            hostsByPort.put(port, host);
+        }
+    }
+
+    /**
+     * @return all hosts, as host:port.
+     */
+    String[] hosts() {
+        String[] names = new String[hosts.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = hosts.get(i).name;
+        }
+        return names;
+    }
+
+    /**
+     * @return the host with the given index, to configure it or check what it ran.
+     */
+    Host host(final int index) {
+        return hosts.get(index);
+    }
+
+    /**
+     * @return parameters to log in to the fleet with, the host is not set.
+     */
+    SXXParameters parameters() {
+        return new SXXParameters()
+                .username("fleet")
+                .password("fleet")
+                .trust(true)
+                .timeout(60000);
+    }
+
+    void close() throws IOException {
+        server.stop(true);
+        runner.shutdownNow();
+    }
+
+    private boolean login(final Session session) {
+        int port = ((InetSocketAddress) session.getIoSession().getLocalAddress()).getPort();
+        Host host = hostsByPort.get(port);
+        sleep(host.latency);
+        host.logins.incrementAndGet();
+        session.setAttribute(HOST, host);
+        return !host.refuseLogin;
+    }
+
+    private static void sleep(final long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * A command run on a host, with start and end in System.nanoTime().
+     */
+    static class Execution {
+
+        final String command;
+        final long start;
+        final long end;
+
+        Execution(final String command, final long start, final long end) {
+            this.command = command;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Behaviour of one host, set with the chained methods, and the commands it has run.
+     */
+    static class Host {
+
+        private final String name;
+        private volatile long latency;
+        private volatile long commandTime;
+        private volatile int outputBytes;
+        private volatile boolean refuseLogin;
+        private final AtomicInteger dropAfter = new AtomicInteger(-1);
+        private final AtomicInteger logins = new AtomicInteger();
+        private final Map<String, Integer> exitStatus = Collections.synchronizedMap(new HashMap<String, Integer>());
+        private final List<Execution> executions = Collections.synchronizedList(new ArrayList<Execution>());
+
+        Host(final String name) {
+            this.name = name;
+        }
+
+        String name() {
+            return name;
+        }
+
+        /**
+         * Milliseconds added to every login and every command.
+         */
+        Host latency(final long millis) {
+            this.latency = millis;
+            return this;
+        }
+
+        /**
+         * Milliseconds every command runs.
+         */
+        Host commandTime(final long millis) {
+            this.commandTime = millis;
+            return this;
+        }
+
+        /**
+         * Bytes of output every command writes.
+         */
+        Host outputBytes(final int bytes) {
+            this.outputBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Exit status of commands starting with the prefix.
+         */
+        Host exitStatus(final String commandPrefix, final int status) {
+            exitStatus.put(commandPrefix, status);
+            return this;
+        }
+
+        /**
+         * Drops the connection while running the command after the given number of commands.
+         */
+        Host dropAfter(final int commands) {
+            dropAfter.set(commands);
+            return this;
+        }
+
+        Host refuseLogin() {
+            this.refuseLogin = true;
+            return this;
+        }
+
+        /**
+         * @return number of times the host has been logged in to.
+         */
+        int logins() {
+            return logins.get();
+        }
+
+        /**
+         * @return commands run on the host, in the order they finished.
+         */
+        List<Execution> executions() {
+            synchronized (executions) {
+                return new ArrayList<Execution>(executions);
+            }
+        }
+
+        /**
+         * @return the commands run on the host, in the order they finished.
+         */
+        List<String> commands() {
+            List<String> commands = new ArrayList<String>();
+            for (Execution execution : executions()) {
+                commands.add(execution.command);
+            }
+            return commands;
+        }
+
+        private int exitStatusOf(final String command) {
+            synchronized (exitStatus) {
+                for (Map.Entry<String, Integer> entry : exitStatus.entrySet()) {
+                    if (command.startsWith(entry.getKey())) {
+                        return entry.getValue();
+                    }
+                }
+            }
+            return command.equals("false") ? 1 : 0;
+        }
+    }
+
+    /**
+     * Server with a public bind, to listen on one more port.
+     */
+    private static class FleetServer extends SshServer {
+
+        int bind(final SocketAddress address) throws IOException {
+            Set<SocketAddress> before = new HashSet<SocketAddress>(acceptor.getBoundAddresses());
+            acceptor.bind(address);
+            for (SocketAddress bound : acceptor.getBoundAddresses()) {
+                if (!before.contains(bound)) {
+                    return ((InetSocketAddress) bound).getPort();
+                }
+            }
+            throw new IOException("Unable to bind " + address);
+        }
+    }
+
+    private class FakeCommand implements Command {
+
+        private final String command;
+        private OutputStream out;
+        private ExitCallback callback;
+
+        FakeCommand(final String command) {
+            this.command = command.trim();
+        }
+
+        @Override
+        public void setInputStream(final InputStream in) {
+        }
+
+        @Override
+        public void setOutputStream(final OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void setErrorStream(final OutputStream err) {
+        }
+
+        @Override
+        public void setExitCallback(final ExitCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void start(final ChannelSession channel, final Environment env) {
+            final Host host = channel.getSession().getAttribute(HOST);
+            runner.submit(() -> run(channel, host));
+        }
+
+        private void run(final ChannelSession channel, final Host host) {
+            long start = System.nanoTime();
+            int status = host.exitStatusOf(command);
+            try {
+                sleep(host.latency + host.commandTime);
+                if (host.dropAfter.getAndDecrement() == 0) {
+                    channel.getSession().close(true);
+                    return;
+                }
+                if (command.startsWith("echo ")) {
+                    out.write((command.substring(5) + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                if (host.outputBytes > 0) {
+                    byte[] output = new byte[host.outputBytes];
+                    Arrays.fill(output, (byte) 'x');
+                    out.write(output);
+                }
+                out.flush();
+            } catch (IOException e) {
+                status = 255;
+            } finally {
+                host.executions.add(new Execution(command, start, System.nanoTime()));
+            }
+            callback.onExit(status);
+        }
+
+        @Override
+        public void destroy(final ChannelSession channel) {
+        }
+    }
+}
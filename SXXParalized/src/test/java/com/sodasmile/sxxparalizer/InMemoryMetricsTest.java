@@ -0,0 +1,84 @@
+package com.sodasmile.sxxparalizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.util.Iterator;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+/**
+ * Tests histograms and the per host and per command views of recorded metrics.
+ */
+public class InMemoryMetricsTest {
+
+    @Test
+    public void testHistogramPercentilesAreWithinBucketPrecision() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000L, histogram.getMin());
+        assertEquals(1000000L, histogram.getMax());
+        assertEquals(500500.0, histogram.getMean(), 0.001);
+        long p50 = histogram.get50thPercentile();
+        assertTrue("p50 was " + p50, p50 >= 500000 && p50 <= 500000 * 1.125);
+        long p99 = histogram.get99thPercentile();
+        assertTrue("p99 was " + p99, p99 >= 990000 && p99 <= 1000000);
+    }
+
+    @Test
+    public void testBucketBoundsCoverAllValues() {
+        for (long value : new long[]{0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE}) {
+            int bucket = Histogram.bucket(value);
+            assertTrue(value + " above bound", value <= Histogram.upperBound(bucket));
+            assertTrue(value + " below previous bound", bucket == 0 || value > Histogram.upperBound(bucket - 1));
+        }
+    }
+
+    @Test
+    public void testHostsAreSortedByTotal() {
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        metrics.record(Metrics.COMMAND, "fast", "ls", 10);
+        metrics.record(Metrics.COMMAND, "slow", "ls", 100);
+        metrics.record(Metrics.COMMAND, "slow", "make", 1000);
+
+        Iterator<String> hosts = metrics.getHistogramsByHost(Metrics.COMMAND).keySet().iterator();
+        assertEquals("slow", hosts.next());
+        assertEquals("fast", hosts.next());
+        assertEquals(110, metrics.getHistogramsByCommand(Metrics.COMMAND).get("ls").getSum());
+        assertEquals(2, metrics.getHistogram(Metrics.COMMAND, "slow").getCount());
+        assertNull(metrics.getHistogram(Metrics.CONNECT, "slow"));
+    }
+
+    @Test
+    public void testCommandsBeyondTheMaximumShareAHistogram() {
+        InMemoryMetrics metrics = new InMemoryMetrics(2);
+        for (int i = 0; i < 10; i++) {
+            metrics.record(Metrics.COMMAND, "host" + i, "deploy --node=" + i, 10);
+        }
+        metrics.record(Metrics.COMMAND, "host0", "deploy --node=0", 10);
+
+        assertEquals(3, metrics.getHistogramsByCommand(Metrics.COMMAND).size());
+        assertEquals(20, metrics.getHistogramsByCommand(Metrics.COMMAND).get("deploy --node=0").getSum());
+        assertEquals(80, metrics.getHistogramsByCommand(Metrics.COMMAND).get(InMemoryMetrics.OTHER_COMMANDS).getSum());
+        assertEquals(10, metrics.getHistogramsByHost(Metrics.COMMAND).size());
+    }
+
+    @Test
+    public void testJmxRegistersOneMBeanForCommandsBeyondTheMaximum() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        JmxMetrics metrics = new JmxMetrics(server, "test", 2);
+        for (int i = 0; i < 10; i++) {
+            metrics.record(Metrics.BYTES_SENT, "host", "cat > /tmp/file" + i, 10);
+        }
+        assertEquals(3, server.queryNames(new ObjectName("test:type=bytesSent,command=*"), null).size());
+        assertEquals(1, server.queryNames(new ObjectName("test:type=bytesSent,host=*"), null).size());
+        metrics.unregisterAll();
+        assertEquals(0, server.queryNames(new ObjectName("test:*"), null).size());
+    }
+}
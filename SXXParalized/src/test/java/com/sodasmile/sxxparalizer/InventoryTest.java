@@ -0,0 +1,81 @@
+package com.sodasmile.sxxparalizer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests parsing of inventories, and selecting hosts with them in scripts.
+ */
+public class InventoryTest {
+
+    private static final String INVENTORY = "# Test inventory\n"
+            + "loose\n"
+            + "[web]\n"
+            + "web1 tags=frontend,eu role=primary\n"
+            + "web2 port=2222 user=deploy role=secondary\n"
+            + "\n"
+            + "[db]\n"
+            + "db1 tags=db,eu\n"
+            + "web1 dc=oslo\n";
+
+    @Test
+    public void testParse() {
+        Inventory inventory = Inventory.parse(INVENTORY);
+        assertArrayEquals(new String[]{"loose", "web1", "web2:2222", "db1"}, inventory.hosts());
+        assertEquals(Arrays.asList("web", "db"), Arrays.asList(inventory.groups().toArray()));
+        assertEquals(new HashSet<String>(Arrays.asList("db1", "web1")), inventory.group("db"));
+        assertEquals(new HashSet<String>(Arrays.asList("web1", "db1")), inventory.tagged("eu"));
+        assertTrue(inventory.tagged("none").isEmpty());
+        assertEquals("deploy", inventory.user("web2:2222"));
+        assertNull(inventory.user("web1"));
+        assertEquals("primary", inventory.vars("web1").get("role"));
+        assertEquals("oslo", inventory.vars("web1").get("dc"));
+        assertTrue(inventory.vars("loose").isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSetting() {
+        Inventory.parse("[web]\nweb1 role\n");
+    }
+
+    @Test
+    public void testGroupsTagsAndVarsInScript() {
+        Inventory inventory = Inventory.parse(INVENTORY);
+        CommandScript script = new CommandScript(new String[]{
+                "%@web: restart ${role} in ${dc} for $HOME ${HOME}",
+                "%tag=db: vacuum",
+                "uptime"}, inventory.hosts(), groupsOf(inventory), inventory);
+
+        List<CommandScript.Step> web1 = script.stepsFor("web1");
+        assertEquals(2, web1.size());
+        assertEquals("restart primary in oslo for $HOME ${HOME}", web1.get(0).command());
+        assertEquals("uptime", web1.get(1).command());
+        assertEquals("restart secondary in ${dc} for $HOME ${HOME}", script.stepsFor("web2:2222").get(0).command());
+        assertEquals("vacuum", script.stepsFor("db1").get(0).command());
+        assertEquals(1, script.stepsFor("loose").size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownGroupInScript() {
+        Inventory inventory = Inventory.parse(INVENTORY);
+        new CommandScript(new String[]{"%@nope: ls"}, inventory.hosts(), groupsOf(inventory), inventory);
+    }
+
+    private static Map<String, Set<String>> groupsOf(final Inventory inventory) {
+        Map<String, Set<String>> groups = new HashMap<String, Set<String>>();
+        for (String group : inventory.groups()) {
+            groups.put(group, inventory.group(group));
+        }
+        return groups;
+    }
+}
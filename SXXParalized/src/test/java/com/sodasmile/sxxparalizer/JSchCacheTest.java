@@ -0,0 +1,38 @@
+package com.sodasmile.sxxparalizer;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.KeyPair;
+
+import java.io.File;
+
+/**
+ * Tests that keyfiles are loaded once, and reloaded when changed.
+ */
+public class JSchCacheTest {
+
+    @Test
+    public void testReusesInstanceUntilKeyfileChanges() throws Exception {
+        File keyfile = File.createTempFile("sxx", "_rsa");
+        keyfile.deleteOnExit();
+        writeKey(keyfile);
+
+        JSchCache cache = new JSchCache();
+        JSch first = cache.get(keyfile.getPath(), null, null);
+        assertSame(first, cache.get(keyfile.getPath(), null, null));
+        assertNotSame(first, cache.get(keyfile.getPath(), "other passphrase", null));
+
+        writeKey(keyfile);
+        keyfile.setLastModified(keyfile.lastModified() + 2000);
+        assertNotSame(first, cache.get(keyfile.getPath(), null, null));
+    }
+
+    private void writeKey(final File keyfile) throws Exception {
+        KeyPair keyPair = KeyPair.genKeyPair(new JSch(), KeyPair.RSA, 1024);
+        keyPair.writePrivateKey(keyfile.getPath());
+        keyPair.dispose();
+    }
+}
@@ -0,0 +1,64 @@
+package com.sodasmile.sxxparalizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+/**
+ * Tests grouping hosts by the output of their commands, and the summary of the groups.
+ */
+public class OutputAggregatorTest {
+
+    @Test
+    public void testIdenticalCommandsInAConcurrentStepAreGroupedApart() throws Exception {
+        OutputAggregator aggregator = new OutputAggregator();
+        add(aggregator, 0, "host1", 1, "failed\n");
+        add(aggregator, 1, "host1", 0, "restarted\n");
+        add(aggregator, 0, "host2", 0, "restarted\n");
+        add(aggregator, 1, "host2", 0, "restarted\n");
+        add(aggregator, 0, "host3", 0, "restarted\n");
+        add(aggregator, 1, "host3", 0, "restarted\n");
+
+        String[] lines = summary(aggregator);
+        assertEquals(5, lines.length);
+        assertEquals("#3 restart", lines[0]);
+        assertEquals("  2 hosts: restarted", lines[1]);
+        assertEquals("  1 host, exit status 1 (host1): failed", lines[2]);
+        assertEquals("#3 restart", lines[3]);
+        assertEquals("  3 hosts: restarted", lines[4]);
+    }
+
+    @Test
+    public void testRetryMovesTheHostToTheGroupOfTheNewOutput() throws Exception {
+        OutputAggregator aggregator = new OutputAggregator();
+        add(aggregator, 0, "host1", 1, "failed\n");
+        add(aggregator, 0, "host2", 0, "restarted\n");
+        add(aggregator, 0, "host1", 0, "restarted\n");
+
+        String[] lines = summary(aggregator);
+        assertEquals(2, lines.length);
+        assertEquals("  2 hosts: restarted", lines[1]);
+    }
+
+    private static void add(final OutputAggregator aggregator, final int position, final String host,
+                            final int exitStatus, final String output) throws Exception {
+        OutputAggregator.DigestingOutputStream stdoutDigest = new OutputAggregator.DigestingOutputStream();
+        OutputAggregator.DigestingOutputStream stderrDigest = new OutputAggregator.DigestingOutputStream();
+        CapturingOutputStream stdout = new CapturingOutputStream(stdoutDigest, 1024);
+        CapturingOutputStream stderr = new CapturingOutputStream(stderrDigest, 1024);
+        stdout.write(output.getBytes("UTF-8"));
+        aggregator.add(2, position, "restart", host, exitStatus, stdoutDigest.digest(), stderrDigest.digest(),
+                stdout, stderr);
+    }
+
+    private static String[] summary(final OutputAggregator aggregator) throws Exception {
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        SXXLog log = new SXXLog(new PrintStream(printed, true, "UTF-8"), 16);
+        aggregator.logSummary(log);
+        assertTrue(log.flush(5000));
+        return printed.toString("UTF-8").split("\n");
+    }
+}
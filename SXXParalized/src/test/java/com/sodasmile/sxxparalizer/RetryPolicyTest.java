@@ -0,0 +1,45 @@
+package com.sodasmile.sxxparalizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests the delays between attempts, and the checks of the settings.
+ */
+public class RetryPolicyTest {
+
+    @Test
+    public void testDelayDoublesUpToMaxDelayWithJitter() {
+        RetryPolicy policy = new RetryPolicy().initialDelay(100).maxDelay(1000);
+        for (int i = 0; i < 100; i++) {
+            long first = policy.delay(1);
+            assertTrue("First delay was " + first, first > 50 && first <= 100);
+            long third = policy.delay(3);
+            assertTrue("Third delay was " + third, third > 200 && third <= 400);
+            long tenth = policy.delay(10);
+            assertTrue("Tenth delay was " + tenth, tenth > 500 && tenth <= 1000);
+        }
+    }
+
+    @Test
+    public void testNoDelay() {
+        RetryPolicy policy = new RetryPolicy().initialDelay(0).maxDelay(0);
+        assertEquals(0, policy.delay(5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeInitialDelay() {
+        new RetryPolicy().initialDelay(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeMaxDelay() {
+        new RetryPolicy().initialDelay(0).maxDelay(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxDelayBelowInitialDelay() {
+        new RetryPolicy().initialDelay(1000).maxDelay(999);
+    }
+}
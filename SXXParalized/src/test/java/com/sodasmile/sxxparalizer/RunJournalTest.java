@@ -0,0 +1,92 @@
+package com.sodasmile.sxxparalizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests writing and resuming run journals.
+ */
+public class RunJournalTest {
+
+    private static final String[] SCRIPT = {"echo one", "===", "& echo two", "& echo three"};
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("sxx", ".journal");
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        RunJournal journal = RunJournal.open(file, SCRIPT, false);
+        journal.commandDone("host1", 0, 0, 0);
+        journal.barrierPassed("host1", 1);
+        journal.commandDone("host1", 2, 1, 3);
+        journal.commandDone("host2", 0, 0, 0);
+        journal.close();
+
+        journal = RunJournal.open(file, SCRIPT, true);
+        assertEquals(3, journal.doneCount());
+        assertTrue(journal.isDone("host1", 2, 1));
+        assertFalse(journal.isDone("host1", 2, 0));
+        assertEquals(3, journal.exitStatus("host1", 2, 1));
+        assertEquals(-1, journal.exitStatus("host2", 2, 1));
+        assertTrue(journal.isPassed("host1", 1));
+        assertFalse(journal.isPassed("host2", 1));
+        journal.commandDone("host2", 2, 0, 0);
+        journal.close();
+
+        journal = RunJournal.open(file, SCRIPT, true);
+        assertEquals(4, journal.doneCount());
+        journal.close();
+        journal = RunJournal.open(file, SCRIPT, false);
+        assertEquals(0, journal.doneCount());
+        journal.close();
+        journal = RunJournal.open(file, SCRIPT, true);
+        assertEquals(0, journal.doneCount());
+        journal.close();
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws IOException {
+        RunJournal journal = RunJournal.open(file, SCRIPT, false);
+        journal.commandDone("host1", 0, 0, 0);
+        journal.commandDone("host2", 0, 0, 0);
+        journal.close();
+        long length = file.length();
+        RandomAccessFile torn = new RandomAccessFile(file, "rw");
+        torn.setLength(length - 3);
+        torn.close();
+
+        journal = RunJournal.open(file, SCRIPT, true);
+        assertEquals(1, journal.doneCount());
+        assertTrue(journal.isDone("host1", 0, 0));
+        journal.commandDone("host3", 0, 0, 0);
+        journal.close();
+
+        journal = RunJournal.open(file, SCRIPT, true);
+        assertTrue(journal.isDone("host3", 0, 0));
+        assertFalse(journal.isDone("host2", 0, 0));
+        journal.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testJournalOfAnotherScript() throws IOException {
+        RunJournal.open(file, SCRIPT, false).close();
+        RunJournal.open(file, new String[]{"echo other"}, true).close();
+    }
+}
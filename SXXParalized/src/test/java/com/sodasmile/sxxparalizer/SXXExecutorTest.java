@@ -0,0 +1,40 @@
+package com.sodasmile.sxxparalizer;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+/**
+ * Tests the local parts of uploads.
+ */
+public class SXXExecutorTest {
+
+    @Test
+    public void testSha256() throws Exception {
+        File file = File.createTempFile("sxx", ".bin");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("abc".getBytes("UTF-8"));
+        out.close();
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", SXXExecutor.sha256(file));
+    }
+
+    @Test
+    public void testPortInHostName() {
+        SXXExecutor executor = new SXXExecutor.SXXExecutorBuilder(new SXXParameters()
+                .username("user").password("secret").host("localhost:2222")).build();
+        assertEquals("localhost:2222", executor.getHost());
+        assertEquals(2222, executor.getPort());
+
+        executor = new SXXExecutor.SXXExecutorBuilder(new SXXParameters()
+                .username("user").password("secret").host("localhost").port(2200)).build();
+        assertEquals(2200, executor.getPort());
+    }
+
+    @Test
+    public void testShellQuote() {
+        assertEquals("'it'\\''s here'", SXXExecutor.shellQuote("it's here"));
+    }
+}
@@ -0,0 +1,66 @@
+package com.sodasmile.sxxparalizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+/**
+ * Tests formatting and level checks of the asynchronous log.
+ */
+public class SXXLogTest {
+
+    @Test
+    public void testRecordsArePrintedInOrderWithHostAndStep() throws Exception {
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        SXXLog log = new SXXLog(new PrintStream(printed, true, "UTF-8"), 4);
+        for (int i = 0; i < 10; i++) {
+            log.info("host1", "line {}", i);
+        }
+        log.log(SXXLog.Level.WARN, "host2", 2, null, "{} of {} done", 1, 3);
+        log.debug("host1", "not printed {}", new Object() {
+            @Override
+            public String toString() {
+                throw new AssertionError("Formatted a disabled message");
+            }
+        });
+        assertTrue(log.flush(5000));
+
+        String[] lines = printed.toString("UTF-8").split("\n");
+        assertEquals(11, lines.length);
+        assertEquals("host1: line 0", lines[0]);
+        assertEquals("host1: line 9", lines[9]);
+        assertEquals("host2#3: WARN 1 of 3 done", lines[10]);
+    }
+
+    @Test
+    public void testArgumentFailingToFormatDoesNotStopTheWriter() throws Exception {
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        SXXLog log = new SXXLog(new PrintStream(printed, true, "UTF-8"), 4);
+        log.info("host1", "bad {}", new Object() {
+            @Override
+            public String toString() {
+                throw new IllegalStateException("broken");
+            }
+        });
+        // More records than the buffer holds, these would block forever if the writer had died.
+        for (int i = 0; i < 10; i++) {
+            log.info("host1", "line {}", i);
+        }
+        assertTrue(log.flush(5000));
+
+        String[] lines = printed.toString("UTF-8").split("\n");
+        assertEquals(11, lines.length);
+        assertEquals("host1: ERROR Unable to format log record \"bad {}\": java.lang.IllegalStateException", lines[0]);
+        assertEquals("host1: line 9", lines[10]);
+    }
+
+    @Test
+    public void testFormatMessage() {
+        StringBuilder text = new StringBuilder();
+        SXXLog.formatMessage(text, "{} and {}, {}", new Object[]{"a", null});
+        assertEquals("a and null, {}", text.toString());
+    }
+}
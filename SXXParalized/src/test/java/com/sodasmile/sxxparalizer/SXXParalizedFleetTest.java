@@ -0,0 +1,389 @@
+package com.sodasmile.sxxparalizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs SXXParalized against a {@link FakeFleet} of local SSH servers.
+ */
+public class SXXParalizedFleetTest {
+
+    private static final int FLEET_SIZE = 200;
+
+    private FakeFleet fleet;
+
+    @Before
+    public void startFleet() throws Exception {
+        SXXLog.shared().setLevel(SXXLog.Level.WARN);
+        fleet = new FakeFleet(FLEET_SIZE);
+    }
+
+    @After
+    public void stopFleet() throws Exception {
+        fleet.close();
+        SXXLog.shared().setLevel(SXXLog.Level.INFO);
+    }
+
+    @Test
+    public void testBarrierHoldsBackAllHostsAtScale() throws Exception {
+        for (int i = 0; i < FLEET_SIZE; i += 10) {
+            fleet.host(i).latency(50).commandTime(100).outputBytes(100000);
+        }
+        List<HostResult> results = run(fleet.parameters(), "echo before", "===", "echo after");
+
+        long lastBefore = Long.MIN_VALUE;
+        long firstAfter = Long.MAX_VALUE;
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            assertTrue(results.get(i).toString(), results.get(i).isSuccess());
+            List<FakeFleet.Execution> executions = fleet.host(i).executions();
+            assertEquals(Arrays.asList("echo before", "echo after"), fleet.host(i).commands());
+            lastBefore = Math.max(lastBefore, executions.get(0).end);
+            firstAfter = Math.min(firstAfter, executions.get(1).start);
+        }
+        assertTrue("A host passed the barrier before all hosts reached it", firstAfter > lastBefore);
+    }
+
+    @Test
+    public void testSlowHostsRunInParallel() throws Exception {
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            fleet.host(i).latency(100).commandTime(200);
+        }
+        long start = System.currentTimeMillis();
+        run(fleet.parameters(), "true", "true");
+        long elapsed = System.currentTimeMillis() - start;
+        // Sequentially this would take at least 200 hosts * (100 + 2 * 300) ms = 140 s.
+        assertTrue("Took " + elapsed + " ms", elapsed < 30000);
+    }
+
+    @Test
+    public void testHostSpecificCommands() throws Exception {
+        String special = fleet.host(3).name();
+        run(fleet.parameters(), "echo all", "%" + special + ": echo only here", "& %" + special + ": echo also here",
+                "& echo concurrent");
+
+        assertEquals(Arrays.asList("echo all", "echo concurrent"), fleet.host(0).commands());
+        List<String> commands = fleet.host(3).commands();
+        assertEquals(4, commands.size());
+        assertEquals(Arrays.asList("echo all", "echo only here"), commands.subList(0, 2));
+        // The concurrent commands may start in any order.
+        assertEquals(new HashSet<String>(Arrays.asList("echo also here", "echo concurrent")),
+                new HashSet<String>(commands.subList(2, 4)));
+    }
+
+    @Test
+    public void testFailOnErrorStopsOnlyTheFailingHost() throws Exception {
+        fleet.host(1).exitStatus("deploy", 3);
+        List<HostResult> results = run(fleet.parameters(), "deploy", "===", "echo after");
+
+        assertFalse(results.get(1).isSuccess());
+        assertEquals(3, results.get(1).getCommandResults().get(0).getExitStatus());
+        assertEquals(Collections.singletonList("deploy"), fleet.host(1).commands());
+        assertTrue(results.get(0).isSuccess());
+        assertEquals(Arrays.asList("deploy", "echo after"), fleet.host(0).commands());
+    }
+
+    @Test
+    public void testWithoutFailOnErrorFailedCommandsAreRecordedAndRunGoesOn() throws Exception {
+        fleet.host(1).exitStatus("deploy", 3);
+        List<HostResult> results = run(fleet.parameters().failOnError(false), "deploy", "echo after");
+
+        assertEquals(3, results.get(1).getCommandResults().get(0).getExitStatus());
+        assertEquals(Arrays.asList("deploy", "echo after"), fleet.host(1).commands());
+    }
+
+    @Test
+    public void testDroppedConnectionsAndRefusedLoginsDoNotBlockBarriers() throws Exception {
+        fleet.host(2).dropAfter(0);
+        fleet.host(4).refuseLogin();
+        List<HostResult> results = run(fleet.parameters(), "true", "===", "echo after");
+
+        assertFalse(results.get(2).isSuccess());
+        assertFalse(results.get(4).isSuccess());
+        assertTrue(fleet.host(4).commands().isEmpty());
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            if (i != 2 && i != 4) {
+                assertTrue(results.get(i).toString(), results.get(i).isSuccess());
+            }
+        }
+    }
+
+    @Test
+    public void testCancellationStopsCommandsInFlight() throws Exception {
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            fleet.host(i).commandTime(i == 5 ? 0 : 20000);
+        }
+        fleet.host(5).exitStatus("work", 1);
+        long start = System.currentTimeMillis();
+        List<HostResult> results = run(fleet.parameters(), new CancellationPolicy(), "work", "===", "echo after");
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue("Took " + elapsed + " ms", elapsed < 10000);
+        assertTrue(results.get(5).getFailure() instanceof CommandFailedException);
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            assertFalse(results.get(i).isSuccess());
+            assertFalse(fleet.host(i).commands().contains("echo after"));
+        }
+        assertTrue(results.get(0).getFailure().getMessage(), results.get(0).getFailure().getMessage().startsWith("Cancelled"));
+    }
+
+    @Test
+    public void testCancellationReleasesHostsWaitingAtBarrier() throws Exception {
+        fleet.host(0).commandTime(2000).exitStatus("work", 1);
+        long start = System.currentTimeMillis();
+        List<HostResult> results = run(fleet.parameters(), new CancellationPolicy(), "work", "===", "echo after");
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue("Took " + elapsed + " ms", elapsed < 10000);
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            assertFalse(results.get(i).isSuccess());
+            assertFalse(fleet.host(i).commands().contains("echo after"));
+        }
+    }
+
+    @Test
+    public void testCancellationAcceptsMaxFailures() throws Exception {
+        fleet.host(0).exitStatus("work", 1);
+        fleet.host(1).exitStatus("work", 1);
+        List<HostResult> results = run(fleet.parameters(), new CancellationPolicy().maxFailures(2), "work", "===",
+                "echo after");
+
+        assertTrue(results.get(2).isSuccess());
+        assertEquals(Arrays.asList("work", "echo after"), fleet.host(2).commands());
+    }
+
+    @Test
+    public void testRollingBatchLimitsHostsRunningAtOnce() throws Exception {
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            fleet.host(i).commandTime(20);
+        }
+        SXXParalized paralized = new SXXParalized(fleet.parameters());
+        paralized.setHosts(fleet.hosts());
+        paralized.setCommands(new String[]{"echo rolling"});
+        paralized.setRollingPolicy(new RollingPolicy().batchPercent(5));
+        List<HostResult> results = paralized.runCommands();
+
+        List<long[]> events = new ArrayList<long[]>();
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            assertTrue(results.get(i).toString(), results.get(i).isSuccess());
+            FakeFleet.Execution execution = fleet.host(i).executions().get(0);
+            events.add(new long[]{execution.start, 1});
+            events.add(new long[]{execution.end, -1});
+        }
+        Collections.sort(events, new Comparator<long[]>() {
+            public int compare(final long[] a, final long[] b) {
+                return a[0] != b[0] ? (a[0] < b[0] ? -1 : 1) : (int) (a[1] - b[1]);
+            }
+        });
+        int running = 0;
+        int maxRunning = 0;
+        for (long[] event : events) {
+            running += event[1];
+            maxRunning = Math.max(maxRunning, running);
+        }
+        // 5% of 200 hosts.
+        assertTrue("Ran " + maxRunning + " hosts at once", maxRunning <= 10);
+        assertTrue("Ran " + maxRunning + " hosts at once", maxRunning > 1);
+    }
+
+    @Test
+    public void testRollingStopsStartingHostsAfterMaxFailures() throws Exception {
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            fleet.host(i).commandTime(500);
+        }
+        for (int i = 0; i < 3; i++) {
+            fleet.host(i).commandTime(0).exitStatus("echo", 1);
+        }
+        SXXParalized paralized = new SXXParalized(fleet.parameters());
+        paralized.setHosts(fleet.hosts());
+        paralized.setCommands(new String[]{"echo rolling"});
+        paralized.setRollingPolicy(new RollingPolicy().batchSize(5).maxFailures(2));
+        List<HostResult> results = paralized.runCommands();
+
+        int ran = 0;
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            if (!fleet.host(i).commands().isEmpty()) {
+                ran++;
+                assertTrue(results.get(i).wasRun());
+            } else {
+                assertFalse(results.get(i).isSuccess());
+            }
+        }
+        // The failed hosts, and at most a batch of hosts started before the third failure.
+        assertTrue("Ran " + ran + " hosts", ran <= 3 + 5);
+        assertFalse(results.get(FLEET_SIZE - 1).wasRun());
+    }
+
+    @Test
+    public void testJumpHostSessionIsSharedByAllHosts() throws Exception {
+        List<HostResult> results = run(fleet.parameters().jumpHost("fleet@" + fleet.host(0).name()),
+                "echo through", "===", "echo done");
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            assertTrue(results.get(i).toString(), results.get(i).isSuccess());
+            assertEquals("through\n", results.get(i).getCommandResults().get(0).getStdout());
+            // Host 0 is logged in to once as jump host, and once through itself as target.
+            assertEquals(i == 0 ? 2 : 1, fleet.host(i).logins());
+        }
+    }
+
+    @Test
+    public void testJumpHostSessionIsNotSharedBetweenCredentials() throws Exception {
+        String jumpHost = "fleet@" + fleet.host(0).name();
+        SXXExecutor first = connected(fleet.parameters().jumpHost(jumpHost));
+        SXXExecutor same = connected(fleet.parameters().jumpHost(jumpHost));
+        SXXExecutor other = connected(fleet.parameters().password("other").jumpHost(jumpHost));
+        try {
+            assertEquals(2, fleet.host(0).logins());
+            assertEquals(3, fleet.host(1).logins());
+        } finally {
+            first.disconnect();
+            same.disconnect();
+            other.disconnect();
+        }
+    }
+
+    private SXXExecutor connected(final SXXParameters parameters) throws Exception {
+        SXXExecutor executor = new SXXExecutor.SXXExecutorBuilder(parameters.host(fleet.host(1).name())).build();
+        assertEquals(0, executor.sendCommand("true", new ByteArrayOutputStream(), new ByteArrayOutputStream()));
+        return executor;
+    }
+
+    @Test
+    public void testInventoryGroupsTagsAndVars() throws Exception {
+        StringBuilder text = new StringBuilder("[fleet]\n");
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            String port = fleet.host(i).name().substring(fleet.host(i).name().indexOf(':') + 1);
+            text.append("127.0.0.1 port=").append(port).append(" number=").append(i)
+                    .append(i % 2 == 0 ? " tags=even" : "").append('\n');
+        }
+        SXXParalized paralized = new SXXParalized(fleet.parameters());
+        paralized.setInventory(Inventory.parse(text.toString()));
+        paralized.setCommands(new String[]{"%tag=even: echo even", "=== @fleet", "echo host ${number}"});
+        List<HostResult> results = paralized.runCommands();
+
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            assertEquals(fleet.host(i).name(), results.get(i).getHost());
+            assertTrue(results.get(i).isSuccess());
+            assertEquals(i % 2 == 0 ? Arrays.asList("echo even", "echo host " + i)
+                    : Collections.singletonList("echo host " + i), fleet.host(i).commands());
+        }
+    }
+
+    @Test
+    public void testAggregatedOutputIsSharedByHostsWithTheSameOutput() throws Exception {
+        fleet.host(3).exitStatus("echo same", 1);
+        SXXParalized paralized = new SXXParalized(fleet.parameters().failOnError(false));
+        paralized.setHosts(fleet.hosts());
+        paralized.setCommands(new String[]{"echo same", "& echo same too", "& echo also"});
+        paralized.setAggregateOutput(true);
+        List<HostResult> results = paralized.runCommands();
+
+        CommandResult first = results.get(0).getCommandResults().get(0);
+        assertEquals("same\n", first.getStdout());
+        for (int i = 1; i < FLEET_SIZE; i++) {
+            CommandResult same = results.get(i).getCommandResults().get(0);
+            assertEquals(i == 3 ? 1 : 0, same.getExitStatus());
+            if (i != 3) {
+                assertSame(first.getStdout(), same.getStdout());
+            }
+            assertSame(results.get(0).getCommandResults().get(2).getStdout(),
+                    results.get(i).getCommandResults().get(2).getStdout());
+        }
+    }
+
+    @Test
+    public void testResumeSkipsCommandsDoneInTheJournal() throws Exception {
+        File journal = File.createTempFile("sxx", ".journal");
+        journal.deleteOnExit();
+        fleet.host(5).exitStatus("echo three", 1);
+        String[] commands = {"echo one", "===", "& echo two", "& echo three", "echo four"};
+        SXXParalized paralized = new SXXParalized(fleet.parameters());
+        paralized.setHosts(fleet.hosts());
+        paralized.setCommands(commands);
+        paralized.setJournal(journal, false);
+        assertFalse(paralized.runCommands().get(5).isSuccess());
+
+        fleet.host(5).exitStatus("echo three", 0);
+        paralized.setJournal(journal, true);
+        List<HostResult> results = paralized.runCommands();
+
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            assertTrue(results.get(i).toString(), results.get(i).isSuccess());
+            assertEquals(4, results.get(i).getCommandResults().size());
+            List<String> run = fleet.host(i).commands();
+            if (i == 5) {
+                assertEquals(5, run.size());
+                assertEquals(Arrays.asList("echo three", "echo four"), run.subList(3, 5));
+                assertEquals(0, results.get(i).getCommandResults().get(1).getAttempts());
+                assertEquals(1, results.get(i).getCommandResults().get(2).getAttempts());
+            } else {
+                assertEquals(4, run.size());
+                assertEquals(0, results.get(i).getCommandResults().get(3).getAttempts());
+            }
+        }
+    }
+
+    @Test
+    public void testAsyncCommandsChainedFromListeners() throws Exception {
+        final CountDownLatch done = new CountDownLatch(FLEET_SIZE);
+        final List<SXXExecutor> executors = new ArrayList<SXXExecutor>();
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            final SXXExecutor executor = new SXXExecutor.SXXExecutorBuilder(fleet.parameters()
+                    .host(fleet.host(i).name())).build();
+            executors.add(executor);
+            executor.sendCommandAsync("echo first", new ByteArrayOutputStream(), new ByteArrayOutputStream())
+                    .addListener(new CommandFuture.Listener() {
+                        public void completed(final CommandFuture future) {
+                            try {
+                                executor.sendCommandAsync("echo second", new ByteArrayOutputStream(),
+                                        new ByteArrayOutputStream()).addListener(new CommandFuture.Listener() {
+                                    public void completed(final CommandFuture future) {
+                                        done.countDown();
+                                    }
+                                });
+                            } catch (Exception ex) {
+                                throw new IllegalStateException(ex);
+                            }
+                        }
+                    });
+        }
+        try {
+            assertTrue("Not all hosts ran both commands", done.await(60, TimeUnit.SECONDS));
+            for (int i = 0; i < FLEET_SIZE; i++) {
+                assertEquals(Arrays.asList("echo first", "echo second"), fleet.host(i).commands());
+            }
+        } finally {
+            for (SXXExecutor executor : executors) {
+                executor.disconnect();
+            }
+        }
+    }
+
+    private List<HostResult> run(final SXXParameters parameters, final String... commands) throws Exception {
+        return run(parameters, null, commands);
+    }
+
+    private List<HostResult> run(final SXXParameters parameters, final CancellationPolicy cancellationPolicy,
+                                 final String... commands) throws Exception {
+        SXXParalized paralized = new SXXParalized(parameters);
+        paralized.setHosts(fleet.hosts());
+        paralized.setCommands(commands);
+        paralized.setCancellationPolicy(cancellationPolicy);
+        return paralized.runCommands();
+    }
+}
@@ -0,0 +1,214 @@
+package com.sodasmile.sxxparalizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests borrowing, returning and evicting pooled sessions to a {@link FakeFleet}, counting logins.
+ */
+public class SessionPoolTest {
+
+    private static final String IDENTITY = "password=fleet";
+
+    private FakeFleet fleet;
+    private SessionPool pool;
+
+    @Before
+    public void startFleet() throws Exception {
+        fleet = new FakeFleet(2);
+    }
+
+    @After
+    public void stopFleet() throws Exception {
+        if (pool != null) {
+            pool.close();
+        }
+        fleet.close();
+    }
+
+    @Test
+    public void testReleasedSessionIsReused() throws Exception {
+        pool = new SessionPool(2, 60000, 0);
+        Counting factory = new Counting(0);
+        Session first = borrow(0, IDENTITY, factory);
+        pool.release(first);
+        Session second = borrow(0, IDENTITY, factory);
+        assertSame(first, second);
+        assertEquals(1, factory.opened.get());
+        assertEquals(1, fleet.host(0).logins());
+        assertEquals(1, pool.getOpenSessions());
+    }
+
+    @Test
+    public void testSessionsAreNotSharedBetweenIdentities() throws Exception {
+        pool = new SessionPool(2, 60000, 0);
+        Session first = borrow(0, IDENTITY, new Counting(0));
+        pool.release(first);
+        Session other = borrow(0, "password=other", new Counting(0));
+        assertNotSame(first, other);
+        assertEquals(2, fleet.host(0).logins());
+    }
+
+    @Test
+    public void testExecutorsSharePooledSessionOnlyWithTheSameLogin() throws Exception {
+        pool = new SessionPool(4, 60000, 0);
+        run(fleet.parameters());
+        run(fleet.parameters());
+        assertEquals(1, fleet.host(0).logins());
+        run(fleet.parameters().password("other"));
+        assertEquals(2, fleet.host(0).logins());
+        assertEquals(2, pool.getOpenSessions());
+    }
+
+    @Test
+    public void testInvalidatedSessionIsDisconnected() throws Exception {
+        pool = new SessionPool(1, 60000, 0);
+        Session session = borrow(0, IDENTITY, new Counting(0));
+        pool.invalidate(session);
+        assertFalse(session.isConnected());
+        assertEquals(0, pool.getOpenSessions());
+        assertNotSame(session, borrow(0, IDENTITY, new Counting(0)));
+        assertEquals(2, fleet.host(0).logins());
+    }
+
+    @Test
+    public void testIdleSessionClosedWhileInThePoolIsReplaced() throws Exception {
+        pool = new SessionPool(1, 60000, 200);
+        Session closed = borrow(0, IDENTITY, new Counting(0));
+        pool.release(closed);
+        closed.disconnect();
+        Session replaced = borrow(0, IDENTITY, new Counting(0));
+        assertNotSame(closed, replaced);
+        assertTrue(replaced.isConnected());
+        assertEquals(1, pool.getOpenSessions());
+        assertEquals(2, fleet.host(0).logins());
+    }
+
+    @Test
+    public void testBorrowWaitsForReleaseWhenAllSessionsAreInUse() throws Exception {
+        pool = new SessionPool(1, 60000, 5000);
+        final Session session = borrow(0, IDENTITY, new Counting(0));
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ignored) {
+                    // Release right away.
+                }
+                pool.release(session);
+            }
+        }.start();
+        long start = System.currentTimeMillis();
+        assertSame(session, borrow(0, IDENTITY, new Counting(0)));
+        assertTrue(System.currentTimeMillis() - start >= 150);
+    }
+
+    @Test
+    public void testBorrowTimesOutWhenAllSessionsAreInUse() throws Exception {
+        pool = new SessionPool(1, 60000, 200);
+        borrow(0, IDENTITY, new Counting(0));
+        try {
+            borrow(1, IDENTITY, new Counting(1));
+            fail("Borrowed more than maxSessions sessions");
+        } catch (JSchException expected) {
+            assertEquals(0, fleet.host(1).logins());
+        }
+    }
+
+    @Test
+    public void testOldestIdleSessionMakesRoomForAnotherHost() throws Exception {
+        pool = new SessionPool(1, 60000, 200);
+        Session first = borrow(0, IDENTITY, new Counting(0));
+        pool.release(first);
+        borrow(1, IDENTITY, new Counting(1));
+        assertFalse(first.isConnected());
+        assertEquals(1, pool.getOpenSessions());
+    }
+
+    @Test
+    public void testIdleSessionsAreEvictedAfterMaxIdle() throws Exception {
+        pool = new SessionPool(2, 50, 0);
+        Session session = borrow(0, IDENTITY, new Counting(0));
+        pool.release(session);
+        Thread.sleep(100);
+        pool.evictIdle();
+        assertFalse(session.isConnected());
+        assertEquals(0, pool.getOpenSessions());
+    }
+
+    @Test
+    public void testCloseDisconnectsIdleAndReturnedSessions() throws Exception {
+        pool = new SessionPool(2, 60000, 0);
+        Session idle = borrow(0, IDENTITY, new Counting(0));
+        pool.release(idle);
+        Session borrowed = borrow(1, IDENTITY, new Counting(1));
+        pool.close();
+        assertFalse(idle.isConnected());
+        assertTrue(borrowed.isConnected());
+        pool.release(borrowed);
+        assertFalse(borrowed.isConnected());
+        assertEquals(0, pool.getOpenSessions());
+        try {
+            borrow(0, IDENTITY, new Counting(0));
+            fail("Borrowed from a closed pool");
+        } catch (IllegalStateException expected) {
+            // Closed.
+        }
+    }
+
+    private Session borrow(final int index, final String identity, final Counting factory) throws Exception {
+        return pool.borrow("127.0.0.1", port(index), "fleet", identity, factory);
+    }
+
+    private int port(final int index) {
+        String name = fleet.host(index).name();
+        return Integer.parseInt(name.substring(name.indexOf(':') + 1));
+    }
+
+    private void run(final SXXParameters parameters) throws Exception {
+        SXXExecutor executor = new SXXExecutor.SXXExecutorBuilder(parameters.host(fleet.host(0).name())
+                .sessionPool(pool)).build();
+        try {
+            assertEquals(0, executor.sendCommand("true", new ByteArrayOutputStream(), new ByteArrayOutputStream()));
+        } finally {
+            executor.disconnect();
+        }
+    }
+
+    /**
+     * Logs in to a host of the fleet, and counts the sessions opened.
+     */
+    private final class Counting implements SessionPool.SessionFactory {
+
+        private final int index;
+        private final AtomicInteger opened = new AtomicInteger();
+
+        Counting(final int index) {
+            this.index = index;
+        }
+
+        public Session openSession() throws JSchException {
+            Session session = new JSch().getSession("fleet", "127.0.0.1", port(index));
+            session.setPassword("fleet");
+            session.setConfig("StrictHostKeyChecking", "no");
+            session.connect(10000);
+            opened.incrementAndGet();
+            return session;
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package com.sodasmile.sxxparalizer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the executor and SXXParalized on the local process and in memory transports.
+ */
+public class TransportsTest {
+
+    @Test
+    public void testInMemoryFleet() throws Exception {
+        final Map<String, String> reached = new ConcurrentHashMap<String, String>();
+        SXXParameters parameters = new SXXParameters().transport(Transports.inMemory(new Transports.CommandHandler() {
+            public int run(final String host, final String command, final InputStream stdin,
+                           final OutputStream stdout, final OutputStream stderr) throws Exception {
+                if (command.equals("after")) {
+                    reached.put(host, command);
+                }
+                stdout.write((host + " " + command + "\n").getBytes("UTF-8"));
+                return command.equals("fail") && host.equals("host7") ? 1 : 0;
+            }
+        }));
+        String[] hosts = new String[1000];
+        for (int i = 0; i < hosts.length; i++) {
+            hosts[i] = "host" + i;
+        }
+        SXXLog.shared().setLevel(SXXLog.Level.WARN);
+        List<HostResult> results;
+        try {
+            SXXParalized p = new SXXParalized(parameters.failOnError(true));
+            p.setHosts(hosts);
+            p.setCommands(new String[]{"before", "===", "after", "fail"});
+            results = p.runCommands();
+        } finally {
+            SXXLog.shared().setLevel(SXXLog.Level.INFO);
+        }
+
+        assertEquals(hosts.length, reached.size());
+        for (int i = 0; i < hosts.length; i++) {
+            assertEquals(i != 7, results.get(i).isSuccess());
+            assertEquals("host" + i + " after\n", results.get(i).getCommandResults().get(1).getStdout());
+        }
+    }
+
+    @Test
+    public void testOnlyTheFailedOfIdenticalConcurrentCommandsFails() throws Exception {
+        final AtomicInteger restarts = new AtomicInteger();
+        SXXParameters parameters = new SXXParameters().failOnError(true).transport(Transports.inMemory(
+                new Transports.CommandHandler() {
+                    public int run(final String host, final String command, final InputStream stdin,
+                                   final OutputStream stdout, final OutputStream stderr) throws Exception {
+                        return restarts.incrementAndGet() == 1 ? 3 : 0;
+                    }
+                }));
+        SXXParalized p = new SXXParalized(parameters);
+        p.setHosts(new String[]{"host"});
+        p.setCommands(new String[]{"& restart", "& restart"});
+        List<CommandResult> results = p.runCommands().get(0).getCommandResults();
+
+        assertEquals(2, results.size());
+        int failed = 0;
+        for (CommandResult result : results) {
+            if (!result.isSuccess()) {
+                failed++;
+                assertEquals(3, result.getExitStatus());
+                assertEquals(3, ((CommandFailedException) result.getFailure()).getExitStatus());
+            } else {
+                assertEquals(0, result.getExitStatus());
+                assertEquals(null, result.getFailure());
+            }
+        }
+        assertEquals(1, failed);
+    }
+
+    @Test
+    public void testInMemoryDroppedConnection() throws Exception {
+        SXXExecutor executor = new SXXExecutor.SXXExecutorBuilder(new SXXParameters().host("host")
+                .failOnError(false).transport(Transports.inMemory(new Transports.CommandHandler() {
+                    public int run(final String host, final String command, final InputStream stdin,
+                                   final OutputStream stdout, final OutputStream stderr) throws Exception {
+                        throw new IOException("dropped");
+                    }
+                }))).build();
+        assertEquals(-1, executor.sendCommand("true", new ByteArrayOutputStream(), new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void testLocalProcess() throws Exception {
+        SXXExecutor executor = new SXXExecutor.SXXExecutorBuilder(new SXXParameters().host("localhost")
+                .failOnError(false).transport(Transports.localProcess())).build();
+        try {
+            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            assertEquals(3, executor.sendCommand("echo out; echo err >&2; exit 3", stdout, stderr));
+            assertEquals("out\n", stdout.toString());
+            assertEquals("err\n", stderr.toString());
+
+            int[] exitStatus = executor.sendCommands(new String[]{"true", "false"},
+                    new OutputStream[]{stdout, stdout}, new OutputStream[]{stderr, stderr});
+            assertArrayEquals(new int[]{0, 1}, exitStatus);
+        } finally {
+            executor.disconnect();
+        }
+    }
+
+    @Test
+    public void testLocalProcessAsync() throws Exception {
+        SXXExecutor executor = new SXXExecutor.SXXExecutorBuilder(new SXXParameters().host("localhost")
+                .transport(Transports.localProcess())).build();
+        try {
+            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            final CountDownLatch listened = new CountDownLatch(1);
+            CommandFuture echo = executor.sendCommandAsync("echo out", stdout, stdout).addListener(
+                    new CommandFuture.Listener() {
+                        public void completed(final CommandFuture future) {
+                            listened.countDown();
+                        }
+                    });
+            CommandFuture slow = executor.sendCommandAsync("sleep 10", stdout, stdout, 200);
+            CommandFuture cancelled = executor.sendCommandAsync("sleep 10", stdout, stdout, 0);
+            CommandFuture failed = executor.sendCommandAsync("exit 3", stdout, stdout);
+
+            assertEquals(0, echo.get(10, TimeUnit.SECONDS).intValue());
+            assertTrue(listened.await(10, TimeUnit.SECONDS));
+            assertEquals("out\n", stdout.toString());
+            assertTrue(cancelled.cancel(true));
+            assertTrue(cancelled.isCancelled());
+            try {
+                cancelled.get();
+                fail("Cancelled command should not have a result");
+            } catch (CancellationException expected) {
+                assertFalse(cancelled.cancel(true));
+            }
+            try {
+                failed.get(10, TimeUnit.SECONDS);
+                fail("Failed command should complete with a failure");
+            } catch (ExecutionException expected) {
+                assertEquals(3, ((CommandFailedException) expected.getCause()).getExitStatus());
+            }
+            try {
+                slow.get(10, TimeUnit.SECONDS);
+                fail("Timed out command should fail, failOnError is set");
+            } catch (ExecutionException expected) {
+                assertTrue(slow.isTimedOut());
+            }
+        } finally {
+            executor.disconnect();
+        }
+    }
+
+    @Test
+    public void testFinishedAsyncCommandsAreNotKept() throws Exception {
+        SXXExecutor executor = new SXXExecutor.SXXExecutorBuilder(new SXXParameters().host("host")
+                .transport(Transports.inMemory(new Transports.CommandHandler() {
+                    public int run(final String host, final String command, final InputStream stdin,
+                                   final OutputStream stdout, final OutputStream stderr) {
+                        return 0;
+                    }
+                }))).build();
+        List<CommandFuture> futures = new ArrayList<CommandFuture>();
+        for (int i = 0; i < 1000; i++) {
+            futures.add(executor.sendCommandAsync("true", new ByteArrayOutputStream(), new ByteArrayOutputStream()));
+        }
+        for (CommandFuture future : futures) {
+            assertEquals(0, future.get(10, TimeUnit.SECONDS).intValue());
+        }
+        assertEquals(0, executor.pendingAsyncCommands());
+    }
+
+    @Test
+    public void testLocalProcessUploads() throws Exception {
+        File local = File.createTempFile("sxx", ".bin");
+        local.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(local);
+        for (int i = 0; i < 1000; i++) {
+            out.write(("line " + i + "\n").getBytes("UTF-8"));
+        }
+        out.close();
+        File dir = File.createTempFile("sxx", ".dir");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        File copied = new File(dir, local.getName());
+        copied.deleteOnExit();
+        File resumed = new File(dir, "resumed.bin");
+        resumed.deleteOnExit();
+
+        SXXExecutor executor = new SXXExecutor.SXXExecutorBuilder(new SXXParameters().host("localhost")
+                .transport(Transports.localProcess())).build();
+        try {
+            executor.upload(local, dir.getAbsolutePath());
+            assertEquals(SXXExecutor.sha256(local), SXXExecutor.sha256(copied));
+
+            assertTrue(executor.uploadResumable(local, resumed.getAbsolutePath()));
+            assertEquals(SXXExecutor.sha256(local), SXXExecutor.sha256(resumed));
+            assertFalse(executor.uploadResumable(local, resumed.getAbsolutePath()));
+        } finally {
+            executor.disconnect();
+        }
+        assertEquals(local.length(), read(copied).length);
+    }
+
+    @Test
+    public void testResumableUploadChecksThePartFile() throws Exception {
+        File local = File.createTempFile("sxx", ".bin");
+        local.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(local);
+        for (int i = 0; i < 1000; i++) {
+            out.write(("line " + i + "\n").getBytes("UTF-8"));
+        }
+        out.close();
+        byte[] content = read(local);
+        File remote = File.createTempFile("sxx", ".remote");
+        remote.delete();
+        remote.deleteOnExit();
+        File part = new File(remote.getPath() + ".part");
+        part.deleteOnExit();
+
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        SXXExecutor executor = new SXXExecutor.SXXExecutorBuilder(new SXXParameters().host("localhost")
+                .metrics(metrics).transport(Transports.localProcess())).build();
+        try {
+            // Resumes from a part holding the start of the file.
+            write(part, content, 1000);
+            assertTrue(executor.uploadResumable(local, remote.getAbsolutePath()));
+            assertArrayEquals(content, read(remote));
+            assertFalse(part.exists());
+            assertEquals(content.length - 1000, metrics.getHistogram(Metrics.BYTES_SENT, "localhost").getSum());
+
+            // Up to date, nothing is sent.
+            assertFalse(executor.uploadResumable(local, remote.getAbsolutePath()));
+            assertEquals(content.length - 1000, metrics.getHistogram(Metrics.BYTES_SENT, "localhost").getSum());
+
+            // A part left by another file is replaced, not appended to.
+            assertTrue(remote.delete());
+            byte[] stale = new byte[1000];
+            Arrays.fill(stale, (byte) 'x');
+            write(part, stale, stale.length);
+            assertTrue(executor.uploadResumable(local, remote.getAbsolutePath()));
+            assertArrayEquals(content, read(remote));
+            assertEquals(2 * content.length - 1000, metrics.getHistogram(Metrics.BYTES_SENT, "localhost").getSum());
+        } finally {
+            executor.disconnect();
+        }
+    }
+
+    @Test
+    public void testDistributeFallsBackFromFailedRelays() throws Exception {
+        File local = File.createTempFile("sxx", ".bin");
+        local.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(local);
+        out.write("distributed\n".getBytes("UTF-8"));
+        out.close();
+        File copy = File.createTempFile("sxx", ".copy");
+        copy.deleteOnExit();
+
+        // Nothing listens on these ports, so every relay fails and the host gets the file from here.
+        String[] hosts = {"127.0.0.1:1", "127.0.0.1:2", "127.0.0.1:3", "127.0.0.1:4"};
+        List<HostResult> results = new FileDistributor(new SXXParameters().transport(Transports.localProcess()))
+                .relay(true).distribute(local, copy.getAbsolutePath(), hosts);
+
+        assertEquals(hosts.length, results.size());
+        for (HostResult result : results) {
+            assertTrue(result.toString(), result.isSuccess());
+            assertTrue(result.wasRun());
+            assertTrue(result.getEndTime() >= result.getStartTime());
+            assertEquals(1, result.getCommandResults().size());
+            assertTrue(result.getCommandResults().get(0).getCommand().startsWith("upload "));
+        }
+        assertEquals("distributed\n", new String(read(copy), "UTF-8"));
+        assertEquals("scp -B -q -P 2222 '/tmp/a b' 'user@10.0.0.1:/tmp/a b'",
+                FileDistributor.relayCommand("user", "10.0.0.1", 2222, "/tmp/a b"));
+    }
+
+    @Test
+    public void testRetries() throws Exception {
+        final ConcurrentHashMap<String, AtomicInteger> runs = new ConcurrentHashMap<String, AtomicInteger>();
+        final Transport.Factory inMemory = Transports.inMemory(new Transports.CommandHandler() {
+            public int run(final String host, final String command, final InputStream stdin,
+                           final OutputStream stdout, final OutputStream stderr) throws Exception {
+                AtomicInteger count = new AtomicInteger();
+                AtomicInteger existing = runs.putIfAbsent(host + " " + command, count);
+                int run = (existing != null ? existing : count).incrementAndGet();
+                if (command.equals("flaky") && run <= 2 || command.equals("concurrent flaky") && run == 1) {
+                    return 1;
+                }
+                return 0;
+            }
+        });
+        SXXParameters parameters = new SXXParameters().failOnError(true)
+                .retryPolicy(new RetryPolicy().maxAttempts(3).initialDelay(10))
+                .transport(new Transport.Factory() {
+                    public Transport open(final String host) {
+                        return new FlakyConnectTransport(inMemory.open(host), host.equals("host1") ? 2 : 0);
+                    }
+                });
+        SXXLog.shared().setLevel(SXXLog.Level.ERROR);
+        List<HostResult> results;
+        try {
+            SXXParalized p = new SXXParalized(parameters);
+            p.setHosts(new String[]{"host0", "host1"});
+            p.setCommands(new String[]{"[retry=2] flaky", "& [retry=1] concurrent flaky", "& steady"});
+            results = p.runCommands();
+        } finally {
+            SXXLog.shared().setLevel(SXXLog.Level.INFO);
+        }
+
+        assertEquals(1, results.get(0).getConnectAttempts());
+        assertEquals(3, results.get(1).getConnectAttempts());
+        for (HostResult result : results) {
+            assertTrue(result.toString(), result.isSuccess());
+            List<CommandResult> commands = result.getCommandResults();
+            assertEquals(3, commands.size());
+            assertEquals(3, commands.get(0).getAttempts());
+            assertEquals(2, commands.get(1).getAttempts());
+            assertEquals(1, commands.get(2).getAttempts());
+            assertEquals(1, runs.get(result.getHost() + " steady").get());
+        }
+    }
+
+    @Test
+    public void testFailedLoginIsNotRetried() throws Exception {
+        final AtomicInteger connects = new AtomicInteger();
+        SXXExecutor executor = new SXXExecutor.SXXExecutorBuilder(new SXXParameters().host("host")
+                .retryPolicy(new RetryPolicy().maxAttempts(5).initialDelay(10))
+                .transport(new Transport.Factory() {
+                    public Transport open(final String host) {
+                        return new FlakyConnectTransport(null, Integer.MAX_VALUE) {
+                            @Override
+                            public void connect() throws IOException {
+                                connects.incrementAndGet();
+                                throw new LoginFailedException("Auth fail");
+                            }
+                        };
+                    }
+                })).build();
+        try {
+            executor.sendCommand("true", new ByteArrayOutputStream(), new ByteArrayOutputStream());
+            fail("Login should fail");
+        } catch (LoginFailedException expected) {
+            assertEquals(1, connects.get());
+            assertEquals(1, executor.getConnectAttempts());
+        }
+    }
+
+    /**
+     * Fails the first connects, then hands over to another transport.
+     */
+    private static class FlakyConnectTransport implements Transport {
+
+        private final Transport transport;
+        private int failures;
+
+        FlakyConnectTransport(final Transport transport, final int failures) {
+            this.transport = transport;
+            this.failures = failures;
+        }
+
+        public void connect() throws IOException, InterruptedException {
+            if (failures-- > 0) {
+                throw new IOException("Connection refused");
+            }
+            transport.connect();
+        }
+
+        public boolean isConnected() {
+            return transport != null && transport.isConnected();
+        }
+
+        public Execution exec(final String command, final OutputStream stdout, final OutputStream stderr,
+                              final Runnable onExit) throws IOException, InterruptedException {
+            return transport.exec(command, stdout, stderr, onExit);
+        }
+
+        public void upload(final File localFile, final String remotePath) throws IOException, InterruptedException {
+            transport.upload(localFile, remotePath);
+        }
+
+        public void close() {
+            if (transport != null) {
+                transport.close();
+            }
+        }
+    }
+
+    private static byte[] read(final File file) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void write(final File file, final byte[] content, final int length) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content, 0, length);
+        } finally {
+            out.close();
+        }
+    }
+}
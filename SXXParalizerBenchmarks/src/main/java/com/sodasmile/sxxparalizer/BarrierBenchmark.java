@@ -0,0 +1,71 @@
+package com.sodasmile.sxxparalizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The same number of commands on all hosts, with 0 up to one barrier between every command.
+ * The difference to the run without barriers is the cost of the barriers.
+ *
+ * @author anderssm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BarrierBenchmark {
+
+    private static final int COMMANDS = 11;
+
+    @Param({"16"})
+    public int hosts;
+
+    @Param({"0", "1", "10"})
+    public int barriers;
+
+    private LocalSshServers servers;
+    private SXXParalized paralized;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SXXLog.shared().setLevel(SXXLog.Level.WARN);
+        servers = new LocalSshServers(hosts);
+        List<String> script = new ArrayList<String>();
+        for (int i = 0; i < COMMANDS; i++) {
+            if (i > 0 && i <= barriers) {
+                script.add("===");
+            }
+            script.add("true");
+        }
+        paralized = new SXXParalized(LocalSshServers.parameters().sessionPool(new SessionPool(hosts, 60000, 60000)));
+        paralized.setHosts(servers.hosts());
+        paralized.setCommands(script.toArray(new String[script.size()]));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        servers.stop();
+    }
+
+    @Benchmark
+    public List<HostResult> runCommands() throws Exception {
+        return paralized.runCommands();
+    }
+}
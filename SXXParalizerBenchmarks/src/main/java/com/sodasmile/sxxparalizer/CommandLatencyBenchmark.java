@@ -0,0 +1,67 @@
+package com.sodasmile.sxxparalizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of commands on an open session: one command, and a group of commands on parallel channels.
+ *
+ * @author anderssm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandLatencyBenchmark {
+
+    private static final int GROUP_SIZE = 8;
+
+    private LocalSshServers servers;
+    private SXXExecutor executor;
+    private String[] group;
+    private OutputStream[] discard;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SXXLog.shared().setLevel(SXXLog.Level.WARN);
+        servers = new LocalSshServers(1);
+        executor = new SXXExecutor.SXXExecutorBuilder(LocalSshServers.parameters()
+                .host(servers.hosts()[0])).build();
+        group = new String[GROUP_SIZE];
+        Arrays.fill(group, "sleep 5");
+        discard = new OutputStream[GROUP_SIZE];
+        Arrays.fill(discard, LocalSshServers.DISCARD);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        executor.disconnect();
+        servers.stop();
+    }
+
+    @Benchmark
+    public int singleCommand() throws Exception {
+        return executor.sendCommand("true", LocalSshServers.DISCARD, LocalSshServers.DISCARD);
+    }
+
+    @Benchmark
+    public int[] concurrentGroup() throws Exception {
+        return executor.sendCommands(group, discard, discard);
+    }
+}
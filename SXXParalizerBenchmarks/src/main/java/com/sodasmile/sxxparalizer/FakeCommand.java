@@ -0,0 +1,124 @@
+package com.sodasmile.sxxparalizer;
+
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.command.Command;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Command run by the {@link LocalSshServers}, without starting a process:
+ * <ul>
+ * <li><code>true</code> exits with status 0.</li>
+ * <li><code>false</code> exits with status 1.</li>
+ * <li><code>echo text</code> prints the text.</li>
+ * <li><code>output n</code> prints n bytes, in lines of 80 characters.</li>
+ * <li><code>sleep ms</code> waits ms milliseconds.</li>
+ * </ul>
+ * Anything else exits with status 127.
+ *
+ * @author anderssm
+ */
+class FakeCommand implements Command {
+
+    private static final ExecutorService RUNNER = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "fake-command");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    private final String command;
+    private OutputStream out;
+    private OutputStream err;
+    private ExitCallback callback;
+
+    FakeCommand(final String command) {
+        this.command = command.trim();
+    }
+
+    @Override
+    public void setInputStream(final InputStream in) {
+    }
+
+    @Override
+    public void setOutputStream(final OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void setErrorStream(final OutputStream err) {
+        this.err = err;
+    }
+
+    @Override
+    public void setExitCallback(final ExitCallback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public void start(final ChannelSession channel, final Environment env) {
+        RUNNER.submit(() -> {
+            int exitStatus;
+            try {
+                exitStatus = run();
+                out.flush();
+                err.flush();
+            } catch (Exception e) {
+                exitStatus = 255;
+            }
+            callback.onExit(exitStatus);
+        });
+    }
+
+    private int run() throws IOException, InterruptedException {
+        String name = command;
+        String argument = "";
+        int space = command.indexOf(' ');
+        if (space > 0) {
+            name = command.substring(0, space);
+            argument = command.substring(space + 1).trim();
+        }
+        switch (name) {
+            case "true":
+                return 0;
+            case "false":
+                return 1;
+            case "echo":
+                out.write((argument + "\n").getBytes(StandardCharsets.UTF_8));
+                return 0;
+            case "output":
+                output(Long.parseLong(argument));
+                return 0;
+            case "sleep":
+                Thread.sleep(Long.parseLong(argument));
+                return 0;
+            default:
+                err.write(("Unknown command: " + command + "\n").getBytes(StandardCharsets.UTF_8));
+                return 127;
+        }
+    }
+
+    private void output(final long size) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        Arrays.fill(chunk, (byte) 'x');
+        for (int i = 80; i < chunk.length; i += 81) {
+            chunk[i] = '\n';
+        }
+        for (long left = size; left > 0; left -= chunk.length) {
+            out.write(chunk, 0, (int) Math.min(chunk.length, left));
+        }
+    }
+
+    @Override
+    public void destroy(final ChannelSession channel) {
+    }
+}
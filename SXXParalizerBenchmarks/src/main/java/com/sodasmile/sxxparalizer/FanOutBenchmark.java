@@ -0,0 +1,63 @@
+package com.sodasmile.sxxparalizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to run a short script on N simulated hosts, including connecting to all of them.
+ *
+ * @author anderssm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FanOutBenchmark {
+
+    @Param({"1", "16", "64"})
+    public int hosts;
+
+    @Param({"threadPerHost", "fixedPool8"})
+    public String engine;
+
+    private LocalSshServers servers;
+    private SXXParalized paralized;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SXXLog.shared().setLevel(SXXLog.Level.WARN);
+        servers = new LocalSshServers(hosts);
+        paralized = new SXXParalized(LocalSshServers.parameters());
+        paralized.setHosts(servers.hosts());
+        paralized.setCommands(new String[]{"echo hello", "true", "output 4096"});
+        if (engine.equals("fixedPool8")) {
+            paralized.setExecutionEngine(ExecutionEngines.fixedPool(8));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        servers.stop();
+    }
+
+    @Benchmark
+    public List<HostResult> runCommands() throws Exception {
+        return paralized.runCommands();
+    }
+}
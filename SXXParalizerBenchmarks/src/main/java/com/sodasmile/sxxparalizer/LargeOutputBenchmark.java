@@ -0,0 +1,74 @@
+package com.sodasmile.sxxparalizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Commands with large output: streamed and discarded, streamed line by line into the log as
+ * SXXParalized does, and buffered in memory by {@link SXXExecutor#sendCommand(String)}.
+ *
+ * @author anderssm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx1g"})
+public class LargeOutputBenchmark {
+
+    @Param({"1048576", "67108864"})
+    public long size;
+
+    private LocalSshServers servers;
+    private SXXExecutor executor;
+    private String command;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SXXLog.shared().setLevel(SXXLog.Level.WARN);
+        servers = new LocalSshServers(1);
+        executor = new SXXExecutor.SXXExecutorBuilder(LocalSshServers.parameters()
+                .host(servers.hosts()[0])).build();
+        command = "output " + size;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        executor.disconnect();
+        servers.stop();
+    }
+
+    @Benchmark
+    public int streamed() throws Exception {
+        return executor.sendCommand(command, LocalSshServers.DISCARD, LocalSshServers.DISCARD);
+    }
+
+    @Benchmark
+    public int streamedLines() throws Exception {
+        HostLineOutputStream lines = new HostLineOutputStream(SXXLog.shared(), executor.getHost(), 0);
+        try {
+            return executor.sendCommand(command, lines, lines);
+        } finally {
+            lines.close();
+        }
+    }
+
+    @Benchmark
+    public int buffered() throws Exception {
+        return executor.sendCommand(command).length();
+    }
+}
@@ -0,0 +1,102 @@
+package com.sodasmile.sxxparalizer;
+
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.kex.BuiltinDHFactories;
+import org.apache.sshd.common.keyprovider.KeyPairProvider;
+import org.apache.sshd.server.ServerBuilder;
+import org.apache.sshd.server.SshServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * In-process SSH servers on localhost, one per simulated host, each on its own port.
+ * <p/>
+ * The servers accept any user and password, and run the commands of {@link FakeCommand} instead
+ * of real processes, so the benchmarks measure SXXParalizer and the SSH protocol, not process start
+ * up on the host. Key exchange is limited to the algorithms JSch 0.1.42 supports.
+ *
+ * @author anderssm
+ */
+public class LocalSshServers {
+
+    /**
+     * Stream discarding all output.
+     */
+    public static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(final int b) {
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+        }
+    };
+
+    private final List<SshServer> servers = new ArrayList<SshServer>();
+    private final String[] hosts;
+
+    /**
+     * Starts the servers.
+     *
+     * @param count number of servers to start.
+     */
+    public LocalSshServers(final int count) throws IOException, GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPairProvider hostKey = KeyPairProvider.wrap(generator.generateKeyPair());
+        // JSch 0.1.42 only supports these key exchanges, which sshd has deprecated as weak.
+        @SuppressWarnings("deprecation")
+        List<BuiltinDHFactories> keyExchanges = Arrays.asList(BuiltinDHFactories.dhg1, BuiltinDHFactories.dhgex);
+
+        hosts = new String[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                SshServer server = SshServer.setUpDefaultServer();
+                server.setHost("127.0.0.1");
+                server.setPort(0);
+                server.setKeyPairProvider(hostKey);
+                server.setKeyExchangeFactories(NamedFactory.setUpTransformedFactories(false, keyExchanges,
+                        ServerBuilder.DH2KEX));
+                server.setPasswordAuthenticator((username, password, session) -> true);
+                server.setCommandFactory((channel, command) -> new FakeCommand(command));
+                server.start();
+                servers.add(server);
+                hosts[i] = "127.0.0.1:" + server.getPort();
+            }
+        } catch (IOException e) {
+            stop();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the servers as host:port, to use as SXXParalizer hosts.
+     */
+    public String[] hosts() {
+        return hosts.clone();
+    }
+
+    /**
+     * @return parameters to connect to the servers with, the host is not set.
+     */
+    public static SXXParameters parameters() {
+        return new SXXParameters()
+                .username("bench")
+                .password("bench")
+                .trust(true)
+                .timeout(60000);
+    }
+
+    public void stop() throws IOException {
+        for (SshServer server : servers) {
+            server.stop(true);
+        }
+        servers.clear();
+    }
+}
@@ -0,0 +1,64 @@
+package com.sodasmile.sxxparalizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to connect, authenticate, run one command and disconnect, with and without a session pool.
+ *
+ * @author anderssm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionSetupBenchmark {
+
+    @Param({"false", "true"})
+    public boolean pooled;
+
+    private LocalSshServers servers;
+    private SessionPool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SXXLog.shared().setLevel(SXXLog.Level.WARN);
+        servers = new LocalSshServers(1);
+        pool = pooled ? new SessionPool(1, 60000, 60000) : null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (pool != null) {
+            pool.close();
+        }
+        servers.stop();
+    }
+
+    @Benchmark
+    public int connectRunDisconnect() throws Exception {
+        SXXExecutor executor = new SXXExecutor.SXXExecutorBuilder(LocalSshServers.parameters()
+                .host(servers.hosts()[0])
+                .sessionPool(pool)).build();
+        try {
+            return executor.sendCommand("true", LocalSshServers.DISCARD, LocalSshServers.DISCARD);
+        } finally {
+            executor.disconnect();
+        }
+    }
+}
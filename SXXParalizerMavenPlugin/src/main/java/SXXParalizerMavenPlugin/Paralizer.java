@@ -16,6 +16,14 @@ package SXXParalizerMavenPlugin;
  * limitations under the License.
  */
 
+import com.sodasmile.sxxparalizer.CancellationPolicy;
+import com.sodasmile.sxxparalizer.ConnectLimiter;
+import com.sodasmile.sxxparalizer.ExecutionEngines;
+import com.sodasmile.sxxparalizer.HostResult;
+import com.sodasmile.sxxparalizer.InMemoryMetrics;
+import com.sodasmile.sxxparalizer.Inventory;
+import com.sodasmile.sxxparalizer.RetryPolicy;
+import com.sodasmile.sxxparalizer.RollingPolicy;
 import com.sodasmile.sxxparalizer.SXXParalized;
 import com.sodasmile.sxxparalizer.SXXParameters;
 import org.apache.maven.plugin.AbstractMojo;
@@ -60,24 +68,201 @@ public class Paralizer extends AbstractMojo {
     private File commandsFile;
 
     /**
-     * Hosts to run commands on.
+     * Hosts to run commands on. Required unless an inventory file is given, then runs on these hosts of it.
      *
      * @parameter
-     * @required
      */
     private String[] hosts;
 
+    /**
+     * Inventory file with hosts, groups, tags and variables, see Inventory in sxxparalizer.
+     *
+     * @parameter
+     */
+    private File inventoryFile;
+
+    /**
+     * Maximum number of hosts to run commands on at the same time. 0 means all hosts at once.
+     *
+     * @parameter default-value="0"
+     */
+    private int maxConcurrency;
+
+    /**
+     * Run every host on a virtual thread instead of a platform thread. Requires Java 21 or newer.
+     *
+     * @parameter default-value="false"
+     */
+    private boolean virtualThreads;
+
+    /**
+     * Rolling run: number of hosts to run the commands on at a time. A new host is started as soon as one is done.
+     *
+     * @parameter default-value="0"
+     */
+    private int batchSize;
+
+    /**
+     * Rolling run: percentage of the hosts to run the commands on at a time. Used instead of batchSize.
+     *
+     * @parameter default-value="0"
+     */
+    private int batchPercent;
+
+    /**
+     * Rolling run: number of failed hosts to accept before no more hosts are started. -1 means no limit.
+     *
+     * @parameter default-value="-1"
+     */
+    private int maxFailures;
+
+    /**
+     * Cancel the whole run, also hosts already running, when more than this number of hosts have failed.
+     * 0 cancels at the first failure, -1 never cancels.
+     *
+     * @parameter default-value="-1"
+     */
+    private int cancelAfterFailures;
+
+    /**
+     * Signal to send to commands still running when the run is cancelled, like TERM. Default is none.
+     *
+     * @parameter
+     */
+    private String cancelSignal;
+
+    /**
+     * Number of times to try to connect to each host, with growing waits between attempts.
+     *
+     * @parameter default-value="1"
+     */
+    private int connectAttempts;
+
+    /**
+     * Jump host to reach the hosts through, as [user@]host[:port]. Default is to connect directly.
+     *
+     * @parameter
+     */
+    private String jumpHost;
+
+    /**
+     * Max number of new connections per second over all hosts, 0 for no limit.
+     *
+     * @parameter default-value="0"
+     */
+    private double connectsPerSecond;
+
+    /**
+     * Number of connections let through at once when connectsPerSecond is set.
+     *
+     * @parameter default-value="10"
+     */
+    private int connectBurst;
+
+    /**
+     * Max milliseconds each host waits before it connects, to spread out the connects.
+     *
+     * @parameter default-value="0"
+     */
+    private long startJitter;
+
+    /**
+     * Print one summary per distinct output of each command, instead of the output of every host.
+     *
+     * @parameter default-value="false"
+     */
+    private boolean aggregateOutput;
+
+    /**
+     * File to journal the run in, to be able to resume it if it is stopped halfway. Default is no journal.
+     *
+     * @parameter
+     */
+    private File journalFile;
+
+    /**
+     * Resume the run in journalFile, skipping the commands already done on each host.
+     *
+     * @parameter default-value="false"
+     */
+    private boolean resume;
+
+    /**
+     * Log connect, command and barrier timings per host and per command when done.
+     *
+     * @parameter default-value="false"
+     */
+    private boolean metrics;
+
     public void execute() throws MojoExecutionException {
         SXXParameters params = new SXXParameters()
                 .username(username)
                 .password(password)
-                .trust(true);
+                .trust(true)
+                .jumpHost(jumpHost)
+                .retryPolicy(new RetryPolicy().maxAttempts(connectAttempts));
+        if (connectsPerSecond > 0) {
+            params.connectLimiter(new ConnectLimiter(connectsPerSecond, connectBurst));
+        }
+        InMemoryMetrics recorded = null;
+        if (metrics) {
+            recorded = new InMemoryMetrics();
+            params.metrics(recorded);
+        }
         SXXParalized p = new SXXParalized(params);
-        p.setHosts(hosts);
+        if (inventoryFile != null) {
+            try {
+                p.setInventory(Inventory.load(inventoryFile));
+            } catch (IOException e) {
+                throw new MojoExecutionException("Unable to read inventory " + inventoryFile, e);
+            }
+        } else if (hosts == null) {
+            throw new MojoExecutionException("Either hosts or inventoryFile is required");
+        }
+        if (hosts != null) {
+            p.setHosts(hosts);
+        }
+        p.setStartJitter(startJitter);
+        p.setAggregateOutput(aggregateOutput);
+        if (journalFile != null) {
+            p.setJournal(journalFile, resume);
+        } else if (resume) {
+            throw new MojoExecutionException("resume requires a journalFile");
+        }
+        int concurrency = maxConcurrency > 0 ? maxConcurrency : ExecutionEngines.UNBOUNDED;
+        if (virtualThreads) {
+            p.setExecutionEngine(ExecutionEngines.virtualThreads(concurrency));
+        } else if (maxConcurrency > 0) {
+            p.setExecutionEngine(ExecutionEngines.fixedPool(concurrency));
+        }
+        if (batchSize > 0 || batchPercent > 0 || maxFailures >= 0) {
+            RollingPolicy rolling = new RollingPolicy();
+            if (batchPercent > 0) {
+                rolling.batchPercent(batchPercent);
+            } else {
+                rolling.batchSize(batchSize);
+            }
+            if (maxFailures >= 0) {
+                rolling.maxFailures(maxFailures);
+            }
+            p.setRollingPolicy(rolling);
+        }
+        if (cancelAfterFailures >= 0) {
+            p.setCancellationPolicy(new CancellationPolicy().maxFailures(cancelAfterFailures).signal(cancelSignal));
+        }
         String[] commands = slurpCommands(commandsFile);
         p.setCommands(commands);
         try {
-            p.runCommands();
+            for (HostResult result : p.runCommands()) {
+                if (result.isSuccess()) {
+                    getLog().info(result.toString());
+                } else {
+                    getLog().error(result.toString());
+                }
+            }
+            if (recorded != null) {
+                getLog().info("Metrics, times in nanoseconds:\n" + recorded.report());
+            }
         } catch (Exception e) {
             throw new MojoExecutionException("SXX Command execution failed", e);
         }